@@ -0,0 +1,50 @@
+package za.co.wstoop.jatalog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Loads the example programs from the {@code examples/} directory, which the benchmark module's
+ * build packages as resources.
+ */
+public class Examples {
+
+	/**
+	 * Reads an example program.
+	 * @param name The name of the file in the {@code examples/} directory, like "gens.dl"
+	 * @return the program's text
+	 */
+	public static String load(String name) {
+		InputStream stream = Examples.class.getResourceAsStream("/examples/" + name);
+		if(stream == null) {
+			throw new IllegalArgumentException("No such example: " + name);
+		}
+		StringBuilder sb = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				sb.append(line).append('\n');
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Loads an example program into a new database.
+	 * The queries in the program are executed as well, since they can't be separated from the
+	 * rest of the statements without parsing them.
+	 * @param name The name of the file in the {@code examples/} directory
+	 * @return the database
+	 * @throws DatalogException if the program can't be executed
+	 */
+	public static Jatalog database(String name) throws DatalogException {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll(load(name));
+		return jatalog;
+	}
+}
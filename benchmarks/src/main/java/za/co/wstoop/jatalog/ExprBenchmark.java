@@ -0,0 +1,85 @@
+package za.co.wstoop.jatalog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the operations on {@link Expr} that the engine performs for every candidate fact:
+ * {@link Expr#unifyTerms(Expr, Map)}, {@link Expr#substituteTerms(Map)} and {@link Expr#evalBuiltInTerms(Map)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExprBenchmark {
+
+	private final Expr fact = Expr.expr("parent", "alice", "bob");
+	private final Expr sameFact = Expr.expr("parent", "alice", "bob");
+	private final Expr freeGoal = Expr.expr("parent", "X", "Y");
+	private final Expr boundGoal = Expr.expr("parent", "alice", "Y");
+	private final Expr mismatchGoal = Expr.expr("parent", "carol", "Y");
+	private final Expr comparison = Expr.gt("A", "30");
+	private final Expr equality = Expr.eq("A", "B");
+
+	private final Map<String, Term> bound = new HashMap<>();
+	private final Map<String, Term> numbers = new HashMap<>();
+
+	public ExprBenchmark() {
+		bound.put("X", Term.parse("alice"));
+		numbers.put("A", Term.parse("42"));
+		numbers.put("B", Term.parse("42.0"));
+	}
+
+	@Benchmark
+	public boolean unifyGround() {
+		return fact.unifyTerms(sameFact, new HashMap<>());
+	}
+
+	@Benchmark
+	public boolean unifyFreeVariables() {
+		return fact.unifyTerms(freeGoal, new HashMap<>());
+	}
+
+	@Benchmark
+	public boolean unifyBoundVariable() {
+		return fact.unifyTerms(freeGoal, new HashMap<>(bound));
+	}
+
+	@Benchmark
+	public boolean unifyConstant() {
+		return fact.unifyTerms(boundGoal, new HashMap<>());
+	}
+
+	@Benchmark
+	public boolean unifyMismatch() {
+		return fact.unifyTerms(mismatchGoal, new HashMap<>());
+	}
+
+	@Benchmark
+	public Expr substitute() {
+		return freeGoal.substituteTerms(bound);
+	}
+
+	@Benchmark
+	public boolean evalComparison() {
+		return comparison.evalBuiltInTerms(numbers);
+	}
+
+	@Benchmark
+	public boolean evalNumericEquality() {
+		return equality.evalBuiltInTerms(numbers);
+	}
+}
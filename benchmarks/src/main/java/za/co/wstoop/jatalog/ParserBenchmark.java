@@ -0,0 +1,51 @@
+package za.co.wstoop.jatalog;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing and loading programs through {@link Jatalog#executeAll(String)}.
+ * The queries are stripped from the programs, so that only parsing and inserting facts and rules is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+	@Param({"gens.dl", "family.dl"})
+	public String example;
+
+	private String program;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		for(String line : Examples.load(example).split("\n")) {
+			if(!line.trim().endsWith("?")) {
+				sb.append(line).append('\n');
+			}
+		}
+		program = sb.toString();
+	}
+
+	@Benchmark
+	public Jatalog executeAll() throws DatalogException {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll(program);
+		return jatalog;
+	}
+}
@@ -0,0 +1,67 @@
+package za.co.wstoop.jatalog;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import za.co.wstoop.jatalog.statement.Statement;
+
+/**
+ * End-to-end benchmarks of queries over the example programs.
+ * <p>
+ * Each query is prepared once through {@link Jatalog#prepareStatement(String)} and then executed
+ * repeatedly, which is how an application that serves the same queries over and over would use Jatalog.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+	/* Workload name -> { example program, query } */
+	private static final Map<String, String[]> WORKLOADS = new HashMap<>();
+	static {
+		WORKLOADS.put("gens-ancestor", new String[] {"gens.dl", "ancestor(m64, A)?"});
+		WORKLOADS.put("gens-ancestor-all", new String[] {"gens.dl", "ancestor(A, B)?"});
+		WORKLOADS.put("gens-cousin", new String[] {"gens.dl", "cousin(m76, C)?"});
+		WORKLOADS.put("gens-sibling", new String[] {"gens.dl", "sibling(A, B)?"});
+		WORKLOADS.put("family-related", new String[] {"family.dl", "related(connie, carl)?"});
+		WORKLOADS.put("family-cousin", new String[] {"family.dl", "cousin(connie, Cousin)?"});
+		WORKLOADS.put("paths-path", new String[] {"paths.dl", "path(a, X), path(X, d)?"});
+		WORKLOADS.put("cerineg-negation", new String[] {"cerineg.dl", "p(A, B)?"});
+	}
+
+	@Param({"gens-ancestor", "gens-ancestor-all", "gens-cousin", "gens-sibling", "family-related", "family-cousin", "paths-path", "cerineg-negation"})
+	public String workload;
+
+	private Jatalog jatalog;
+	private Statement statement;
+
+	@Setup
+	public void setup() throws DatalogException {
+		String[] w = WORKLOADS.get(workload);
+		jatalog = Examples.database(w[0]);
+		statement = Jatalog.prepareStatement(w[1]);
+	}
+
+	@Benchmark
+	public Collection<Map<String, String>> query() throws DatalogException {
+		return statement.execute(jatalog);
+	}
+}
@@ -0,0 +1,57 @@
+package za.co.wstoop.jatalog;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import za.co.wstoop.jatalog.statement.Statement;
+
+/**
+ * JMH benchmarks of the generated {@link Workload}s at different sizes.
+ * <p>
+ * The default sizes are small enough for the whole benchmark to complete in reasonable time; use
+ * {@code -p size=...} to measure larger sizes, and see {@link ScalingSuite} to find the sizes at which
+ * the engine stops scaling.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+
+	@Param({"CHAIN", "TREE", "RANDOM_GRAPH", "SAME_GENERATION", "FAMILY_NEGATION", "TRIANGLE", "FOUR_CYCLE"})
+	public Workload.Kind kind;
+
+	@Param({"32", "128"})
+	public int size;
+
+	private Jatalog jatalog;
+	private Statement statement;
+
+	@Setup
+	public void setup() throws DatalogException {
+		Workload workload = Workload.generate(kind, size, 1);
+		jatalog = workload.load();
+		statement = Jatalog.prepareStatement(workload.getQuery());
+	}
+
+	@Benchmark
+	public Collection<Map<String, String>> query() throws DatalogException {
+		return statement.execute(jatalog);
+	}
+}
@@ -0,0 +1,140 @@
+package za.co.wstoop.jatalog;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import za.co.wstoop.jatalog.statement.Statement;
+
+/**
+ * Runs the generated {@link Workload}s at increasing sizes and reports how the time and memory grow.
+ * <p>
+ * For each kind of workload the size starts at {@code start} and doubles until a query takes longer than
+ * the time budget or the size exceeds {@code max}. Each line of the report shows, for one size:
+ * </p>
+ * <ul>
+ * <li> the number of facts loaded and answers returned,
+ * <li> the time to load the program and the best time of several executions of the query,
+ * <li> the growth of the query time relative to the previous size; a factor of 2 is linear scaling,
+ * <li> the heap retained by the database and the peak heap used while the query ran.
+ * </ul>
+ * <p>
+ * The numbers are not as rigorous as the JMH benchmarks in {@link ScalingBenchmark}, but the suite finds the
+ * scaling limits of the engine much quicker. Run it with a fixed heap size (for example {@code -Xmx4g}) so that
+ * the memory figures are comparable between runs:
+ * </p>
+ * <pre>java -Xmx4g -cp target/benchmarks.jar za.co.wstoop.jatalog.ScalingSuite [budget-seconds] [start] [max] [kinds...]</pre>
+ */
+public class ScalingSuite {
+
+	private static final int RUNS = 3;
+
+	private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	public static void main(String... args) throws Exception {
+		double budget = args.length > 0 ? Double.parseDouble(args[0]) : 10.0;
+		int start = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int max = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 20;
+		List<Workload.Kind> kinds = new ArrayList<>();
+		for(int i = 3; i < args.length; i++) {
+			kinds.add(Workload.Kind.valueOf(args[i].toUpperCase()));
+		}
+		if(kinds.isEmpty()) {
+			for(Workload.Kind kind : Workload.Kind.values()) {
+				kinds.add(kind);
+			}
+		}
+
+		System.out.println(String.format("%-16s %8s %9s %9s %10s %10s %7s %11s %9s",
+				"workload", "size", "facts", "answers", "load ms", "query ms", "growth", "retained MB", "peak MB"));
+		for(Workload.Kind kind : kinds) {
+			double previous = Double.NaN;
+			for(int size = start; size <= max; size *= 2) {
+				double elapsed = run(Workload.generate(kind, size, 1), previous);
+				previous = elapsed;
+				if(elapsed > budget * 1000) {
+					break;
+				}
+			}
+		}
+	}
+
+	/* Runs a single workload and prints a line of the report. Returns the query time in milliseconds */
+	private static double run(Workload workload, double previous) throws DatalogException, InterruptedException {
+		long baseline = usedHeap();
+		long t0 = System.nanoTime();
+		Jatalog jatalog = workload.load();
+		double load = (System.nanoTime() - t0) / 1e6;
+		long retained = usedHeap() - baseline;
+
+		Statement statement = Jatalog.prepareStatement(workload.getQuery());
+		Collection<Map<String, String>> answers = null;
+		double best = Double.MAX_VALUE;
+		long peak = 0;
+		for(int i = 0; i < RUNS; i++) {
+			long before = usedHeap();
+			HeapSampler sampler = new HeapSampler();
+			sampler.start();
+			long t1 = System.nanoTime();
+			answers = statement.execute(jatalog);
+			double elapsed = (System.nanoTime() - t1) / 1e6;
+			sampler.finish();
+			best = Math.min(best, elapsed);
+			peak = Math.max(peak, sampler.peak.get() - before);
+			if(elapsed > 2000) {
+				// Don't bother repeating slow queries; the variance is small relative to the run time.
+				break;
+			}
+		}
+
+		String growth = Double.isNaN(previous) || previous <= 0 ? "" : String.format("%.2fx", best / previous);
+		System.out.println(String.format("%-16s %8d %9d %9d %10.1f %10.1f %7s %11.1f %9.1f",
+				workload.getKind().toString().toLowerCase(), workload.getSize(), workload.getFacts(), answers.size(),
+				load, best, growth, retained / 1048576.0, Math.max(peak, 0) / 1048576.0));
+		return best;
+	}
+
+	private static long usedHeap() {
+		for(int i = 0; i < 2; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/* Samples the heap usage in the background to estimate the peak usage during a query */
+	private static class HeapSampler extends Thread {
+		final AtomicLong peak = new AtomicLong();
+		private volatile boolean running = true;
+
+		HeapSampler() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				sample();
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private void sample() {
+			long used = memory.getHeapMemoryUsage().getUsed();
+			peak.accumulateAndGet(used, Math::max);
+		}
+
+		void finish() throws InterruptedException {
+			sample();
+			running = false;
+			join();
+		}
+	}
+}
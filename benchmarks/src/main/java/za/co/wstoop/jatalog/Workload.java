@@ -0,0 +1,225 @@
+package za.co.wstoop.jatalog;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates the standard Datalog benchmark programs at configurable sizes.
+ * <p>
+ * Each workload consists of a program (facts and rules in the Datalog language) and a query against it.
+ * The programs are generated from a seed, so the same parameters always produce the same program.
+ * </p><p>
+ * The {@link #main(String...)} method writes a generated program to {@code System.out}, so that it can
+ * be saved and executed through the {@link Shell}, like {@code examples/gens.dl}.
+ * </p>
+ */
+public class Workload {
+
+	/**
+	 * The kinds of workloads that can be generated.
+	 */
+	public enum Kind {
+		/** Transitive closure over a chain {@code n0 -> n1 -> ... -> n(size-1)} */
+		CHAIN,
+		/** Transitive closure over a binary tree with {@code size} nodes */
+		TREE,
+		/** Transitive closure over a random graph with {@code size} nodes and {@code 2*size} edges */
+		RANDOM_GRAPH,
+		/** The same-generation program over a binary tree with {@code size} nodes */
+		SAME_GENERATION,
+		/** A family tree of {@code size} people with stratified negation */
+		FAMILY_NEGATION,
+		/** Triangles in a random graph with {@code size} nodes and {@code 4*size} edges */
+		TRIANGLE,
+		/** Cycles of length 4 in a random graph with {@code size} nodes and {@code 2*size} edges */
+		FOUR_CYCLE
+	}
+
+	private final Kind kind;
+	private final int size;
+	private final String program;
+	private final String query;
+	private final int facts;
+
+	private Workload(Kind kind, int size, String program, String query, int facts) {
+		this.kind = kind;
+		this.size = size;
+		this.program = program;
+		this.query = query;
+		this.facts = facts;
+	}
+
+	/**
+	 * Generates a workload.
+	 * @param kind The kind of workload
+	 * @param size The size of the workload; the number of nodes or people in the generated data
+	 * @param seed The seed for the workloads with random data
+	 * @return the workload
+	 */
+	public static Workload generate(Kind kind, int size, long seed) {
+		StringBuilder sb = new StringBuilder();
+		Random random = new Random(seed);
+		int facts = 0;
+		String query;
+		sb.append("% Generated ").append(kind).append(" workload of size ").append(size).append(", seed ").append(seed).append("\n");
+		switch(kind) {
+		case CHAIN:
+			for(int i = 1; i < size; i++) {
+				facts += edge(sb, "edge", i - 1, i);
+			}
+			closureRules(sb);
+			query = "path(n0, X)?";
+			break;
+		case TREE:
+			for(int i = 1; i < size; i++) {
+				facts += edge(sb, "edge", (i - 1) / 2, i);
+			}
+			closureRules(sb);
+			query = "path(X, Y)?";
+			break;
+		case RANDOM_GRAPH:
+			facts += randomEdges(sb, random, size, 2 * size);
+			closureRules(sb);
+			query = "path(n0, X)?";
+			break;
+		case SAME_GENERATION:
+			for(int i = 1; i < size; i++) {
+				facts += edge(sb, "parent", i, (i - 1) / 2);
+			}
+			sb.append("sg(X, Y) :- parent(X, P), parent(Y, P), X <> Y.\n");
+			sb.append("sg(X, Y) :- parent(X, A), sg(A, B), parent(Y, B).\n");
+			query = "sg(X, Y)?";
+			break;
+		case FAMILY_NEGATION:
+			for(int i = 0; i < size; i++) {
+				sb.append(random.nextBoolean() ? "male" : "female").append("(p").append(i).append(").\n");
+				facts++;
+				if(i > 0) {
+					// Each person has one or two parents among the earlier people
+					int parent = random.nextInt(i);
+					facts += edge(sb, "parent", "p", parent, i);
+					if(i > 1 && random.nextBoolean()) {
+						int other = random.nextInt(i);
+						if(other != parent) {
+							facts += edge(sb, "parent", "p", other, i);
+						}
+					}
+				}
+			}
+			sb.append("person(X) :- male(X).\n");
+			sb.append("person(X) :- female(X).\n");
+			sb.append("ancestor(X, Y) :- parent(X, Y).\n");
+			sb.append("ancestor(X, Y) :- ancestor(X, Z), parent(Z, Y).\n");
+			sb.append("haschild(X) :- parent(X, Y).\n");
+			sb.append("hasparent(X) :- parent(Y, X).\n");
+			sb.append("childless(X) :- person(X), not haschild(X).\n");
+			sb.append("founder(X) :- person(X), not hasparent(X).\n");
+			sb.append("lineage(X, Y) :- founder(X), ancestor(X, Y), childless(Y).\n");
+			query = "lineage(X, Y)?";
+			break;
+		case TRIANGLE:
+			facts += randomEdges(sb, random, size, 4 * size);
+			sb.append("triangle(X, Y, Z) :- edge(X, Y), edge(Y, Z), edge(Z, X).\n");
+			query = "triangle(X, Y, Z)?";
+			break;
+		case FOUR_CYCLE:
+			facts += randomEdges(sb, random, size, 2 * size);
+			sb.append("square(A, B, C, D) :- edge(A, B), edge(B, C), edge(C, D), edge(D, A).\n");
+			query = "square(A, B, C, D)?";
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown workload " + kind);
+		}
+		return new Workload(kind, size, sb.toString(), query, facts);
+	}
+
+	private static int edge(StringBuilder sb, String predicate, int from, int to) {
+		return edge(sb, predicate, "n", from, to);
+	}
+
+	private static int edge(StringBuilder sb, String predicate, String prefix, int from, int to) {
+		sb.append(predicate).append('(').append(prefix).append(from).append(", ").append(prefix).append(to).append(").\n");
+		return 1;
+	}
+
+	private static int randomEdges(StringBuilder sb, Random random, int nodes, int edges) {
+		Set<Long> seen = new HashSet<>();
+		int count = 0;
+		// Guard against asking for more edges than the graph can have
+		long max = (long) nodes * (nodes - 1);
+		while(count < edges && count < max) {
+			int from = random.nextInt(nodes), to = random.nextInt(nodes);
+			if(from != to && seen.add((long) from * nodes + to)) {
+				count += edge(sb, "edge", from, to);
+			}
+		}
+		return count;
+	}
+
+	private static void closureRules(StringBuilder sb) {
+		sb.append("path(X, Y) :- edge(X, Y).\n");
+		sb.append("path(X, Y) :- path(X, Z), edge(Z, Y).\n");
+	}
+
+	/**
+	 * Loads the workload's program into a new database.
+	 * @return the database
+	 * @throws DatalogException if the program can't be loaded
+	 */
+	public Jatalog load() throws DatalogException {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll(program);
+		return jatalog;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Retrieves the generated program: Facts and rules in the Datalog language
+	 * @return the program
+	 */
+	public String getProgram() {
+		return program;
+	}
+
+	/**
+	 * Retrieves the workload's query, in the Datalog language.
+	 * @return the query
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Retrieves the number of facts in the generated program.
+	 * @return the number of facts
+	 */
+	public int getFacts() {
+		return facts;
+	}
+
+	/**
+	 * Writes a generated program and its query to {@code System.out}.
+	 * @param args The kind of workload, its size and optionally the seed, for example {@code chain 1000 42}
+	 */
+	public static void main(String... args) {
+		if(args.length < 2) {
+			System.err.println("usage: Workload kind size [seed]");
+			System.err.println("  where kind is one of chain, tree, random_graph, same_generation, family_negation, triangle, four_cycle");
+			System.exit(1);
+		}
+		Kind kind = Kind.valueOf(args[0].toUpperCase());
+		int size = Integer.parseInt(args[1]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+		Workload workload = generate(kind, size, seed);
+		System.out.print(workload.getProgram());
+		System.out.println(workload.getQuery());
+	}
+}
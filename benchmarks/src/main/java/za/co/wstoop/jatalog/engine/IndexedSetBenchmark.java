@@ -0,0 +1,76 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import za.co.wstoop.jatalog.Expr;
+
+/**
+ * Benchmarks adding facts to an {@link IndexedSet} and looking them up again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexedSetBenchmark {
+
+	@Param({"1000", "100000"})
+	public int size;
+
+	private static final int PREDICATES = 10;
+
+	private List<Expr> facts;
+	private IndexedSet<Expr, String> set;
+	private Expr present;
+	private Expr absent;
+
+	@Setup
+	public void setup() {
+		facts = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			facts.add(Expr.expr("p" + (i % PREDICATES), "a" + i, "b" + (i / 2)));
+		}
+		set = new IndexedSet<>(facts);
+		present = Expr.expr("p3", "a" + 3, "b" + 1);
+		absent = Expr.expr("p3", "a" + 4, "b" + 2);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public IndexedSet<Expr, String> addAll() {
+		IndexedSet<Expr, String> result = new IndexedSet<>();
+		result.addAll(facts);
+		return result;
+	}
+
+	@Benchmark
+	public Set<Expr> getIndexed() {
+		return set.getIndexed("p3");
+	}
+
+	@Benchmark
+	public boolean containsPresent() {
+		return set.contains(present);
+	}
+
+	@Benchmark
+	public boolean containsAbsent() {
+		return set.contains(absent);
+	}
+}
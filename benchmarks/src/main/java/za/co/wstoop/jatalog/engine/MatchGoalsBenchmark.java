@@ -0,0 +1,85 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import za.co.wstoop.jatalog.BasicEdbProvider;
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.EdbProvider;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * Benchmarks {@link Engine#matchGoals(List, FactView, Map)}, the nested-loop join at the core of the engine,
+ * over a binary tree of {@code parent} facts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchGoalsBenchmark {
+
+	@Param({"100", "1000"})
+	public int size;
+
+	private FactView facts;
+
+	private final List<Expr> scan = Arrays.asList(Expr.expr("parent", "X", "Y"));
+	private final List<Expr> lookup = Arrays.asList(Expr.expr("parent", "n1", "Y"));
+	private final List<Expr> join = Arrays.asList(Expr.expr("parent", "X", "Z"), Expr.expr("parent", "Z", "Y"));
+	private final List<Expr> joinWithNegation = Arrays.asList(Expr.expr("parent", "X", "Z"), Expr.expr("parent", "Z", "Y"),
+			Expr.not("parent", "Y", "X"));
+	private final List<Expr> joinWithComparison = Arrays.asList(Expr.expr("parent", "X", "Z"), Expr.expr("parent", "Z", "Y"),
+			Expr.ne("X", "Y"));
+
+	@Setup
+	public void setup() {
+		EdbProvider edb = new BasicEdbProvider();
+		for(int i = 1; i < size; i++) {
+			edb.add(Expr.expr("parent", "n" + ((i - 1) / 2), "n" + i));
+		}
+		facts = new LayeredFactStore(edb);
+	}
+
+	@Benchmark
+	public Collection<Map<String, Term>> scan() throws DatalogException {
+		return Engine.matchGoals(scan, facts, null);
+	}
+
+	@Benchmark
+	public Collection<Map<String, Term>> lookup() throws DatalogException {
+		return Engine.matchGoals(lookup, facts, null);
+	}
+
+	@Benchmark
+	public Collection<Map<String, Term>> join() throws DatalogException {
+		return Engine.matchGoals(join, facts, null);
+	}
+
+	@Benchmark
+	public Collection<Map<String, Term>> joinWithNegation() throws DatalogException {
+		return Engine.matchGoals(joinWithNegation, facts, null);
+	}
+
+	@Benchmark
+	public Collection<Map<String, Term>> joinWithComparison() throws DatalogException {
+		return Engine.matchGoals(joinWithComparison, facts, null);
+	}
+}
@@ -0,0 +1,87 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link StackMap} against the alternatives for the nested variable bindings that the engine
+ * creates for every candidate fact of every goal.
+ * <p>
+ * Each benchmark builds a chain of {@code depth} scopes, binding one more variable in each scope and
+ * then looking up all the variables bound so far, which is what happens while the goals of a rule body are matched.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackMapBenchmark {
+
+	@Param({"2", "4", "8"})
+	public int depth;
+
+	private static final String[] VARIABLES = {"A", "B", "C", "D", "E", "F", "G", "H"};
+	private static final String[] VALUES = {"a", "b", "c", "d", "e", "f", "g", "h"};
+
+	@Benchmark
+	public int stackMap() {
+		int found = 0;
+		Map<String, String> bindings = new StackMap<>();
+		for(int i = 0; i < depth; i++) {
+			bindings = new StackMap<>(bindings);
+			bindings.put(VARIABLES[i], VALUES[i]);
+			for(int j = 0; j <= i; j++) {
+				if(bindings.get(VARIABLES[j]) != null)
+					found++;
+			}
+		}
+		return found;
+	}
+
+	@Benchmark
+	public int copiedHashMap() {
+		int found = 0;
+		Map<String, String> bindings = new HashMap<>();
+		for(int i = 0; i < depth; i++) {
+			bindings = new HashMap<>(bindings);
+			bindings.put(VARIABLES[i], VALUES[i]);
+			for(int j = 0; j <= i; j++) {
+				if(bindings.get(VARIABLES[j]) != null)
+					found++;
+			}
+		}
+		return found;
+	}
+
+	@Benchmark
+	public int sharedHashMapWithUndo() {
+		// A single map that is modified in place, with the bindings removed again when a scope is left
+		int found = 0;
+		Map<String, String> bindings = new HashMap<>();
+		for(int i = 0; i < depth; i++) {
+			bindings.put(VARIABLES[i], VALUES[i]);
+			for(int j = 0; j <= i; j++) {
+				if(bindings.get(VARIABLES[j]) != null)
+					found++;
+			}
+		}
+		for(int i = depth - 1; i >= 0; i--) {
+			bindings.remove(VARIABLES[i]);
+		}
+		return found;
+	}
+}
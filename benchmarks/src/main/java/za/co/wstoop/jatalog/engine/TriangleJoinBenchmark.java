@@ -0,0 +1,67 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import za.co.wstoop.jatalog.BasicEdbProvider;
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.EdbProvider;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * Compares the nested loop of {@link Engine#matchGoals(List, FactView, Map)} with {@link LeapfrogJoin} on
+ * the triangle query {@code e(X, Y), e(Y, Z), e(Z, X)} over a random graph with an average out-degree of 10.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TriangleJoinBenchmark {
+
+	@Param({"1000", "10000"})
+	public int edges;
+
+	private FactView facts;
+
+	private final List<Expr> triangle = Arrays.asList(Expr.expr("e", "X", "Y"), Expr.expr("e", "Y", "Z"), Expr.expr("e", "Z", "X"));
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		int nodes = edges / 10;
+		EdbProvider edb = new BasicEdbProvider();
+		for(int i = 0; i < edges; i++) {
+			edb.add(Expr.expr("e", random.nextInt(nodes), random.nextInt(nodes)));
+		}
+		facts = new LayeredFactStore(edb);
+	}
+
+	@Benchmark
+	public Collection<Map<String, Term>> nestedLoop() throws DatalogException {
+		return Engine.matchGoals(triangle, facts, null);
+	}
+
+	@Benchmark
+	public Collection<Map<String, Term>> leapfrog() throws DatalogException {
+		return LeapfrogJoin.join(triangle, facts, null, new QueryContext());
+	}
+}
@@ -0,0 +1,238 @@
+package za.co.wstoop.jatalog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An aggregate term in the head of a rule, like {@code count(Y)} in {@code descendants(X, count(Y)) :- ancestor(X, Y).}
+ * <p>
+ * The other terms in the head of a rule with aggregates are the <i>grouping</i> variables: The bindings of the rule's
+ * body are grouped by the values of those variables, and for each group the rule derives a single fact in which each
+ * aggregate term is replaced by the aggregate of its variable's values over the group's bindings. The supported 
+ * functions are:
+ * </p>
+ * <ul>
+ * <li> {@code count(Y)} - the number of bindings in the group.
+ * <li> {@code sum(Y)} and {@code avg(Y)} - the sum and the average of the values of Y, which must be numeric.
+ * 	The sum of {@link Term.Type#LONG} values is exact and is a {@code LONG}, unless it overflows; if any of the
+ * 	values is a {@link Term.Type#DOUBLE} the sum is a {@code DOUBLE}. The average is a {@code LONG} only if the
+ * 	values are {@code LONG}s and their sum divides evenly.
+ * <li> {@code min(Y)} and {@code max(Y)} - the smallest and largest values of Y. The values are compared as 
+ * 	numbers if they are all numeric, and as strings otherwise.
+ * </ul>
+ * <p>
+ * Aggregates are computed over the bindings of the body, so duplicate values are counted; if the body is 
+ * {@code sale(Item, Price)} then {@code sum(Price)} adds up the prices of all the items, even if some of them
+ * have the same price.
+ * </p><p>
+ * A rule with aggregates can only be evaluated once all the facts its body depends on have been derived, so the
+ * engine stratifies it as if all the expressions in its body were negated: A predicate cannot be recursive through
+ * an aggregate.
+ * </p><p>
+ * Aggregate terms are represented as the strings {@code "count(Y)"} etc. in the terms of the head's {@link Expr},
+ * which is also how they are written, and {@link #parse(String)} recognizes them.
+ * </p>
+ */
+public class Aggregate {
+
+	/**
+	 * The aggregate functions.
+	 */
+	public enum Function {
+		COUNT, SUM, MIN, MAX, AVG;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static final Pattern aggregatePattern = Pattern.compile("(count|sum|min|max|avg)\\(([A-Z]\\w*)\\)");
+
+	private final Function function;
+	private final String variable;
+
+	/**
+	 * Constructor.
+	 * @param function The aggregate function
+	 * @param variable The variable whose values are aggregated
+	 */
+	public Aggregate(Function function, String variable) {
+		this.function = function;
+		this.variable = variable;
+	}
+
+	/**
+	 * Recognizes an aggregate term.
+	 * @param term The term
+	 * @return the aggregate, or null if the term is not an aggregate
+	 */
+	public static Aggregate parse(String term) {
+		if(!term.endsWith(")")) {
+			return null;
+		}
+		Matcher matcher = aggregatePattern.matcher(term);
+		if(!matcher.matches()) {
+			return null;
+		}
+		return new Aggregate(Function.valueOf(matcher.group(1).toUpperCase()), matcher.group(2));
+	}
+
+	/**
+	 * Checks whether a function name is one of the aggregate functions.
+	 * @param name The name, like {@code "count"}
+	 * @return true if it is an aggregate function
+	 */
+	public static boolean isFunction(String name) {
+		for(Function function : Function.values()) {
+			if(function.toString().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether any of the terms of an expression are aggregates.
+	 * @param expr The expression
+	 * @return true if the expression contains aggregates
+	 */
+	public static boolean hasAggregates(Expr expr) {
+		for(String term : expr.getTerms()) {
+			if(parse(term) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Retrieves the aggregate terms of an expression.
+	 * @param expr The expression
+	 * @return a list with an entry for each term of the expression, which is null if the term is not an aggregate.
+	 */
+	public static List<Aggregate> getAggregates(Expr expr) {
+		List<Aggregate> aggregates = new ArrayList<>(expr.arity());
+		for(String term : expr.getTerms()) {
+			aggregates.add(parse(term));
+		}
+		return aggregates;
+	}
+
+	/**
+	 * Retrieves the aggregate function.
+	 * @return the function
+	 */
+	public Function getFunction() {
+		return function;
+	}
+
+	/**
+	 * Retrieves the variable whose values are aggregated.
+	 * @return the variable
+	 */
+	public String getVariable() {
+		return variable;
+	}
+
+	/**
+	 * Creates an accumulator that computes this aggregate over a group of values.
+	 * @return a new accumulator
+	 */
+	public Accumulator newAccumulator() {
+		return new Accumulator(function);
+	}
+
+	@Override
+	public String toString() {
+		return function + "(" + variable + ")";
+	}
+
+	/**
+	 * Computes an aggregate over the values of a group, which are added one at a time.
+	 */
+	public static class Accumulator {
+		private final Function function;
+		private long count;
+		// The sum is kept exactly in a long while all the values are longs, and in a double from the first value that isn't
+		private long longSum;
+		private double doubleSum;
+		private boolean exact = true;
+		// The smallest or largest value so far, compared as numbers and compared as strings
+		private Term numericExtreme, stringExtreme;
+		private boolean numeric = true;
+
+		Accumulator(Function function) {
+			this.function = function;
+		}
+
+		/**
+		 * Adds a value to the group.
+		 * @param value The value
+		 * @throws DatalogException if the function is {@code sum} or {@code avg} and the value is not numeric.
+		 */
+		public void add(Term value) throws DatalogException {
+			count++;
+			switch(function) {
+			case COUNT:
+				break;
+			case SUM:
+			case AVG:
+				if(!value.isNumeric()) {
+					throw new DatalogException("Value " + value + " of " + function + "() is not numeric");
+				}
+				if(exact && value.getType() == Term.Type.LONG) {
+					long l = ((Long)value.getValue()).longValue();
+					try {
+						longSum = Math.addExact(longSum, l);
+						break;
+					} catch (ArithmeticException e) {
+						// Too large for a long
+					}
+				}
+				if(exact) {
+					exact = false;
+					doubleSum = longSum;
+				}
+				doubleSum += value.toDouble();
+				break;
+			case MIN:
+			case MAX:
+				int sign = function == Function.MIN ? -1 : 1;
+				if(stringExtreme == null || Integer.signum(value.getText().compareTo(stringExtreme.getText())) == sign) {
+					stringExtreme = value;
+				}
+				if(numeric && value.isNumeric()) {
+					if(numericExtreme == null || Integer.signum(value.compareNumerically(numericExtreme)) == sign) {
+						numericExtreme = value;
+					}
+				} else {
+					numeric = false;
+				}
+				break;
+			}
+		}
+
+		/**
+		 * Retrieves the value of the aggregate over the values added so far.
+		 * @return the value, as a term of a fact
+		 */
+		public Term result() {
+			switch(function) {
+			case COUNT:
+				return Term.of(count);
+			case SUM:
+				return exact ? Term.of(longSum) : Term.of(doubleSum);
+			case AVG:
+				if(exact) {
+					return longSum % count == 0 ? Term.of(longSum / count) : Term.of((double)longSum / count);
+				}
+				return Term.of(doubleSum / count);
+			default:
+				return numeric ? numericExtreme : stringExtreme;
+			}
+		}
+	}
+}
@@ -1,16 +1,32 @@
 package za.co.wstoop.jatalog;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import za.co.wstoop.jatalog.engine.IndexedSet;
+import za.co.wstoop.jatalog.engine.RangeIndex;
 
 /**
  * Implementation of {@link EdbProvider} that wraps around an {@link IndexedSet}
  * for an in-memory EDB.
+ * <p>
+ * Columns of predicates can optionally be indexed with a {@link RangeIndex} through 
+ * {@link #addRangeIndex(String, int)}, so that the engine can serve comparisons with range scans.
+ * </p><p>
+ * The provider tracks the {@link #getVersion(String) version} of each predicate's facts: A counter that
+ * is shared by all the predicates is incremented whenever facts are added or removed, and becomes the 
+ * version of their predicates.
+ * </p>
  */
 public class BasicEdbProvider implements EdbProvider {
 
 	private IndexedSet<Expr, String> edb;
+	private Map<String, List<RangeIndex>> rangeIndexes = new HashMap<>();
+	private Map<String, Long> versions = new HashMap<>();
+	private long clock;
 	
 	public BasicEdbProvider() {
 		edb = new IndexedSet<Expr, String>();
@@ -23,17 +39,91 @@ public class BasicEdbProvider implements EdbProvider {
 
 	@Override
 	public void add(Expr fact) {
-		edb.add(fact);
+		if(edb.add(fact)) {
+			versions.put(fact.getPredicate(), ++clock);
+			List<RangeIndex> indexes = rangeIndexes.get(fact.getPredicate());
+			if(indexes != null) {
+				for(RangeIndex index : indexes) {
+					index.add(fact);
+				}
+			}
+		}
 	}
 
 	@Override
 	public boolean removeAll(Collection<Expr> facts) {
+		long version = clock + 1;
+		for(Expr fact : facts) {
+			if(edb.contains(fact)) {
+				clock = version;
+				versions.put(fact.getPredicate(), version);
+			}
+			List<RangeIndex> indexes = rangeIndexes.get(fact.getPredicate());
+			if(indexes != null) {
+				for(RangeIndex index : indexes) {
+					index.remove(fact);
+				}
+			}
+		}
 		return edb.removeAll(facts);
 	}
 
+	/**
+	 * Creates a sorted index on a column of the facts of a predicate, if there isn't one already.
+	 * The index contains the facts already in the database and is maintained as facts are added and removed.
+	 * @param predicate The predicate of the facts
+	 * @param column The position of the indexed term, starting at 0
+	 */
+	public void addRangeIndex(String predicate, int column) {
+		if(hasRangeIndex(predicate, column)) {
+			return;
+		}
+		RangeIndex index = new RangeIndex(column);
+		for(Expr fact : edb.getIndexed(predicate)) {
+			index.add(fact);
+		}
+		rangeIndexes.computeIfAbsent(predicate, k -> new ArrayList<>()).add(index);
+	}
+
+	@Override
+	public long getVersion(String predicate) {
+		return versions.getOrDefault(predicate, 0L);
+	}
+
+	@Override
+	public boolean hasRangeIndex(String predicate, int column) {
+		return getRangeIndex(predicate, column) != null;
+	}
+
+	@Override
+	public Collection<Expr> getFacts(String predicate, int column, Term low, Term high) {
+		RangeIndex index = getRangeIndex(predicate, column);
+		if(index == null) {
+			return getFacts(predicate);
+		}
+		return index.getRange(low, high);
+	}
+
+	private RangeIndex getRangeIndex(String predicate, int column) {
+		List<RangeIndex> indexes = rangeIndexes.get(predicate);
+		if(indexes != null) {
+			for(RangeIndex index : indexes) {
+				if(index.getColumn() == column) {
+					return index;
+				}
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public Collection<Expr> getFacts(String predicate) {
 		return edb.getIndexed(predicate);
 	}
 
+	@Override
+	public boolean contains(Expr fact) {
+		return edb.contains(fact);
+	}
+
 }
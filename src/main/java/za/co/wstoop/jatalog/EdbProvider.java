@@ -41,4 +41,60 @@ public interface EdbProvider {
 	 * @return A collection of facts matching the {@code predicate}
 	 */
 	public Collection<Expr> getFacts(String predicate);
+
+	/**
+	 * Checks whether a fact is in the database.
+	 * <p>
+	 * The engine calls this for every fact that it derives, so implementations whose {@link #getFacts(String)} 
+	 * doesn't return a {@code Set} should override it with something more efficient.
+	 * </p>
+	 * @param fact The fact to look for
+	 * @return true if the fact is in the EDB
+	 */
+	default public boolean contains(Expr fact) {
+		return getFacts(fact.getPredicate()).contains(fact);
+	}
+
+	/**
+	 * Checks whether the facts of a predicate are indexed by the values in a column, so that the engine can 
+	 * use a range scan to match them with the comparison built-in predicates.
+	 * @param predicate The predicate
+	 * @param column The position of the term, starting at 0
+	 * @return true if {@link #getFacts(String, int, Term, Term)} uses an index for the column
+	 * @see za.co.wstoop.jatalog.engine.RangeIndex
+	 */
+	default public boolean hasRangeIndex(String predicate, int column) {
+		return false;
+	}
+
+	/**
+	 * Retrieves the facts with a specific predicate whose term in a column lies in a range.
+	 * <p>
+	 * The result may contain facts outside the range; Providers without an index on the column 
+	 * simply return {@link #getFacts(String)}.
+	 * </p>
+	 * @param predicate The predicate of the facts to be retrieved.
+	 * @param column The position of the term, starting at 0
+	 * @param low The inclusive lower bound, or null if the range has none
+	 * @param high The inclusive upper bound, or null if the range has none
+	 * @return A collection of facts that contains all the facts in the range
+	 */
+	default public Collection<Expr> getFacts(String predicate, int column, Term low, Term high) {
+		return getFacts(predicate);
+	}
+
+	/**
+	 * Retrieves the version of the facts of a predicate, which changes whenever facts with the predicate are 
+	 * added or removed. Versions only ever increase.
+	 * <p>
+	 * The engine uses the versions to determine whether results that it computed earlier are still valid,
+	 * like the answers in a {@link za.co.wstoop.jatalog.engine.QueryCache}. Providers that don't track changes 
+	 * return -1, which means that the facts may have changed at any time.
+	 * </p>
+	 * @param predicate The predicate
+	 * @return the version, or -1 if the provider doesn't track changes
+	 */
+	default public long getVersion(String predicate) {
+		return -1;
+	}
 }
@@ -1,7 +1,8 @@
 package za.co.wstoop.jatalog;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -17,12 +18,17 @@ import za.co.wstoop.jatalog.engine.Indexable;
  * not.
  * </p><p>
  * The number of terms is the expression's <i>arity</i>.
+ * </p><p>
+ * The terms are classified into {@link Term}s when the expression is created, so that the engine can compare
+ * them without parsing them again. The methods that take bindings as {@code Map<String, String>} are the 
+ * public API; the engine uses the equivalent methods that take {@code Map<String, Term>} bindings, like 
+ * {@link #unifyTerms(Expr, Map)}.
  * </p>
  */
 public class Expr implements Indexable<String> {
 
     private String predicate;
-    private List<String> terms;
+    private Term[] terms;
 
     protected boolean negated = false;
 
@@ -38,7 +44,27 @@ public class Expr implements Indexable<String> {
         if(this.predicate.equals("!=")) {
             this.predicate = "<>";
         }
+        this.terms = new Term[terms.size()];
+        for(int i = 0; i < this.terms.length; i++) {
+            this.terms[i] = Term.parse(terms.get(i));
+        }
+    }
+
+    /* Constructor for expressions whose terms have already been classified */
+    private Expr(String predicate, Term[] terms, boolean negated) {
+        this.predicate = predicate.equals("!=") ? "<>" : predicate;
         this.terms = terms;
+        this.negated = negated;
+    }
+
+    /**
+     * Creates an expression from terms that have already been classified.
+     * @param predicate The predicate of the expression.
+     * @param terms The terms of the expression.
+     * @return the new expression
+     */
+    public static Expr of(String predicate, Term... terms) {
+        return new Expr(predicate, terms.clone(), false);
     }
 
     /**
@@ -59,7 +85,7 @@ public class Expr implements Indexable<String> {
      * @return the arity
      */
     public int arity() {
-        return terms.size();
+        return terms.length;
     }
 
     /**
@@ -67,8 +93,8 @@ public class Expr implements Indexable<String> {
      * @return true if the expression is ground
      */
     public boolean isGround() {
-        for(String term : terms) {
-            if(Jatalog.isVariable(term))
+        for(Term term : terms) {
+            if(term.isVariable())
                 return false;
         }
         return true;
@@ -107,8 +133,8 @@ public class Expr implements Indexable<String> {
             return false;
         }
         for(int i = 0; i < this.arity(); i++) {
-            String term1 = this.terms.get(i);
-            String term2 = that.terms.get(i);
+            String term1 = this.terms[i].getText();
+            String term2 = that.terms[i].getText();
             if(Jatalog.isVariable(term1)) {
                 if(!term1.equals(term2)) {
                     if(!bindings.containsKey(term1)) {
@@ -130,28 +156,98 @@ public class Expr implements Indexable<String> {
         return true;
     }
 
+    /**
+     * Unifies {@code this} expression with another expression, with bindings of variables to typed terms.
+     * This is the equivalent of {@link #unify(Expr, Map)} that the engine uses.
+     * @param that The expression to unify with
+     * @param bindings The bindings of variables to terms after unification
+     * @return true if the expressions unify.
+     */
+    public boolean unifyTerms(Expr that, Map<String, Term> bindings) {
+        if(!this.predicate.equals(that.predicate) || this.terms.length != that.terms.length) {
+            return false;
+        }
+        for(int i = 0; i < this.terms.length; i++) {
+            Term term1 = this.terms[i];
+            Term term2 = that.terms[i];
+            if(term1.isVariable()) {
+                if(!term1.equals(term2)) {
+                    Term bound = bindings.get(term1.getText());
+                    if(bound == null) {
+                        bindings.put(term1.getText(), term2);
+                    } else if (!bound.equals(term2)) {
+                        return false;
+                    }
+                }
+            } else if(term2.isVariable()) {
+                Term bound = bindings.get(term2.getText());
+                if(bound == null) {
+                    bindings.put(term2.getText(), term1);
+                } else if (!bound.equals(term1)) {
+                    return false;
+                }
+            } else if (!term1.equals(term2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Substitutes the variables in this expression with bindings from a unification.
      * @param bindings The bindings to substitute.
      * @return A new expression with the variables replaced with the values in bindings.
      */
     public Expr substitute(Map<String, String> bindings) {
-        // that.terms.add() below doesn't work without the new ArrayList()
-        Expr that = new Expr(this.predicate, new ArrayList<>());
-        that.negated = negated;
-        for(String term : this.terms) {
-            String value;
-            if(Jatalog.isVariable(term)) {
-                value = bindings.get(term);
-                if(value == null) {
-                    value = term;
-                }
-            } else {
-                value = term;
-            }
-            that.terms.add(value);
+        Term[] values = new Term[terms.length];
+        for(int i = 0; i < terms.length; i++) {
+            String value = terms[i].isVariable() ? bindings.get(terms[i].getText()) : null;
+            values[i] = value != null ? Term.parse(value) : terms[i];
+        }
+        return new Expr(predicate, values, negated);
+    }
+
+    /**
+     * Substitutes the variables in this expression with bindings of variables to typed terms.
+     * This is the equivalent of {@link #substitute(Map)} that the engine uses.
+     * @param bindings The bindings to substitute.
+     * @return A new expression with the variables replaced with the values in bindings.
+     */
+    public Expr substituteTerms(Map<String, Term> bindings) {
+        Term[] values = new Term[terms.length];
+        for(int i = 0; i < terms.length; i++) {
+            Term value = terms[i].isVariable() ? bindings.get(terms[i].getText()) : null;
+            values[i] = value != null ? value : terms[i];
         }
-        return that;
+        return new Expr(predicate, values, negated);
+    }
+
+    /**
+     * Substitutes the variables in this expression with bindings of variables to typed terms, writing the 
+     * values into a reusable tuple instead of allocating a new expression.
+     * <p>
+     * The engine uses this to probe whether a rule's head has already been derived before it allocates a fact.
+     * The tuple must not be stored anywhere whose contents depend on its hash code, such as a set, since its terms 
+     * change with every call; use {@link #copy()} to make a fact of it.
+     * </p>
+     * @param bindings The bindings to substitute.
+     * @param tuple An expression with the same predicate and arity as this one, typically created by {@link #copy()}.
+     * @return {@code tuple}, with its terms overwritten by the values in bindings.
+     */
+    public Expr substituteTerms(Map<String, Term> bindings, Expr tuple) {
+        for(int i = 0; i < terms.length; i++) {
+            Term value = terms[i].isVariable() ? bindings.get(terms[i].getText()) : null;
+            tuple.terms[i] = value != null ? value : terms[i];
+        }
+        return tuple;
+    }
+
+    /**
+     * Creates a copy of this expression that doesn't share its terms with this one.
+     * @return the copy
+     */
+    public Expr copy() {
+        return new Expr(predicate, terms.clone(), negated);
     }
 
     /**
@@ -160,76 +256,78 @@ public class Expr implements Indexable<String> {
      * @return true if the operator matched.
      */
     public boolean evalBuiltIn(Map<String, String> bindings) {
-    	// This method may throw a RuntimeException for a variety of possible reasons, but 
-    	// these conditions are supposed to have been caught earlier in the chain by 
-    	// methods such as Rule#validate().
-    	// The RuntimeException is a requirement of using the Streams API.
-    	String term1 = terms.get(0);
-        if(Jatalog.isVariable(term1) && bindings.containsKey(term1))
-            term1 = bindings.get(term1);
-        String term2 = terms.get(1);
-        if(Jatalog.isVariable(term2) && bindings.containsKey(term2))
-            term2 = bindings.get(term2);
+        Term term1 = terms[0];
+        if(term1.isVariable() && bindings.containsKey(term1.getText()))
+            term1 = Term.parse(bindings.get(term1.getText()));
+        Term term2 = terms[1];
+        if(term2.isVariable() && bindings.containsKey(term2.getText()))
+            term2 = Term.parse(bindings.get(term2.getText()));
         if(predicate.equals("=")) {
-            // '=' is special
-            if(Jatalog.isVariable(term1)) {
-                if(Jatalog.isVariable(term2)) {
-                	// Rule#validate() was supposed to catch this condition
-                    throw new RuntimeException("Both operands of '=' are unbound (" + term1 + ", " + term2 + ") in evaluation of " + this);
-                }
-                bindings.put(term1, term2);
+            // '=' is special: It binds an unbound variable
+            if(term1.isVariable() && !term2.isVariable()) {
+                bindings.put(term1.getText(), term2.getText());
                 return true;
-            } else if(Jatalog.isVariable(term2)) {
-                bindings.put(term2, term1);
+            } else if(term2.isVariable() && !term1.isVariable()) {
+                bindings.put(term2.getText(), term1.getText());
                 return true;
-            } else {
-				if (Parser.tryParseDouble(term1) && Parser.tryParseDouble(term2)) {
-					double d1 = Double.parseDouble(term1);
-					double d2 = Double.parseDouble(term2);
-					return d1 == d2;
-				} else {
-					return term1.equals(term2);
-				}
             }
-        } else {
-            try {
-            	
-            	// These errors can be detected in the validate method:
-                if(Jatalog.isVariable(term1) || Jatalog.isVariable(term2)) {
-                	// Rule#validate() was supposed to catch this condition
-                	throw new RuntimeException("Unbound variable in evaluation of " + this);
-                }
-                
-                if(predicate.equals("<>")) {
-                    // '<>' is also a bit special
-                    if(Parser.tryParseDouble(term1) && Parser.tryParseDouble(term2)) {
-                            double d1 = Double.parseDouble(term1);
-                            double d2 = Double.parseDouble(term2);
-                            return d1 != d2;
-                    } else {
-                        return !term1.equals(term2);
-                    }
-                } else {
-                    // Ordinary comparison operator
-                	// If the term doesn't parse to a double it gets treated as 0.0.
-                	double d1 = 0.0, d2 = 0.0;
-                    if(Parser.tryParseDouble(term1)) {
-                    	d1 = Double.parseDouble(term1);
-                    }
-                    if(Parser.tryParseDouble(term2)) {
-                    	d2 = Double.parseDouble(term2);
-                    }
-                    switch(predicate) {
-                        case "<": return d1 < d2;
-                        case "<=": return d1 <= d2;
-                        case ">": return d1 > d2;
-                        case ">=": return d1 >= d2;
-                    }
-                }
-            } catch (NumberFormatException e) {
-                // You found a way to write a double in a way that the regex in tryParseDouble() doesn't understand.
-                throw new RuntimeException("tryParseDouble() experienced a false positive!?", e);
+        }
+        return evalOperator(term1, term2);
+    }
+
+    /**
+     * Evaluates a built-in predicate with bindings of variables to typed terms.
+     * This is the equivalent of {@link #evalBuiltIn(Map)} that the engine uses.
+     * @param bindings A map of variable bindings 
+     * @return true if the operator matched.
+     */
+    public boolean evalBuiltInTerms(Map<String, Term> bindings) {
+        Term term1 = terms[0];
+        if(term1.isVariable()) {
+            Term bound = bindings.get(term1.getText());
+            if(bound != null)
+                term1 = bound;
+        }
+        Term term2 = terms[1];
+        if(term2.isVariable()) {
+            Term bound = bindings.get(term2.getText());
+            if(bound != null)
+                term2 = bound;
+        }
+        if(predicate.equals("=")) {
+            // '=' is special: It binds an unbound variable
+            if(term1.isVariable() && !term2.isVariable()) {
+                bindings.put(term1.getText(), term2);
+                return true;
+            } else if(term2.isVariable() && !term1.isVariable()) {
+                bindings.put(term2.getText(), term1);
+                return true;
+            }
+        }
+        return evalOperator(term1, term2);
+    }
+
+    /* Evaluates the operator of a built-in predicate on its operands, after the bindings have been applied */
+    private boolean evalOperator(Term term1, Term term2) {
+    	// This method may throw a RuntimeException for a variety of possible reasons, but 
+    	// these conditions are supposed to have been caught earlier in the chain by 
+    	// methods such as Rule#validate().
+    	// The RuntimeException is a requirement of using the Streams API.
+        if(term1.isVariable() || term2.isVariable()) {
+            if(predicate.equals("=")) {
+                throw new RuntimeException("Both operands of '=' are unbound (" + term1 + ", " + term2 + ") in evaluation of " + this);
             }
+            throw new RuntimeException("Unbound variable in evaluation of " + this);
+        }
+        switch(predicate) {
+            // '=' and '<>' compare numbers by value, and other terms by equality
+            case "=": return term1.equalsValue(term2);
+            case "<>": return !term1.equalsValue(term2);
+            // Ordinary comparison operators. If a term isn't numeric it gets treated as 0.0.
+            case "<": return term1.compareNumerically(term2) < 0;
+            case "<=": return term1.compareNumerically(term2) <= 0;
+            case ">": return term1.compareNumerically(term2) > 0;
+            case ">=": return term1.compareNumerically(term2) >= 0;
         }
         throw new RuntimeException("Unimplemented built-in predicate " + predicate);
     }
@@ -238,10 +336,40 @@ public class Expr implements Indexable<String> {
 		return predicate;
 	}
     
+    /**
+     * Retrieves the textual forms of the terms of the expression.
+     * @return an unmodifiable list of the terms' texts; see {@link Term#getText()}
+     */
     public List<String> getTerms() {
-		return terms;
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				return terms[index].getText();
+			}
+			@Override
+			public int size() {
+				return terms.length;
+			}
+		};
 	}
 
+    /**
+     * Retrieves a term of the expression.
+     * @param index The position of the term
+     * @return the term
+     */
+    public Term getTerm(int index) {
+        return terms[index];
+    }
+
+    /**
+     * Retrieves the typed terms of the expression.
+     * @return an unmodifiable list of the terms
+     */
+    public List<Term> getTypedTerms() {
+        return Collections.unmodifiableList(Arrays.asList(terms));
+    }
+
     @Override
     public boolean equals(Object other) {
         if(other == null || !(other instanceof Expr)) {
@@ -254,8 +382,8 @@ public class Expr implements Indexable<String> {
         if(arity() != that.arity() || negated != that.negated) {
             return false;
         }
-        for(int i = 0; i < terms.size(); i++) {
-            if(!terms.get(i).equals(that.terms.get(i))) {
+        for(int i = 0; i < terms.length; i++) {
+            if(!terms[i].equals(that.terms[i])) {
                 return false;
             }
         }
@@ -265,7 +393,7 @@ public class Expr implements Indexable<String> {
     @Override
     public int hashCode() {
         int hash = predicate.hashCode();
-        for(String term : terms) {
+        for(Term term : terms) {
             hash += term.hashCode();
         }
         return hash;
@@ -278,15 +406,14 @@ public class Expr implements Indexable<String> {
             sb.append("not ");
         }
         if(isBuiltIn()) {
-            termToString(sb, terms.get(0));
+            termToString(sb, terms[0].getText());
             sb.append(" ").append(predicate).append(" ");
-            termToString(sb, terms.get(1));
+            termToString(sb, terms[1].getText());
         } else {
             sb.append(predicate).append('(');
-            for(int i = 0; i < terms.size(); i++) {
-                String term = terms.get(i);
-                termToString(sb, term);
-                if(i < terms.size() - 1) {
+            for(int i = 0; i < terms.length; i++) {
+                termToString(sb, terms[i].getText());
+                if(i < terms.length - 1) {
                     sb.append(", ");
                 }
             }
@@ -296,11 +423,11 @@ public class Expr implements Indexable<String> {
     }
 
     /* Converts a term to a string. If it started as a quoted string it is now enclosed in quotes,
-     * and other quotes escaped.
+     * and other quotes and line breaks escaped, so that a statement is always a single line.
      * caveat: You're going to have trouble if you have other special characters in your strings */
     private static StringBuilder termToString(StringBuilder sb, String term) {
         if(term.startsWith("\""))
-            sb.append('"').append(term.substring(1).replaceAll("\"", "\\\\\"")).append('"');
+            sb.append('"').append(term.substring(1).replaceAll("\"", "\\\\\"").replace("\n", "\\n").replace("\r", "\\r")).append('"');
         else
             sb.append(term);
         return sb;
@@ -317,6 +444,22 @@ public class Expr implements Indexable<String> {
 		return new Expr(predicate, terms);
 	}
 
+	/**
+	 * Helper method for creating a new expression with typed terms, like {@code expr("age", "alice", 42)}.
+	 * This method is part of the fluent API intended for {@code import static}
+	 * @param predicate The predicate of the expression.
+	 * @param terms The terms of the expression, which are converted through {@link Term#of(Object)}; 
+	 * 	Strings are parsed, so they can be variables.
+	 * @return the new expression
+	 */
+	public static Expr expr(String predicate, Object... terms) {
+		Term[] values = new Term[terms.length];
+		for(int i = 0; i < terms.length; i++) {
+			values[i] = Term.of(terms[i]);
+		}
+		return new Expr(predicate, values, false);
+	}
+
     /**
      * Static method for constructing negated expressions in the fluent API.
      * Negated expressions are of the form {@code not predicate(term1, term2,...)}.
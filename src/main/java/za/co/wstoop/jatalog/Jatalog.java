@@ -4,16 +4,38 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 import za.co.wstoop.jatalog.engine.BasicEngine;
 import za.co.wstoop.jatalog.engine.Engine;
+import za.co.wstoop.jatalog.engine.QueryCache;
+import za.co.wstoop.jatalog.engine.QueryContext;
+import za.co.wstoop.jatalog.engine.QueryLimits;
+import za.co.wstoop.jatalog.engine.QueryMetrics;
+import za.co.wstoop.jatalog.engine.QueryPlan;
+import za.co.wstoop.jatalog.engine.QueryProfile;
+import za.co.wstoop.jatalog.engine.RuleCatalog;
 import za.co.wstoop.jatalog.output.QueryOutput;
 import za.co.wstoop.jatalog.output.OutputUtils;
 import za.co.wstoop.jatalog.statement.Statement;
@@ -68,15 +90,55 @@ import za.co.wstoop.jatalog.statement.Statement;
  * </p> 
  * <h3>The Fluent API</h3>
  * Several methods exist to make it easy to use Jatalog from a Java program without invoking the parser.
+ * <h3>Concurrency</h3>
+ * Queries may be executed concurrently from several threads, while facts and rules are added and deleted under an
+ * exclusive lock. Methods like {@link #queryAsync(List, Map)} and {@link #loadAsync(Collection)} run on an 
+ * {@link #setExecutor(Executor) executor} and return a {@link CompletableFuture}, for callers that can't block.
+ * <h3>Durability</h3>
+ * The database is kept in memory. Changes to the facts and rules can be written to a {@link WriteAheadLog}, from which
+ * the database is {@link WriteAheadLog#recover(Path) recovered} on top of the last {@link #checkpoint(Path) snapshot}.
  * <hr>
  * <i>I tried to stick to [ceri]'s definitions, but what they call literals ended up being called <b>expressions</b> in Jatalog. See {@link Expr}</i>
  */
 public class Jatalog {
 
 	private EdbProvider edbProvider;   // Facts
-    private Collection<Rule> idb;      // Rules
+    private RuleCatalog idb;           // Rules
     
     private Engine engine = new BasicEngine();
+
+    private QueryLimits queryLimits = QueryLimits.NONE;
+
+    private Set<String> densePredicates = new HashSet<>();
+
+    private volatile QueryCache queryCache;
+
+    // Queries hold the read lock; changes to the facts, rules and indexes hold the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile WriteAheadLog writeAheadLog;
+
+    private volatile Executor executor;
+
+    /* The default executor of the asynchronous methods, which is only created when it is first used: A pool 
+     * with a thread per processor, whose threads don't keep the JVM alive. The tasks that wait for a thread are 
+     * queued up to a few times the number of threads, after which new tasks are rejected, so that an overload 
+     * shows up as futures that complete exceptionally instead of a queue that grows without bound. */
+    private static class DefaultExecutor {
+        private static final AtomicInteger threads = new AtomicInteger();
+        static final ExecutorService POOL;
+        static {
+            int size = Runtime.getRuntime().availableProcessors();
+            int capacity = Math.max(size * 8, 64);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacity), runnable -> {
+                Thread thread = new Thread(runnable, "jatalog-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            POOL = pool;
+        }
+    }
     
     /**
      * Default constructor.
@@ -86,7 +148,7 @@ public class Jatalog {
      */
     public Jatalog() {
         this.edbProvider = new BasicEdbProvider();
-        this.idb = new ArrayList<>();
+        this.idb = new RuleCatalog();
     }
 
     /**
@@ -120,6 +182,9 @@ public class Jatalog {
 				output.writeResult(statement, answers);
 			}
 			return answers;
+		} catch (QueryAbortedException e) {
+			// Callers need to be able to tell aborted queries apart from errors
+			throw e;
 		} catch (DatalogException e) {
 			throw new DatalogException("[line " + scan.lineno() + "] Error executing statement", e);
 		}
@@ -189,7 +254,15 @@ public class Jatalog {
      */
 	public Collection<Map<String, String>> query(List<Expr> goals, Map<String, String> bindings)
 			throws DatalogException {
-		return engine.query(this, goals, bindings);
+		if(queryCache != null) {
+			return query(prepareQuery(goals), bindings);
+		}
+		lock.readLock().lock();
+		try {
+			return engine.query(this, goals, bindings);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -217,6 +290,385 @@ public class Jatalog {
 		return query(Arrays.asList(goals), null);
 	}
 
+	/**
+	 * Compiles the goals of a query into a {@link QueryPlan} that can be executed repeatedly
+	 * through {@link #query(QueryPlan, Map)} without being planned again.
+	 * @param goals The list of goals of the query.
+	 * @return The plan for the query
+	 * @throws DatalogException if the rules relevant to the query cannot be stratified.
+	 */
+	public QueryPlan prepareQuery(List<Expr> goals) throws DatalogException {
+		lock.readLock().lock();
+		try {
+			return engine.prepare(this, goals);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Executes a prepared query plan against the database.
+	 * <p>
+	 * If rules were added to the database since the plan was prepared, the query is planned again.
+	 * Use {@link QueryPlan#isValid(Jatalog)} to determine whether a plan can be reused. 
+	 * </p><p>
+	 * If the database has a {@link #setQueryCache(QueryCache) query cache}, the answers are taken from
+	 * the cache if its facts haven't changed since they were computed.
+	 * </p>
+	 * @param plan The plan of the query, from {@link #prepareQuery(List)}.
+	 * @param bindings An optional (nullable) mapping of variable names to values. 
+	 * @return The answers of the query, as a Collection of variable mappings.
+	 * 	See {@link OutputUtils#answersToString(Collection)} for details on how to interpret the result.
+	 * @throws DatalogException on errors encountered while executing. 
+	 */
+	public Collection<Map<String, String>> query(QueryPlan plan, Map<String, String> bindings) throws DatalogException {
+		lock.readLock().lock();
+		try {
+			if(!plan.isValid(this)) {
+				plan = prepareQuery(plan.getGoals());
+			}
+			QueryCache cache = queryCache;
+			if(cache == null) {
+				return engine.query(this, plan, bindings);
+			}
+			Collection<Map<String, String>> answers = cache.get(this, plan, bindings);
+			if(answers == null) {
+				answers = cache.put(this, plan, bindings, engine.query(this, plan, bindings));
+			}
+			return answers;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Executes a prepared query plan against the database within a specific context.
+	 * <p>
+	 * Use this method to apply different {@link QueryLimits limits} to a specific query, or to be able to
+	 * cancel it from another thread:
+	 * </p>
+	 * <pre>
+	 * QueryContext context = jatalog.getEngine().createContext();
+	 * context.setLimits(QueryLimits.NONE.withTimeout(10, TimeUnit.SECONDS));
+	 * // context.cancel() can now be called from another thread to stop the query
+	 * answers = jatalog.query(plan, bindings, context);
+	 * </pre>
+	 * @param plan The plan of the query, from {@link #prepareQuery(List)}.
+	 * @param bindings An optional (nullable) mapping of variable names to values. 
+	 * @param context The context in which the query is evaluated; it should not be reused for another query.
+	 * @return The answers of the query, as a Collection of variable mappings.
+	 * @throws DatalogException on errors encountered while executing.
+	 * @throws QueryAbortedException if the query exceeded the limits of the context or it was cancelled.
+	 */
+	public Collection<Map<String, String>> query(QueryPlan plan, Map<String, String> bindings, QueryContext context) throws DatalogException {
+		lock.readLock().lock();
+		try {
+			if(!plan.isValid(this)) {
+				plan = prepareQuery(plan.getGoals());
+			}
+			return engine.query(this, plan, bindings, context);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Executes a batch of queries against the database, evaluating the rules that are relevant to any of 
+	 * them only once.
+	 * <p>
+	 * This is cheaper than executing the queries one by one when they depend on the same rules, such as
+	 * the queries that populate the views of a dashboard. The queries are evaluated within a single context 
+	 * that has this database's {@link #getQueryLimits() limits}. Queries whose answers are in the
+	 * {@link #setQueryCache(QueryCache) query cache} are not evaluated again, and the answers of the 
+	 * others are added to it.
+	 * </p>
+	 * @param queries The goals of each query
+	 * @param parallel Whether the queries' goals may be matched against the derived facts in parallel
+	 * @return The answers of each query, in the order of the queries.
+	 * @throws DatalogException on errors encountered while executing.
+	 * @throws QueryAbortedException if the batch exceeded the database's limits.
+	 */
+	public List<Collection<Map<String, String>>> queryBatch(List<List<Expr>> queries, boolean parallel) throws DatalogException {
+		lock.readLock().lock();
+		try {
+			return queryBatch(queries, parallel, queryCache);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<Collection<Map<String, String>>> queryBatch(List<List<Expr>> queries, boolean parallel, QueryCache cache) throws DatalogException {
+		List<QueryPlan> plans = new ArrayList<>();
+		List<Collection<Map<String, String>>> answers = new ArrayList<>();
+		for(List<Expr> goals : queries) {
+			QueryPlan plan = prepareQuery(goals);
+			Collection<Map<String, String>> cached = cache != null ? cache.get(this, plan, null) : null;
+			if(cached == null) {
+				plans.add(plan);
+			}
+			answers.add(cached);
+		}
+		if(!plans.isEmpty()) {
+			QueryContext context = engine.createContext();
+			context.setLimits(queryLimits);
+			Iterator<Collection<Map<String, String>>> evaluated = engine.query(this, plans, parallel, context).iterator();
+			Iterator<QueryPlan> evaluatedPlans = plans.iterator();
+			for(int i = 0; i < answers.size(); i++) {
+				if(answers.get(i) == null) {
+					Collection<Map<String, String>> result = evaluated.next();
+					QueryPlan plan = evaluatedPlans.next();
+					answers.set(i, cache != null ? cache.put(this, plan, null, result) : result);
+				}
+			}
+		}
+		return answers;
+	}
+
+	/**
+	 * Executes a batch of queries against the database, evaluating the rules that are relevant to any of 
+	 * them only once. See {@link #queryBatch(List, boolean)}.
+	 * @param queries The goals of each query
+	 * @return The answers of each query, in the order of the queries.
+	 * @throws DatalogException on errors encountered while executing.
+	 */
+	public List<Collection<Map<String, String>>> queryBatch(List<List<Expr>> queries) throws DatalogException {
+		return queryBatch(queries, false);
+	}
+
+	/**
+	 * Executes a query with the specified goals against the database on the {@link #getExecutor() executor}.
+	 * @param goals The list of goals of the query.
+	 * @param bindings An optional (nullable) mapping of variable names to values. 
+	 * @return A future that completes with the answers of the query, or exceptionally with the 
+	 * 	{@link DatalogException} that the query threw.
+	 * @see #query(List, Map)
+	 */
+	public CompletableFuture<Collection<Map<String, String>>> queryAsync(List<Expr> goals, Map<String, String> bindings) {
+		return submit(() -> query(goals, bindings));
+	}
+
+	/**
+	 * Executes a query with the specified goals against the database on the {@link #getExecutor() executor}.
+	 * This is part of the fluent API. 
+	 * @param goals The goals of the query.
+	 * @return A future that completes with the answers of the query; see {@link #queryAsync(List, Map)}
+	 */
+	public CompletableFuture<Collection<Map<String, String>>> queryAsync(Expr... goals) {
+		return queryAsync(Arrays.asList(goals), null);
+	}
+
+	/**
+	 * Executes a prepared query plan against the database on the {@link #getExecutor() executor}.
+	 * @param plan The plan of the query, from {@link #prepareQuery(List)}.
+	 * @param bindings An optional (nullable) mapping of variable names to values. 
+	 * @return A future that completes with the answers of the query; see {@link #query(QueryPlan, Map)}
+	 */
+	public CompletableFuture<Collection<Map<String, String>>> queryAsync(QueryPlan plan, Map<String, String> bindings) {
+		return submit(() -> query(plan, bindings));
+	}
+
+	/**
+	 * Adds a collection of facts to the EDB database on the {@link #getExecutor() executor}. 
+	 * <p>
+	 * The facts are added under a single write lock, so queries see either none or all of them.
+	 * If a fact is invalid, the facts before it have been added. With a {@link #setWriteAheadLog(WriteAheadLog) log}
+	 * the facts are forced to disk together, once they have all been added.
+	 * </p>
+	 * @param facts The facts to add; see {@link #fact(Expr)}
+	 * @return A future that completes with {@code this} once the facts have been added.
+	 */
+	public CompletableFuture<Jatalog> loadAsync(Collection<Expr> facts) {
+		return submit(() -> {
+			lock.writeLock().lock();
+			try {
+				for(Expr fact : facts) {
+					fact(fact);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			commit();
+			return this;
+		});
+	}
+
+	/**
+	 * Executes the Datalog statements read from a {@link java.io.Reader}, typically facts and rules, on the 
+	 * {@link #getExecutor() executor}, under a single write lock. Like {@link #loadAsync(Collection)} the changes
+	 * are forced to disk together.
+	 * @param reader The reader from which the statements are read.
+	 * @return A future that completes with the answer of the last statement; see {@link #executeAll(Reader, QueryOutput)}
+	 */
+	public CompletableFuture<Collection<Map<String, String>>> loadAsync(Reader reader) {
+		return submit(() -> {
+			Collection<Map<String, String>> answers;
+			lock.writeLock().lock();
+			try {
+				answers = executeAll(reader, null);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			commit();
+			return answers;
+		});
+	}
+
+	/**
+	 * Runs a task on the {@link #getExecutor() executor}, like a query that a {@link Statement#executeAsync(Jatalog, Map)} executes.
+	 * @param task The task
+	 * @param <T> The type of the task's result
+	 * @return A future that completes with the task's result, or exceptionally with the exception that it threw,
+	 * 	or with a {@link RejectedExecutionException} if the executor didn't accept the task.
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			getExecutor().execute(() -> {
+				try {
+					future.complete(task.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Retrieves the executor that the asynchronous methods like {@link #queryAsync(List, Map)} run on.
+	 * @return the executor; by default a pool shared by all databases, with a daemon thread per processor and
+	 * 	a bounded queue, which rejects tasks when it is full.
+	 */
+	public Executor getExecutor() {
+		Executor executor = this.executor;
+		return executor != null ? executor : DefaultExecutor.POOL;
+	}
+
+	/**
+	 * Sets the executor that the asynchronous methods like {@link #queryAsync(List, Map)} run on.
+	 * <p>
+	 * On Java 21 and later, {@code Executors.newVirtualThreadPerTaskExecutor()} runs each query on a virtual thread,
+	 * so that the number of queries in flight isn't bounded by the size of a pool.
+	 * </p>
+	 * @param executor The executor, or null for the default pool. The database doesn't shut it down.
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public Jatalog setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Retrieves the limits that apply to every query executed against this database.
+	 * @return the limits
+	 */
+	public QueryLimits getQueryLimits() {
+		return queryLimits;
+	}
+
+	/**
+	 * Sets the limits that apply to every query executed against this database, including the queries
+	 * executed through {@link #executeAll(String)} and {@link Statement}s.
+	 * <p>
+	 * A query that exceeds the limits throws a {@link QueryAbortedException}. See {@link #query(QueryPlan, Map, QueryContext)} 
+	 * to set the limits of a single query.
+	 * </p>
+	 * @param queryLimits The limits; {@link QueryLimits#NONE} for none.
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public Jatalog setQueryLimits(QueryLimits queryLimits) {
+		this.queryLimits = queryLimits;
+		return this;
+	}
+
+	/**
+	 * Retrieves the cache of the answers of queries.
+	 * @return the cache, or null if the answers aren't cached
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Sets a cache for the answers of queries, for applications that ask the same queries repeatedly, such as
+	 * dashboards that poll the database. The answers of a query are reused until facts with any of its relevant
+	 * predicates are added or deleted, or rules are added.
+	 * <p>
+	 * The cache applies to {@link #query(List, Map)}, {@link #query(QueryPlan, Map)} and the queries executed
+	 * through {@link Statement}s, but not to queries with a specific {@link QueryContext}. 
+	 * The cached answers are unmodifiable. Facts that are changed through an {@link EdbProvider} that doesn't 
+	 * track the {@link EdbProvider#getVersion(String) versions} of its predicates are never cached.
+	 * </p>
+	 * @param queryCache The cache, like {@code new QueryCache(1000)}, or null to stop caching answers.
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public Jatalog setQueryCache(QueryCache queryCache) {
+		this.queryCache = queryCache;
+		return this;
+	}
+
+	/**
+	 * Describes how a query will be evaluated, without evaluating it.
+	 * @param goals The list of goals of the query.
+	 * @return The description of the query's plan; see {@link QueryPlan#explain()}
+	 * @throws DatalogException if the rules relevant to the query cannot be stratified.
+	 */
+	public String explain(List<Expr> goals) throws DatalogException {
+		return prepareQuery(goals).explain();
+	}
+
+	/**
+	 * Describes how a query will be evaluated, without evaluating it.
+	 * @param query The query, like {@code "ancestor(X, bob)?"}
+	 * @return The description of the query's plan; see {@link QueryPlan#explain()}
+	 * @throws DatalogException on syntax errors, or if the rules relevant to the query cannot be stratified.
+	 */
+	public String explain(String query) throws DatalogException {
+		return explain(parseQuery(query));
+	}
+
+	/**
+	 * Executes a query while measuring the evaluation of each stratum, rule and goal.
+	 * <p>
+	 * Profiling slows the evaluation down, so the times are only useful relative to each other.
+	 * </p>
+	 * @param goals The list of goals of the query.
+	 * @param bindings An optional (nullable) mapping of variable names to values. 
+	 * @return The answers of the query along with its plan and the measurements; 
+	 * 	{@link QueryProfile#toString()} formats them as a report.
+	 * @throws DatalogException on errors encountered while executing.
+	 */
+	public QueryProfile profile(List<Expr> goals, Map<String, String> bindings) throws DatalogException {
+		QueryPlan plan = prepareQuery(goals);
+		QueryMetrics metrics = new QueryMetrics();
+		QueryContext context = engine.createContext(metrics);
+		context.setLimits(queryLimits);
+		context.setProfiling(true);
+		Collection<Map<String, String>> answers = query(plan, bindings, context);
+		return new QueryProfile(plan, metrics, answers);
+	}
+
+	/**
+	 * Executes a query while measuring the evaluation of each stratum, rule and goal.
+	 * @param query The query, like {@code "ancestor(X, bob)?"}
+	 * @return The answers of the query along with its plan and the measurements; see {@link #profile(List, Map)}
+	 * @throws DatalogException on syntax errors encountered or errors encountered while executing.
+	 */
+	public QueryProfile profile(String query) throws DatalogException {
+		return profile(parseQuery(query), null);
+	}
+
+	/* Parses the goals of a single query */
+	private static List<Expr> parseQuery(String query) throws DatalogException {
+		try {
+			return Parser.parseQuery(getTokenizer(new StringReader(query)));
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+	}
+
     
 
     /**
@@ -224,12 +676,12 @@ public class Jatalog {
      * @throws DatalogException If any rules or facts are invalid. The message contains the reason.
      */
     public void validate() throws DatalogException {
-        for(Rule rule : idb) {
+        for(Rule rule : idb.getRules()) {
             rule.validate();
         }
 
         // Search for negated loops:
-        Engine.computeStratification(idb);
+        idb.getStratification();
         
         // Different EdbProvider implementations may have different ideas about how 
         // to iterate through the EDB in the most efficient manner. so in the future
@@ -263,7 +715,19 @@ public class Jatalog {
      */
     public Jatalog rule(Rule newRule) throws DatalogException {
         newRule.validate();
-        idb.add(newRule);
+        WriteAheadLog log;
+        long change = 0;
+        lock.writeLock().lock();
+        try {
+            log = writeAheadLog;
+            if(log != null) {
+                change = log.append(WriteAheadLog.record(newRule));
+            }
+            idb.add(newRule);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(log, change);
         return this;
     }
 
@@ -279,7 +743,21 @@ public class Jatalog {
     public Jatalog fact(String predicate, String... terms) throws DatalogException {
         return fact(new Expr(predicate, terms));
     }
-    
+
+    /**
+     * Adds a new fact with typed terms to the EDB database, like {@code fact("age", "alice", 42)}.
+     * This is part of the fluent API.
+     * @param predicate The predicate of the fact.
+     * @param terms the terms of the fact; Numbers are stored as numbers and other objects that aren't
+     * 	Strings are stored as {@link Term.Type#OBJECT objects}. See {@link Term#of(Object)}.
+     * @return {@code this} so that methods can be chained.
+     * @throws DatalogException if the fact is invalid. Facts must be {@link Expr#isGround() ground} and
+     * 	cannot be {@link Expr#isNegated() negated}
+     */
+    public Jatalog fact(String predicate, Object... terms) throws DatalogException {
+        return fact(Expr.expr(predicate, terms));
+    }
+
     /**
      * Adds a new fact to the EDB database.
      * This is part of the fluent API.
@@ -295,9 +773,24 @@ public class Jatalog {
         if(newFact.isNegated()) {
             throw new DatalogException("Facts cannot be negated: " + newFact);
         }
+        if(Aggregate.hasAggregates(newFact)) {
+            throw new DatalogException("Facts cannot contain aggregates: " + newFact);
+        }
         // You can also match the arity of the fact against existing facts in the EDB,
         // but it's more of a principle than a technical problem; see Jatalog#validate()
-        edbProvider.add(newFact);
+        WriteAheadLog log;
+        long change = 0;
+        lock.writeLock().lock();
+        try {
+            log = writeAheadLog;
+            if(log != null) {
+                change = log.append(WriteAheadLog.record(newFact));
+            }
+            edbProvider.add(newFact);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(log, change);
         return this;
     }
 
@@ -319,12 +812,39 @@ public class Jatalog {
      * @throws DatalogException on errors encountered during evaluation.
      */
     public boolean delete(List<Expr> goals, Map<String, String> bindings) throws DatalogException {
-        Collection<Map<String, String>> answers = query(goals, bindings);
-        List<Expr> facts = answers.stream()
-            // and substitute the answer on each goal
-            .flatMap(answer -> goals.stream().map(goal -> goal.substitute(answer)))
-            .collect(Collectors.toList());
-        return edbProvider.removeAll(facts);
+        // The write lock is held throughout, so that the facts can't change between the query and the removal
+        WriteAheadLog log;
+        long change = 0;
+        boolean removed;
+        lock.writeLock().lock();
+        try {
+            Collection<Map<String, String>> answers = query(goals, bindings);
+            List<Expr> facts = answers.stream()
+                // and substitute the answer on each goal that matches facts; negated and built-in goals match none
+                .flatMap(answer -> goals.stream()
+                    .filter(goal -> !goal.isNegated() && !goal.isBuiltIn())
+                    .map(goal -> goal.substitute(answer)))
+                .collect(Collectors.toList());
+            // The facts themselves are logged rather than the goals, which may depend on rules
+            log = writeAheadLog;
+            if(log != null && !facts.isEmpty()) {
+                change = log.append(WriteAheadLog.deletion(facts));
+            }
+            removed = edbProvider.removeAll(facts);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(log, change);
+        return removed;
+    }
+
+    /* Waits until a logged change is on disk. The write lock is released first, so that other writers can log their
+     * changes meanwhile and share the fsync. A thread that still holds the write lock is in the middle of a larger 
+     * change, like loadAsync(), which commits the log once it releases the lock. */
+    private void commit(WriteAheadLog log, long change) throws DatalogException {
+        if(log != null && change > 0 && !lock.isWriteLockedByCurrentThread()) {
+            log.sync(change);
+        }
     }
     
     /**
@@ -394,8 +914,8 @@ public class Jatalog {
             sb.append(fact).append(".\n");
         }
         sb.append("\n% Rules:\n");
-        for(Rule rule : idb) {
-            sb.append(rule).append(".\n");
+        for(Rule rule : idb.getRules()) {
+            sb.append(WriteAheadLog.record(rule)).append("\n");
         }
         return sb.toString();
     }
@@ -409,8 +929,8 @@ public class Jatalog {
 		if(this.idb.size() != that.idb.size()) {
 			return false;
 		}
-		for(Rule rule : idb) {
-			if(!that.idb.contains(rule))
+		for(Rule rule : idb.getRules()) {
+			if(!that.idb.getRules().contains(rule))
 				return false;
 		}
 
@@ -441,11 +961,154 @@ public class Jatalog {
 	 * @param edbProvider the {@link EdbProvider}
 	 */
 	public void setEdbProvider(EdbProvider edbProvider) {
-		this.edbProvider = edbProvider;
+		lock.writeLock().lock();
+		try {
+			this.edbProvider = edbProvider;
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
-	/* Only used for unit testing */
+	/**
+	 * Retrieves the log that the changes to the facts and rules are written to.
+	 * @return the log, or null if changes aren't logged
+	 */
+	public WriteAheadLog getWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 * Writes the changes to the facts and rules to a log from now on, so that they can be recovered after a crash.
+	 * The log only contains the changes, so the database should be {@link #checkpoint(Path) checkpointed} first 
+	 * unless it was {@link WriteAheadLog#recover(Path) recovered} from the log.
+	 * This is part of the fluent API.
+	 * @param writeAheadLog The log, or null to stop logging changes
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public Jatalog setWriteAheadLog(WriteAheadLog writeAheadLog) {
+		lock.writeLock().lock();
+		try {
+			this.writeAheadLog = writeAheadLog;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the facts and rules to a snapshot, which replaces the previous snapshot once it is on disk, and empties
+	 * the {@link #setWriteAheadLog(WriteAheadLog) log}, whose changes the snapshot contains.
+	 * Changes wait while the snapshot is written.
+	 * @param snapshot The file of the snapshot; see {@link WriteAheadLog#recover(Path)}
+	 * @return {@code this} so that methods can be chained.
+	 * @throws DatalogException if there is no log, or if the snapshot can't be written
+	 */
+	public Jatalog checkpoint(Path snapshot) throws DatalogException {
+		lock.writeLock().lock();
+		try {
+			if(writeAheadLog == null) {
+				throw new DatalogException("The database doesn't have a log to checkpoint");
+			}
+			writeAheadLog.checkpoint(this, snapshot);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return this;
+	}
+
+	/* Waits until the changes logged so far are on disk */
+	private void commit() throws DatalogException {
+		WriteAheadLog log = writeAheadLog;
+		if(log != null) {
+			log.sync();
+		}
+	}
+
+	/**
+	 * Creates a sorted index on a column of the facts of a predicate, so that the engine can use range scans
+	 * instead of full scans for goals whose variable in that column is compared to a bound value, like
+	 * {@code A} in {@code old(X) :- person(X, A), A > 90}.
+	 * This is part of the fluent API.
+	 * @param predicate The predicate of the facts
+	 * @param column The position of the indexed term, starting at 0
+	 * @return {@code this} so that methods can be chained.
+	 * @throws DatalogException if the {@link EdbProvider} doesn't support range indexes
+	 * @see BasicEdbProvider#addRangeIndex(String, int)
+	 */
+	public Jatalog rangeIndex(String predicate, int column) throws DatalogException {
+		if(!(edbProvider instanceof BasicEdbProvider)) {
+			throw new DatalogException("The EdbProvider " + edbProvider.getClass().getName() + " doesn't support range indexes");
+		}
+		lock.writeLock().lock();
+		try {
+			((BasicEdbProvider)edbProvider).addRangeIndex(predicate, column);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Declares a binary predicate as dense, so that the engine stores the facts that it derives for the predicate
+	 * as a bitset of targets per source instead of as individual facts, and evaluates rules that join two 
+	 * binary relations into it a row at a time, like {@code related(X, Y) :- ancestor(Z, X), ancestor(Z, Y)}.
+	 * This pays off for relations that hold for a large fraction of the pairs of their terms.
+	 * This is part of the fluent API.
+	 * @param predicate The predicate
+	 * @return {@code this} so that methods can be chained.
+	 * @see za.co.wstoop.jatalog.engine.DenseRelation
+	 */
+	public Jatalog dense(String predicate) {
+		lock.writeLock().lock();
+		try {
+			densePredicates.add(predicate);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Retrieves the predicates that have been declared as dense.
+	 * @return An unmodifiable set of the predicates; use {@link #dense(String)} to declare predicates as dense.
+	 */
+	public Set<String> getDensePredicates() {
+		return Collections.unmodifiableSet(densePredicates);
+	}
+
+	/**
+	 * Retrieves the rules in the IDB.
+	 * @return An unmodifiable collection of the rules; use {@link #rule(Rule)} to add rules. 
+	 */
 	public Collection<Rule> getIdb() {
+		return idb.getRules();
+	}
+
+	/**
+	 * Retrieves the engine that evaluates queries against this database.
+	 * <p>
+	 * Use {@link Engine#addListener(za.co.wstoop.jatalog.engine.EngineListener)} to observe the evaluation of queries.
+	 * </p>
+	 * @return the {@link Engine}
+	 */
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Retrieves the rules in the IDB, indexed by the predicates in their heads and bodies.
+	 * @return the {@link RuleCatalog}
+	 */
+	public RuleCatalog getRuleCatalog() {
 		return idb;
 	}
+
+	/**
+	 * Retrieves a number that changes every time a rule is added to the IDB.
+	 * It is used to determine whether a {@link QueryPlan} is still valid.
+	 * @return the version of the IDB
+	 */
+	public long getIdbVersion() {
+		return idb.getVersion();
+	}
 }
@@ -35,6 +35,7 @@ class Parser {
                 List<Expr> body = new ArrayList<>();
                 do {
                     Expr arg = parseExpr(scan);
+                    checkNoAggregates(arg, scan);
                     body.add(arg);
                 } while(scan.nextToken() == ',');
 
@@ -45,6 +46,7 @@ class Parser {
 				return StatementFactory.insertRule(newRule);
             } else {
                 // We're dealing with a fact, or a query
+                checkNoAggregates(head, scan);
                 if(scan.ttype == '.') {
                     // It's a fact
                     return StatementFactory.insertFact(head);
@@ -52,13 +54,15 @@ class Parser {
                     // It's a query
                     goals.clear();
                     goals.add(head);
-                    if (scan.ttype != '.' && scan.ttype != '?' && scan.ttype != ',') {
+                    if (scan.ttype != '.' && scan.ttype != '?' && scan.ttype != ',' && scan.ttype != '~') {
                         /* You _can_ write facts like `a = 5 .` but I recommend against it; if you do then you *must* have the space between the
                         5 and the '.' otherwise the parser sees it as 5.0 and the error message can be a bit confusing. */
-                        throw new DatalogException("[line " + scan.lineno() + "] Expected one of '.', ',' or '?' after fact/query expression");
+                        throw new DatalogException("[line " + scan.lineno() + "] Expected one of '.', ',', '?' or '~' after fact/query expression");
                     }
                     while(scan.ttype == ',') {
-                        goals.add(parseExpr(scan));
+                        Expr goal = parseExpr(scan);
+                        checkNoAggregates(goal, scan);
+                        goals.add(goal);
                         scan.nextToken();
                     }
 
@@ -76,6 +80,28 @@ class Parser {
         }
     }
 
+    /* Parses the goals of a query, like `sibling(alice, X), X <> bob?`. The '?' at the end is optional,
+     * but nothing may follow the query. This is used to parse the queries of the Shell's explain and profile commands. */
+    static List<Expr> parseQuery(StreamTokenizer scan) throws DatalogException {
+        List<Expr> goals = new ArrayList<>();
+        try {
+            do {
+                Expr goal = parseExpr(scan);
+                checkNoAggregates(goal, scan);
+                goals.add(goal);
+            } while(scan.nextToken() == ',');
+            if(scan.ttype == '?') {
+                scan.nextToken();
+            }
+            if(scan.ttype != StreamTokenizer.TT_EOF) {
+                throw new DatalogException("[line " + scan.lineno() + "] Expected '?' after query");
+            }
+            return goals;
+        } catch (IOException e) {
+            throw new DatalogException(e);
+        }
+    }
+
     /* parses an expression */
     static Expr parseExpr(StreamTokenizer scan) throws DatalogException {
         try {
@@ -120,7 +146,13 @@ class Parser {
                 scan.pushBack();
                 do {
                     if(scan.nextToken() == StreamTokenizer.TT_WORD) {
-                        terms.add(scan.sval);
+                        String word = scan.sval;
+                        if(scan.nextToken() == '(') {
+                            terms.add(parseAggregate(word, scan));
+                        } else {
+                            scan.pushBack();
+                            terms.add(word);
+                        }
                     } else if(scan.ttype == '"' || scan.ttype == '\'') {
                         terms.add("\"" + scan.sval);
                     } else if(scan.ttype == StreamTokenizer.TT_NUMBER) {
@@ -141,6 +173,28 @@ class Parser {
         }
     }
 
+    /* Parses an aggregate term like count(Y), after the '(' that follows the function's name */
+    private static String parseAggregate(String function, StreamTokenizer scan) throws DatalogException, IOException {
+        if(!Aggregate.isFunction(function)) {
+            throw new DatalogException("[line " + scan.lineno() + "] Unknown aggregate function " + function);
+        }
+        if(scan.nextToken() != StreamTokenizer.TT_WORD || !Jatalog.isVariable(scan.sval)) {
+            throw new DatalogException("[line " + scan.lineno() + "] Expected a variable in aggregate " + function + "()");
+        }
+        String variable = scan.sval;
+        if(scan.nextToken() != ')') {
+            throw new DatalogException("[line " + scan.lineno() + "] Expected ')' after aggregate");
+        }
+        return function + "(" + variable + ")";
+    }
+
+    /* Aggregates can only appear in the heads of rules */
+    private static void checkNoAggregates(Expr expr, StreamTokenizer scan) throws DatalogException {
+        if(Aggregate.hasAggregates(expr)) {
+            throw new DatalogException("[line " + scan.lineno() + "] Aggregates are only allowed in the heads of rules: " + expr);
+        }
+    }
+
     private static final List<String> validOperators = Arrays.asList(new String[] {"=", "!=", "<>", "<", "<=", ">", ">="});
 
     /* Parses one of the built-in predicates, eg X <> Y 
@@ -0,0 +1,47 @@
+package za.co.wstoop.jatalog;
+
+/**
+ * Thrown when the evaluation of a query is stopped before it completed, because it exceeded one of its 
+ * {@link za.co.wstoop.jatalog.engine.QueryLimits limits} or because it was 
+ * {@link za.co.wstoop.jatalog.engine.QueryContext#cancel() cancelled}.
+ * <p>
+ * The database is not affected by an aborted query, so it can be retried with different limits.
+ * </p>
+ */
+public class QueryAbortedException extends DatalogException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The reasons why the evaluation of a query can be aborted.
+     */
+    public enum Reason {
+        /** The query took longer than its time limit */
+        TIMEOUT,
+        /** The query was cancelled from another thread */
+        CANCELLED,
+        /** The query's rules derived more facts than its limit */
+        DERIVED_FACTS,
+        /** The query's goals produced more bindings than its limit */
+        BINDINGS
+    }
+
+    private final Reason reason;
+
+    /**
+     * Constructor.
+     * @param reason The reason why the query was aborted
+     * @param message A description of the problem
+     */
+    public QueryAbortedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * Retrieves the reason why the query was aborted.
+     * @return the reason
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -13,6 +13,9 @@ import za.co.wstoop.jatalog.engine.Engine;
  * Class that represents a Datalog rule.
  * A rule has a head that is an expression and a body that is a list of expressions.
  * It takes the form {@code foo(X, Y) :- bar(X, Y), baz(X), fred(Y)}
+ * <p>
+ * The head may also contain {@link Aggregate} terms, like {@code descendants(X, count(Y)) :- ancestor(X, Y)}.
+ * </p>
  * @see Expr
  */
 public class Rule {
@@ -49,6 +52,7 @@ public class Rule {
 	 * <li> Each variable in the head of the rule <i>must</i> appear in the body.
 	 * <li> Each variable in the body of a rule should appear at least once in a positive (that is non-negated) expression.
 	 * <li> Variables that are used in built-in predicates must appear at least once in a positive expression.
+	 * <li> Aggregates may only appear in the head, and their variables must appear in the body.
 	 * </ul>
 	 * @throws DatalogException if the rule is not valid, with the reason in the message.
 	 */
@@ -63,6 +67,9 @@ public class Rule {
 		// expression, though.
 		Set<String> bodyVariables = new HashSet<String>();
 		for(Expr clause : getBody()) {
+			if (Aggregate.hasAggregates(clause)) {
+				throw new DatalogException("Aggregates are only allowed in the head of rule " + toString());
+			}
 			if (clause.isBuiltIn()) {
 				if (clause.getTerms().size() != 2)
 					throw new DatalogException("Operator " + clause.getPredicate() + " must have only two operands");
@@ -97,9 +104,13 @@ public class Rule {
 			}
 		}
 		
-		// Enforce the rule that variables in the head must appear in the body
+		// Enforce the rule that variables in the head must appear in the body.
+		// The variables of aggregates in the head must appear in the body as well.
 		for (String term : getHead().getTerms()) {
-			if (!Jatalog.isVariable(term)) {
+			Aggregate aggregate = Aggregate.parse(term);
+			if (aggregate != null) {
+				term = aggregate.getVariable();
+			} else if (!Jatalog.isVariable(term)) {
 				throw new DatalogException("Constant " + term + " in head of rule " + toString());
 			}
 			if (!bodyVariables.contains(term)) {
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import za.co.wstoop.jatalog.engine.QueryProfile;
 import za.co.wstoop.jatalog.output.DefaultQueryOutput;
 import za.co.wstoop.jatalog.output.QueryOutput;
 import za.co.wstoop.jatalog.output.OutputUtils;
@@ -107,10 +108,27 @@ public class Shell {
 						System.out.println("Timer is now " + (timer?"on":"off"));
 						history.add(line);
 						continue;
+					} else if (command.equals("explain") || command.equals("profile")) {
+						String query = line.substring(command.length()).trim();
+						if(query.isEmpty()) {
+							System.err.println("error: query expected");
+							continue;
+						}
+						if(command.equals("explain")) {
+							System.out.print(jatalog.explain(query));
+						} else {
+							QueryProfile profile = jatalog.profile(query);
+							System.out.println(OutputUtils.answersToString(profile.getAnswers()));
+							System.out.print(profile);
+						}
+						history.add(line);
+						continue;
 					} else if(command.equals("help")) {
 						System.out.println("load filename  - Loads and executes the specified file.");
 						System.out.println("timer [on|off] - Enable/disable the query timer.");
 						System.out.println("validate       - Validates the facts and rules in the database.");
+						System.out.println("explain query  - Displays how a query will be evaluated.");
+						System.out.println("profile query  - Executes a query and displays its evaluation with row counts and times.");
 						System.out.println("dump           - Displays the facts and rules on the console.");
 						System.out.println("history        - Displays all commands entered in this session.");
 						System.out.println("help           - Displays this message.");
@@ -0,0 +1,260 @@
+package za.co.wstoop.jatalog;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A typed term of an {@link Expr}.
+ * <p>
+ * Terms are classified once, when the expression they belong to is created, so that the engine can compare 
+ * them without parsing them again for every binding: Numbers are stored as {@code long}s or {@code double}s,
+ * so the comparison built-in predicates are primitive operations. Terms are equal if they have the same type and
+ * text, so {@code 01} and {@code 1} are different terms, as {@code alice} and {@code "alice} are; the
+ * {@code =} and {@code <>} built-in predicates compare numbers by value instead (see {@link #equalsValue(Term)}).
+ * The types of terms are:
+ * </p>
+ * <ul>
+ * <li> {@link Type#VARIABLE} - terms that start with an upper-case letter, like {@code X}.
+ * <li> {@link Type#LONG} and {@link Type#DOUBLE} - numbers, like {@code 42} and {@code 3.14}.
+ * <li> {@link Type#STRING} - "quoted strings".
+ * <li> {@link Type#SYMBOL} - all other constants, like {@code alice}.
+ * <li> {@link Type#OBJECT} - arbitrary Java objects, which can only be created through the fluent API; see
+ * 	{@link #of(Object)} and {@link Expr#expr(String, Object...)}. They are equal if their 
+ * 	{@link Object#equals(Object) equals()} methods say so.
+ * </ul>
+ * <p>
+ * Every term also has a textual form, which is how it is written in Datalog and how it appears in the 
+ * {@code Map<String, String>} bindings of the API. The textual form of a quoted string starts with a {@code "} 
+ * character, and the textual form of an object is its {@link Object#toString()}, so objects can't be parsed again 
+ * from their textual forms.
+ * </p><p>
+ * Terms are immutable.
+ * </p>
+ */
+public final class Term {
+
+	/**
+	 * The types of terms.
+	 */
+	public enum Type {
+		VARIABLE, SYMBOL, STRING, LONG, DOUBLE, OBJECT
+	}
+
+	private final Type type;
+	private final String text;
+	private final long longValue;
+	private final double doubleValue;
+	private final Object object;
+	private final int hash;
+
+	private Term(Type type, String text, long longValue, double doubleValue, Object object) {
+		this.type = type;
+		this.text = text;
+		this.longValue = longValue;
+		this.doubleValue = doubleValue;
+		this.object = object;
+		switch(type) {
+		case LONG:
+			hash = Long.hashCode(longValue);
+			break;
+		case DOUBLE:
+			hash = Double.hashCode(doubleValue);
+			break;
+		case OBJECT:
+			hash = object.hashCode();
+			break;
+		default:
+			hash = text.hashCode();
+		}
+	}
+
+	/**
+	 * Classifies a term from its textual form.
+	 * @param text The term, as written in Datalog, or as it appears in the terms of an {@link Expr}: 
+	 * 	quoted strings start with a {@code "} character.
+	 * @return the term
+	 */
+	public static Term parse(String text) {
+		char first = text.charAt(0);
+		if(Character.isUpperCase(first)) {
+			return new Term(Type.VARIABLE, text, 0, 0, null);
+		} else if(first == '"') {
+			return new Term(Type.STRING, text, 0, 0, null);
+		} else if((Character.isDigit(first) || first == '-' || first == '+') && Parser.tryParseDouble(text)) {
+			if(text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+				try {
+					long value = Long.parseLong(text);
+					return new Term(Type.LONG, text, value, value, null);
+				} catch (NumberFormatException e) {
+					// Too large for a long
+				}
+			}
+			return new Term(Type.DOUBLE, text, 0, Double.parseDouble(text), null);
+		}
+		return new Term(Type.SYMBOL, text, 0, 0, null);
+	}
+
+	/**
+	 * Creates a term from a Java value, for the fluent API.
+	 * <p>
+	 * {@code Long}s, {@code Integer}s, {@code Short}s and {@code Byte}s become {@link Type#LONG} terms, 
+	 * {@code Double}s and {@code Float}s become {@link Type#DOUBLE} terms, {@code String}s are {@link #parse(String) parsed}
+	 * and {@code Term}s are returned as they are. Any other object becomes an {@link Type#OBJECT} term.
+	 * </p>
+	 * @param value The value
+	 * @return the term
+	 */
+	public static Term of(Object value) {
+		if(value instanceof Term) {
+			return (Term)value;
+		} else if(value instanceof String) {
+			return parse((String)value);
+		} else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			long l = ((Number)value).longValue();
+			return new Term(Type.LONG, Long.toString(l), l, l, null);
+		} else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number)value).doubleValue();
+			return new Term(Type.DOUBLE, Double.toString(d), 0, d, null);
+		} else if(value == null) {
+			throw new IllegalArgumentException("Terms cannot be null");
+		}
+		return new Term(Type.OBJECT, value.toString(), 0, 0, value);
+	}
+
+	/**
+	 * Retrieves the type of the term.
+	 * @return the type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Checks whether the term is a variable.
+	 * @return true if the term is a variable
+	 */
+	public boolean isVariable() {
+		return type == Type.VARIABLE;
+	}
+
+	/**
+	 * Checks whether the term is a number.
+	 * @return true if the term is a {@link Type#LONG} or a {@link Type#DOUBLE}
+	 */
+	public boolean isNumeric() {
+		return type == Type.LONG || type == Type.DOUBLE;
+	}
+
+	/**
+	 * Retrieves the textual form of the term.
+	 * @return the text
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Retrieves the numeric value of the term.
+	 * @return the value of a numeric term, or 0.0 if the term is not numeric, which is how the comparison
+	 * 	built-in predicates treat non-numeric terms.
+	 */
+	public double toDouble() {
+		return doubleValue;
+	}
+
+	/**
+	 * Retrieves the value of the term as a Java object.
+	 * @return a {@code Long} or a {@code Double} for numbers, the object of an {@link Type#OBJECT} term, the 
+	 * 	contents of a quoted string without the quotes, and the text of symbols and variables.
+	 */
+	public Object getValue() {
+		switch(type) {
+		case LONG: return longValue;
+		case DOUBLE: return doubleValue;
+		case OBJECT: return object;
+		case STRING: return text.substring(1);
+		default: return text;
+		}
+	}
+
+	/**
+	 * Compares two terms numerically, the way the {@code <}, {@code <=}, {@code >} and {@code >=} built-in 
+	 * predicates do: Non-numeric terms are treated as 0.0.
+	 * @param that The term to compare to
+	 * @return a negative number, zero or a positive number if this term is less than, equal to or greater than {@code that}
+	 */
+	public int compareNumerically(Term that) {
+		if(this.type == Type.LONG && that.type == Type.LONG) {
+			return Long.compare(this.longValue, that.longValue);
+		}
+		return Double.compare(this.doubleValue, that.doubleValue);
+	}
+
+	/**
+	 * Checks whether two terms are equal, the way the {@code =} and {@code <>} built-in predicates do: 
+	 * Numbers are equal if their values are equal, even if one is a {@code long} and the other a {@code double}.
+	 * @param that The term to compare to
+	 * @return true if the terms are equal
+	 */
+	public boolean equalsValue(Term that) {
+		if(this.isNumeric() && that.isNumeric()) {
+			return compareNumerically(that) == 0;
+		}
+		return equals(that);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if(this == other) {
+			return true;
+		}
+		if(!(other instanceof Term)) {
+			return false;
+		}
+		Term that = (Term)other;
+		if(this.type != that.type || this.hash != that.hash) {
+			return false;
+		}
+		// Numbers with different texts, like 01 and 1, are different terms, as they are in the facts that they were written in
+		return type == Type.OBJECT ? this.object.equals(that.object) : this.text.equals(that.text);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+	/**
+	 * Converts bindings from the API's textual form to terms.
+	 * @param bindings The bindings; may be null.
+	 * @return the bindings with the values {@link #parse(String) parsed}, or null if {@code bindings} is null.
+	 */
+	public static Map<String, Term> toTerms(Map<String, String> bindings) {
+		if(bindings == null) {
+			return null;
+		}
+		Map<String, Term> terms = new HashMap<>();
+		for(Map.Entry<String, String> entry : bindings.entrySet()) {
+			terms.put(entry.getKey(), parse(entry.getValue()));
+		}
+		return terms;
+	}
+
+	/**
+	 * Converts bindings of variables to terms to the API's textual form.
+	 * @param bindings The bindings
+	 * @return the bindings with the values' {@link #getText() texts}.
+	 */
+	public static Map<String, String> toStrings(Map<String, Term> bindings) {
+		Map<String, String> strings = new HashMap<>();
+		for(Map.Entry<String, Term> entry : bindings.entrySet()) {
+			strings.put(entry.getKey(), entry.getValue().getText());
+		}
+		return strings;
+	}
+}
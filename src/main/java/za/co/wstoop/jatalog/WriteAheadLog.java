@@ -0,0 +1,305 @@
+package za.co.wstoop.jatalog;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An append-only log of the changes to a database's facts and rules, so that they survive a crash without
+ * the whole database being written out after every change.
+ * <p>
+ * Every {@link Jatalog#fact(Expr) fact} and {@link Jatalog#rule(Rule) rule} that is added and every fact that is
+ * {@link Jatalog#delete(java.util.List) deleted} is written to the log before the change is applied to the database.
+ * Each change is a line of Datalog statements: facts and rules end with {@code '.'} and deleted facts with
+ * {@code '~'}, so the log can be read like any other Datalog file. A change is only replayed if its whole
+ * line was written, so a crash in the middle of a write loses that change and nothing else.
+ * </p><p>
+ * How much of the log survives a crash of the machine depends on the {@link Sync} policy. With {@link Sync#GROUP}
+ * a change is on disk by the time the method that made it returns, but writers that wait at the same time share
+ * a single {@code fsync}: One of them forces the log to disk on behalf of all the changes written so far, while
+ * the changes that are written in the meantime are forced by the next.
+ * </p><p>
+ * The log grows until it is {@link Jatalog#checkpoint(Path) checkpointed}, which writes the database to a snapshot
+ * and empties the log. On startup {@link #recover(Path)} loads the last snapshot and replays the log on top of it:
+ * </p>
+ * <pre>
+ * WriteAheadLog log = new WriteAheadLog(Paths.get("db.log"), WriteAheadLog.Sync.GROUP);
+ * Jatalog jatalog = log.recover(Paths.get("db.snapshot"));
+ * jatalog.fact("parent", "alice", "bob");    // durable once it returns
+ * jatalog.checkpoint(Paths.get("db.snapshot"));
+ * </pre>
+ * <p>
+ * Like the snapshots written through {@link Jatalog#toString()}, the log stores terms as text, so
+ * {@link Term.Type#OBJECT} terms are replayed as symbols, and indexes and dense predicates aren't logged.
+ * The log is thread-safe.
+ * </p>
+ */
+public class WriteAheadLog implements Closeable {
+
+	/**
+	 * When the changes written to the log are forced to disk.
+	 */
+	public enum Sync {
+		/** The operating system writes the log to disk when it sees fit; a crash of the machine may lose recent changes. */
+		NONE,
+		/** Every change is forced to disk before the method that made it returns, with a single {@code fsync} for
+		 * all the changes that are waiting at the time. */
+		GROUP,
+		/** Every change is forced to disk on its own as it is written. */
+		EACH
+	}
+
+	private final Path file;
+	private final Sync sync;
+	private final FileChannel channel;
+
+	// The number of changes written to the channel; only incremented under this, after the change is written.
+	// It and syncLock are package-private so that the tests can hold up the writers that wait for an fsync.
+	volatile long written;
+	// The number of changes forced to disk, and the number of times it was forced; guarded by syncLock
+	final Object syncLock = new Object();
+	private long synced;
+	private long syncs;
+
+	/**
+	 * Opens a log, creating the file if it doesn't exist. A change that was only partly written when the
+	 * previous process stopped is discarded.
+	 * @param file The file of the log
+	 * @param sync When the changes are forced to disk
+	 * @throws DatalogException if the file can't be opened
+	 */
+	public WriteAheadLog(Path file, Sync sync) throws DatalogException {
+		this.file = file;
+		this.sync = sync;
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.truncate(completeLength());
+			channel.position(channel.size());
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+	}
+
+	/* The length of the log up to the end of its last complete line */
+	private long completeLength() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long end = channel.size();
+		while(end > 0) {
+			long start = Math.max(0, end - buffer.capacity());
+			buffer.clear().limit((int)(end - start));
+			channel.read(buffer, start);
+			for(int i = buffer.position() - 1; i >= 0; i--) {
+				if(buffer.get(i) == '\n') {
+					return start + i + 1;
+				}
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	/**
+	 * Retrieves the policy that determines when the changes are forced to disk.
+	 * @return the policy
+	 */
+	public Sync getSync() {
+		return sync;
+	}
+
+	/**
+	 * Retrieves the number of times the log has been forced to disk. With {@link Sync#GROUP} concurrent changes
+	 * share an {@code fsync}, so this can be much less than the number of changes.
+	 * @return the number of {@code fsync}s
+	 */
+	public long getSyncs() {
+		synchronized(syncLock) {
+			return syncs;
+		}
+	}
+
+	/**
+	 * Creates a database from the last snapshot and the changes logged since, and logs the database's
+	 * changes from then on.
+	 * @param snapshot The snapshot written by {@link Jatalog#checkpoint(Path)}; a database without facts and
+	 * 	rules is created if the file doesn't exist.
+	 * @return the database
+	 * @throws DatalogException if the snapshot or the log can't be read, or contain invalid statements.
+	 */
+	public Jatalog recover(Path snapshot) throws DatalogException {
+		Jatalog jatalog = new Jatalog();
+		if(Files.exists(snapshot)) {
+			try(BufferedReader reader = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+				jatalog.executeAll(reader, null);
+			} catch (IOException e) {
+				throw new DatalogException(e);
+			}
+		}
+		replay(jatalog);
+		return jatalog.setWriteAheadLog(this);
+	}
+
+	/**
+	 * Applies the logged changes to a database, typically one that was loaded from the snapshot that was
+	 * written when the log was last {@link Jatalog#checkpoint(Path) checkpointed}.
+	 * <p>
+	 * Rules that the database already has are not added again, since the process may have stopped after a
+	 * snapshot was written but before the log was emptied; the facts that are replayed then simply end up in
+	 * the state that the log leaves them in.
+	 * </p>
+	 * @param jatalog The database, which must not write its changes to this log
+	 * @return the number of changes that were replayed, which doesn't include the rules that were skipped
+	 * @throws DatalogException if the log can't be read or contains invalid statements.
+	 */
+	public int replay(Jatalog jatalog) throws DatalogException {
+		if(jatalog.getWriteAheadLog() == this) {
+			throw new DatalogException("The log can't be replayed into the database that writes to it");
+		}
+		Set<String> rules = new HashSet<>();
+		for(Rule rule : jatalog.getIdb()) {
+			rules.add(record(rule));
+		}
+		int count = 0, number = 0;
+		try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				number++;
+				if(!line.isEmpty() && !rules.contains(line)) {
+					try {
+						jatalog.executeAll(line);
+					} catch (DatalogException e) {
+						throw new DatalogException("[" + file + " line " + number + "] Error replaying change", e);
+					}
+					count++;
+				}
+			}
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+		return count;
+	}
+
+	/* The line that a fact is logged as */
+	static String record(Expr fact) {
+		return fact + ".";
+	}
+
+	/* The line that a rule is logged as. A rule that ends with a number, like `X > 50`, needs a space before
+	 * the '.', or the tokenizer reads the '.' as part of the number */
+	static String record(Rule rule) {
+		String text = rule.toString();
+		return Character.isDigit(text.charAt(text.length() - 1)) ? text + " ." : text + ".";
+	}
+
+	/* The line that deleted facts are logged as */
+	static String deletion(Iterable<Expr> facts) {
+		StringBuilder sb = new StringBuilder();
+		for(Expr fact : facts) {
+			if(sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(fact).append('~');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes a change to the log. With {@link Sync#GROUP} it isn't on disk yet; see {@link #sync(long)}.
+	 * @param record The change, as a line of Datalog statements
+	 * @return the number of the change, for {@link #sync(long)}
+	 * @throws DatalogException if the change can't be written
+	 */
+	synchronized long append(String record) throws DatalogException {
+		ByteBuffer buffer = StandardCharsets.UTF_8.encode(record + "\n");
+		try {
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			written++;
+			if(sync == Sync.EACH) {
+				force(written);
+			}
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+		return written;
+	}
+
+	/**
+	 * Waits until a change that was written to the log is on disk, if the policy is {@link Sync#GROUP}.
+	 * The first thread that waits forces all the changes written so far to disk, and the threads that wait
+	 * meanwhile find their changes forced when it is done, or are forced together by the next thread.
+	 * @param change The number of the change that {@link #append(String)} returned
+	 * @throws DatalogException if the log can't be forced to disk
+	 */
+	void sync(long change) throws DatalogException {
+		if(sync != Sync.GROUP) {
+			return;
+		}
+		try {
+			synchronized(syncLock) {
+				if(synced < change) {
+					force(written);
+				}
+			}
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+	}
+
+	/**
+	 * Waits until all the changes that were written to the log are on disk, if the policy is {@link Sync#GROUP}.
+	 * @throws DatalogException if the log can't be forced to disk
+	 */
+	void sync() throws DatalogException {
+		sync(written);
+	}
+
+	private void force(long target) throws IOException {
+		synchronized(syncLock) {
+			channel.force(false);
+			synced = Math.max(synced, target);
+			syncs++;
+		}
+	}
+
+	/* Writes a snapshot of the database to a file, replacing it atomically once it is on disk, and then empties
+	 * the log. The caller must hold the database's write lock, so that no changes are logged meanwhile. */
+	synchronized void checkpoint(Jatalog jatalog, Path snapshot) throws DatalogException {
+		Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+		try {
+			try(FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				Writer writer = Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(), -1);
+				writer.write(jatalog.toString());
+				writer.flush();
+				out.force(true);
+			}
+			Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			channel.truncate(0);
+			force(written);
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+	}
+
+	/**
+	 * Forces the log to disk and closes it.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(channel.isOpen()) {
+			channel.force(false);
+			channel.close();
+		}
+	}
+}
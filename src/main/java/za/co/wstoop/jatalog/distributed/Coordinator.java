@@ -0,0 +1,359 @@
+package za.co.wstoop.jatalog.distributed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.Aggregate;
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Jatalog;
+import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.Term;
+import za.co.wstoop.jatalog.engine.RuleCatalog;
+import za.co.wstoop.jatalog.engine.Stratum;
+
+/**
+ * Evaluates a database whose facts are hash-partitioned across several {@link Worker}s, so that it isn't limited
+ * by the memory of a single machine.
+ * <p>
+ * The facts of each predicate are partitioned on the term in one of their columns, which is chosen so that the
+ * goals of every rule are joined on the partitioned terms; predicates that can't be partitioned that way are
+ * replicated to every worker. Each worker then evaluates the rules over its own facts. The strata of the rules are
+ * evaluated one after the other, in rounds: In each round every worker evaluates the stratum's rules semi-naively
+ * over the facts that are new since the previous round, after which the coordinator sends the derived facts to the
+ * workers that own them. A stratum is complete once a round doesn't produce new facts on any worker.
+ * </p><p>
+ * Typical usage, with the workers running in other JVMs (see {@link Worker#main(String...)}):
+ * </p>
+ * <pre>
+ * try(Coordinator coordinator = new Coordinator(addresses)) {
+ *     coordinator.rules(jatalog.getIdb()).load(facts);
+ *     answers = coordinator.query(Expr.expr("ancestor", "X", "carol"));
+ * }
+ * </pre>
+ * <p>
+ * Rules with aggregates aren't supported, since their groups span the workers. Terms are sent to the workers as text,
+ * so rules and facts with {@link Term.Type#OBJECT} terms are rejected: The text of an object
+ * can't be classified as the same term again. The facts that are derived in a round
+ * pass through the coordinator, which holds them until they have been sent on.
+ * </p>
+ */
+public class Coordinator implements Closeable {
+
+	private final List<Socket> sockets = new ArrayList<>();
+	private final List<Wire> wires = new ArrayList<>();
+
+	private List<Stratum> strata = Collections.emptyList();
+	private Partitioning partitioning;
+	private boolean evaluated;
+	private int rounds;
+
+	/**
+	 * Connects to the workers.
+	 * @param workers The addresses of the workers
+	 * @throws DatalogException if a worker can't be reached
+	 */
+	public Coordinator(List<InetSocketAddress> workers) throws DatalogException {
+		if(workers.isEmpty()) {
+			throw new DatalogException("A coordinator needs at least one worker");
+		}
+		try {
+			for(InetSocketAddress address : workers) {
+				Socket socket = new Socket(address.getAddress(), address.getPort());
+				sockets.add(socket);
+				wires.add(new Wire(socket));
+			}
+		} catch (IOException e) {
+			closeSockets();
+			throw new DatalogException(e);
+		}
+		partitioning = Partitioning.of(Collections.emptyList(), workers.size());
+	}
+
+	/**
+	 * Sets the rules of the database, and partitions the predicates accordingly.
+	 * The rules must be set before facts are loaded, since they determine where each fact is stored.
+	 * @param rules The rules
+	 * @return {@code this} so that methods can be chained.
+	 * @throws DatalogException if a rule is invalid, has aggregates or OBJECT terms, if the rules can't be stratified,
+	 * 	or if a worker fails.
+	 */
+	public Coordinator rules(Collection<Rule> rules) throws DatalogException {
+		for(Rule rule : rules) {
+			rule.validate();
+			if(Aggregate.hasAggregates(rule.getHead())) {
+				throw new DatalogException("Aggregates can't be evaluated across workers: " + rule);
+			}
+			if(hasObjects(rule.getHead()) || rule.getBody().stream().anyMatch(Coordinator::hasObjects)) {
+				throw new DatalogException("Terms of type OBJECT can't be sent to workers: " + rule);
+			}
+		}
+		strata = new RuleCatalog(rules).getStratification();
+		partitioning = Partitioning.of(rules, wires.size());
+		try {
+			for(int i = 0; i < wires.size(); i++) {
+				Wire wire = wires.get(i);
+				wire.send("CONFIG", Integer.toString(i), Integer.toString(wires.size()));
+				for(Map.Entry<String, Integer> column : partitioning.getColumns().entrySet()) {
+					wire.send(column.getKey(), column.getValue().toString());
+				}
+				wire.send(Wire.END);
+			}
+			replies();
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+		evaluated = false;
+		return this;
+	}
+
+	/**
+	 * Sends facts to the workers that own them. The facts are streamed, so they don't have to fit in the
+	 * coordinator's memory.
+	 * @param facts The facts
+	 * @return {@code this} so that methods can be chained.
+	 * @throws DatalogException if a fact is invalid or has OBJECT terms, or if a worker fails. The facts before it
+	 * 	are still loaded.
+	 */
+	public Coordinator load(Iterable<Expr> facts) throws DatalogException {
+		Expr invalid = null;
+		String reason = null;
+		try {
+			for(Wire wire : wires) {
+				wire.send("LOAD");
+			}
+			for(Expr fact : facts) {
+				// The facts sent so far are still loaded, so that the workers stay in step
+				if(!fact.isGround() || fact.isNegated()) {
+					invalid = fact;
+					reason = "Facts must be ground and cannot be negated: ";
+					break;
+				} else if(hasObjects(fact)) {
+					invalid = fact;
+					reason = "Terms of type OBJECT can't be sent to workers: ";
+					break;
+				}
+				int owner = partitioning.owner(fact);
+				for(int i = 0; i < wires.size(); i++) {
+					if(owner == Partitioning.REPLICATED || owner == i) {
+						wires.get(i).send(fact);
+					}
+				}
+			}
+			for(Wire wire : wires) {
+				wire.send(Wire.END);
+			}
+			replies();
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+		evaluated = false;
+		if(invalid != null) {
+			throw new DatalogException(reason + invalid);
+		}
+		return this;
+	}
+
+	/**
+	 * Evaluates the rules over the facts on the workers, deriving every fact that they imply.
+	 * The queries evaluate the rules if facts or rules have changed since, so this method only needs to be called
+	 * to control when the work is done. Loading facts or setting the rules discards the facts that were derived
+	 * before, so the evaluation after that starts over from the loaded facts.
+	 * @return the number of rounds that the evaluation took
+	 * @throws DatalogException if a worker fails.
+	 */
+	public int evaluate() throws DatalogException {
+		int before = rounds;
+		try {
+			for(Stratum stratum : strata) {
+				for(Wire wire : wires) {
+					wire.send("STRATUM");
+					for(Rule rule : stratum.getRules()) {
+						wire.send("RULE", Integer.toString(rule.getBody().size()));
+						wire.send(rule.getHead());
+						for(Expr goal : rule.getBody()) {
+							wire.send(goal);
+						}
+					}
+					wire.send(Wire.END);
+				}
+				replies();
+				// Every worker has to be done with a round before the next one starts
+				long added;
+				do {
+					added = round();
+				} while(added > 0 && stratum.isRecursive());
+			}
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+		evaluated = true;
+		return rounds - before;
+	}
+
+	/* Lets every worker evaluate the rules once, routes the derived facts to their owners,
+	 * and returns the number of facts that were new to their owners */
+	private long round() throws IOException, DatalogException {
+		rounds++;
+		for(Wire wire : wires) {
+			wire.send("STEP");
+			wire.flush();
+		}
+		List<Set<List<String>>> routed = new ArrayList<>();
+		for(int i = 0; i < wires.size(); i++) {
+			routed.add(new LinkedHashSet<>());
+		}
+		String error = null;
+		for(Wire wire : wires) {
+			String[] fields;
+			while(!(fields = wire.expect())[0].equals(Wire.END)) {
+				if(fields[0].equals(Wire.ERROR)) {
+					error = fields[1];
+					break;
+				}
+				List<String> fact = Arrays.asList(fields).subList(1, fields.length);
+				int owner = Integer.parseInt(fields[0]);
+				for(int i = 0; i < wires.size(); i++) {
+					if(owner == Partitioning.REPLICATED || owner == i) {
+						routed.get(i).add(fact);
+					}
+				}
+			}
+		}
+		if(error != null) {
+			throw new DatalogException("Worker failed: " + error);
+		}
+		for(int i = 0; i < wires.size(); i++) {
+			Wire wire = wires.get(i);
+			wire.send("RECEIVE");
+			for(List<String> fact : routed.get(i)) {
+				wire.send(fact);
+			}
+			wire.send(Wire.END);
+		}
+		long added = 0;
+		for(String[] reply : replies()) {
+			added += Long.parseLong(reply[1]);
+		}
+		return added;
+	}
+
+	private static boolean hasObjects(Expr expr) {
+		for(Term term : expr.getTypedTerms()) {
+			if(term.getType() == Term.Type.OBJECT) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Flushes the wires and reads a reply from every worker */
+	private List<String[]> replies() throws IOException, DatalogException {
+		List<String[]> replies = new ArrayList<>();
+		for(Wire wire : wires) {
+			wire.flush();
+		}
+		String error = null;
+		for(Wire wire : wires) {
+			String[] reply = wire.expect();
+			if(reply[0].equals(Wire.ERROR)) {
+				error = reply[1];
+			}
+			replies.add(reply);
+		}
+		if(error != null) {
+			throw new DatalogException("Worker failed: " + error);
+		}
+		return replies;
+	}
+
+	/**
+	 * Executes a query against the evaluated database. The facts of the query's predicates are gathered from
+	 * the workers and the goals are matched against them locally.
+	 * @param goals The goals of the query
+	 * @return The answers of the query, as a Collection of variable mappings.
+	 * @throws DatalogException if the query is invalid or a worker fails.
+	 */
+	public Collection<Map<String, String>> query(List<Expr> goals) throws DatalogException {
+		if(!evaluated) {
+			evaluate();
+		}
+		Jatalog local = new Jatalog();
+		Set<String> predicates = new LinkedHashSet<>();
+		for(Expr goal : goals) {
+			if(!goal.isBuiltIn()) {
+				predicates.add(goal.getPredicate());
+			}
+		}
+		try {
+			for(String predicate : predicates) {
+				int count = partitioning.isReplicated(predicate) ? 1 : wires.size();
+				for(int i = 0; i < count; i++) {
+					wires.get(i).send("FACTS", predicate);
+					wires.get(i).flush();
+					String[] fields;
+					while(!(fields = wires.get(i).expect())[0].equals(Wire.END)) {
+						local.fact(Wire.decode(fields, 0));
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new DatalogException(e);
+		}
+		return local.query(goals);
+	}
+
+	/**
+	 * Executes a query against the evaluated database. This is part of the fluent API.
+	 * @param goals The goals of the query
+	 * @return The answers of the query; see {@link #query(List)}
+	 * @throws DatalogException if the query is invalid or a worker fails.
+	 */
+	public Collection<Map<String, String>> query(Expr... goals) throws DatalogException {
+		return query(Arrays.asList(goals));
+	}
+
+	/**
+	 * Retrieves the total number of rounds that the evaluations took so far.
+	 * @return the number of rounds
+	 */
+	public int getRounds() {
+		return rounds;
+	}
+
+	/**
+	 * Ends the session with every worker, which discards their facts, and disconnects from them.
+	 */
+	@Override
+	public void close() throws IOException {
+		for(Wire wire : wires) {
+			try {
+				wire.send("QUIT");
+				wire.flush();
+			} catch (IOException e) {
+				// The worker is gone already
+			}
+		}
+		closeSockets();
+	}
+
+	private void closeSockets() {
+		for(Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing more to be done
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package za.co.wstoop.jatalog.distributed;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.Term;
+
+/* Determines which worker owns each fact.
+ * The facts of a partitioned predicate are hashed on the term in one of their columns, its join key. The columns are
+ * chosen so that every rule can be evaluated by each worker on its own facts: In each rule, the goals of the
+ * partitioned predicates must all have the same variable in their predicates' columns, so that the facts that a
+ * binding of the rule joins all hash to the same worker. Predicates for which no such column can be found are
+ * replicated to every worker instead, preferably the predicates of the EDB whose facts don't change during evaluation.
+ * A negated goal is only partitioned along with a positive goal, because a worker that doesn't own the facts that
+ * could match it can't tell whether they exist. Rules with a single partitioned goal can be evaluated anywhere, so they don't constrain the columns, and rules
+ * without any partitioned goals are only evaluated by the first worker, since the others would derive the same facts. */
+final class Partitioning {
+
+	static final int REPLICATED = -1;
+
+	private final Map<String, Integer> columns;
+	private final int workers;
+
+	Partitioning(Map<String, Integer> columns, int workers) {
+		this.columns = columns;
+		this.workers = workers;
+	}
+
+	/* Chooses the columns of the predicates of a set of rules */
+	static Partitioning of(Collection<Rule> rules, int workers) {
+		Set<String> heads = new HashSet<>();
+		for(Rule rule : rules) {
+			heads.add(rule.getHead().getPredicate());
+		}
+		Set<String> replicated = new HashSet<>();
+		while(true) {
+			Map<String, Integer> columns = new HashMap<>();
+			String conflict = null;
+			for(Rule rule : rules) {
+				List<Expr> goals = partitionedGoals(rule.getBody(), replicated);
+				Expr negated = negatedOnly(goals);
+				if(negated != null) {
+					// A worker can only tell that a fact doesn't exist if it owns the facts that would match
+					conflict = negated.getPredicate();
+					break;
+				}
+				if(goals.size() < 2) {
+					continue;
+				}
+				Map<String, Integer> assigned = assign(goals, columns);
+				if(assigned == null) {
+					// Replicate one of the goals' predicates and start again
+					conflict = goals.get(0).getPredicate();
+					for(Expr goal : goals) {
+						if(!heads.contains(goal.getPredicate())) {
+							conflict = goal.getPredicate();
+							break;
+						}
+					}
+					break;
+				}
+				columns.putAll(assigned);
+			}
+			if(conflict == null) {
+				for(String predicate : replicated) {
+					columns.put(predicate, REPLICATED);
+				}
+				return new Partitioning(columns, workers);
+			}
+			replicated.add(conflict);
+		}
+	}
+
+	/* Finds a variable that all the goals can be partitioned on, given the columns chosen so far, and returns the
+	 * columns of the goals' predicates that haven't been chosen yet. Returns null if there is no such variable. */
+	private static Map<String, Integer> assign(List<Expr> goals, Map<String, Integer> columns) {
+		Expr first = goals.get(0);
+		for(int i = 0; i < first.arity(); i++) {
+			Term variable = first.getTerm(i);
+			if(!variable.isVariable() || (columns.containsKey(first.getPredicate()) && columns.get(first.getPredicate()) != i)) {
+				continue;
+			}
+			Map<String, Integer> assigned = new HashMap<>();
+			boolean found = true;
+			for(Expr goal : goals) {
+				Integer column = columns.containsKey(goal.getPredicate()) ? columns.get(goal.getPredicate()) : assigned.get(goal.getPredicate());
+				if(column == null) {
+					column = goal.getTypedTerms().indexOf(variable);
+					if(column < 0) {
+						found = false;
+						break;
+					}
+					assigned.put(goal.getPredicate(), column);
+				} else if(column >= goal.arity() || !goal.getTerm(column).equals(variable)) {
+					found = false;
+					break;
+				}
+			}
+			if(found) {
+				return assigned;
+			}
+		}
+		return null;
+	}
+
+	/* Returns a negated goal if none of the goals are positive */
+	private static Expr negatedOnly(List<Expr> goals) {
+		for(Expr goal : goals) {
+			if(!goal.isNegated()) {
+				return null;
+			}
+		}
+		return goals.isEmpty() ? null : goals.get(0);
+	}
+
+	private static List<Expr> partitionedGoals(List<Expr> body, Set<String> replicated) {
+		List<Expr> goals = new ArrayList<>();
+		for(Expr goal : body) {
+			if(!goal.isBuiltIn() && !replicated.contains(goal.getPredicate())) {
+				goals.add(goal);
+			}
+		}
+		return goals;
+	}
+
+	/* Determines whether a rule is evaluated by a worker */
+	boolean evaluates(Rule rule, int worker) {
+		for(Expr goal : rule.getBody()) {
+			if(!goal.isBuiltIn() && !isReplicated(goal.getPredicate())) {
+				return true;
+			}
+		}
+		return worker == 0;
+	}
+
+	boolean isReplicated(String predicate) {
+		Integer column = columns.get(predicate);
+		return column != null && column == REPLICATED;
+	}
+
+	/* The worker that owns a fact, or REPLICATED if every worker has a copy. Facts of predicates that no rule
+	 * joins are hashed on their first term. */
+	int owner(Expr fact) {
+		Integer column = columns.get(fact.getPredicate());
+		if(column == null) {
+			column = 0;
+		} else if(column == REPLICATED) {
+			return REPLICATED;
+		}
+		if(fact.arity() <= column) {
+			return 0;
+		}
+		// The hash of the text is the same in every JVM, and survives the trip over the wire
+		return Math.floorMod(fact.getTerm(column).getText().hashCode(), workers);
+	}
+
+	Map<String, Integer> getColumns() {
+		return columns;
+	}
+
+	int getWorkers() {
+		return workers;
+	}
+}
@@ -0,0 +1,138 @@
+package za.co.wstoop.jatalog.distributed;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import za.co.wstoop.jatalog.Expr;
+
+/* The line-based protocol between a Coordinator and its Workers.
+ * Every message is a line of tab-separated fields; Messages that carry facts or rules are followed by a line per
+ * expression and an END line. An expression is sent as its predicate, prefixed with '~' if it is negated, followed by
+ * the text of each term, which the Expr constructor classifies again on the other side. OBJECT terms can't be sent,
+ * since their strings would be classified as other terms, or not at all; the Coordinator rejects them. */
+final class Wire {
+
+	static final String END = "END";
+	static final String OK = "OK";
+	static final String ERROR = "ERROR";
+
+	private final BufferedReader in;
+	private final Writer out;
+
+	Wire(Socket socket) throws IOException {
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	/* Writes a line of fields; The line is only sent once the wire is flushed */
+	void send(List<String> fields) throws IOException {
+		for(int i = 0; i < fields.size(); i++) {
+			if(i > 0) {
+				out.write('\t');
+			}
+			out.write(escape(fields.get(i)));
+		}
+		out.write('\n');
+	}
+
+	void send(String... fields) throws IOException {
+		List<String> list = new ArrayList<>(fields.length);
+		for(String field : fields) {
+			list.add(field);
+		}
+		send(list);
+	}
+
+	/* Writes an expression, preceded by some fields */
+	void send(Expr expr, String... prefix) throws IOException {
+		List<String> fields = new ArrayList<>();
+		for(String field : prefix) {
+			fields.add(field);
+		}
+		fields.add((expr.isNegated() ? "~" : "") + expr.getPredicate());
+		for(int i = 0; i < expr.arity(); i++) {
+			fields.add(expr.getTerm(i).getText());
+		}
+		send(fields);
+	}
+
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	/* Reads a line of fields, or returns null at the end of the stream */
+	String[] receive() throws IOException {
+		String line = in.readLine();
+		if(line == null) {
+			return null;
+		}
+		String[] fields = line.split("\t", -1);
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = unescape(fields[i]);
+		}
+		return fields;
+	}
+
+	/* Reads a line that must be there, like a reply */
+	String[] expect() throws IOException {
+		String[] fields = receive();
+		if(fields == null) {
+			throw new IOException("Connection closed");
+		}
+		return fields;
+	}
+
+	/* Decodes an expression from the fields of a line, starting at a field */
+	static Expr decode(String[] fields, int from) {
+		String predicate = fields[from];
+		boolean negated = predicate.startsWith("~");
+		if(negated) {
+			predicate = predicate.substring(1);
+		}
+		String[] terms = Arrays.copyOfRange(fields, from + 1, fields.length);
+		return negated ? Expr.not(predicate, terms) : new Expr(predicate, terms);
+	}
+
+	private static String escape(String field) {
+		if(field.indexOf('\\') < 0 && field.indexOf('\t') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+			return field;
+		}
+		StringBuilder sb = new StringBuilder();
+		for(char c : field.toCharArray()) {
+			switch(c) {
+			case '\\': sb.append("\\\\"); break;
+			case '\t': sb.append("\\t"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String unescape(String field) {
+		if(field.indexOf('\\') < 0) {
+			return field;
+		}
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if(c == '\\' && i + 1 < field.length()) {
+				c = field.charAt(++i);
+				sb.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
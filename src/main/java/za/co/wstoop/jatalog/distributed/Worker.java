@@ -0,0 +1,282 @@
+package za.co.wstoop.jatalog.distributed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.EdbProvider;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Jatalog;
+import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * A process that stores a partition of a database's facts and evaluates the rules over them, on behalf of a
+ * {@link Coordinator}.
+ * <p>
+ * The worker keeps its facts in the {@link EdbProvider} of a {@link Jatalog} instance without rules, and evaluates
+ * each rule as a query of the rule's body against it. In the first round of a stratum every rule is evaluated in full;
+ * after that only the facts that the worker received in the previous round are used, by replacing each goal of the
+ * stratum's predicates in turn with the new facts of its predicate, as in the engine's semi-naive evaluation.
+ * The facts that the worker derives are sent back to the coordinator along with the workers that own them.
+ * </p><p>
+ * The facts that the worker receives from an evaluation are kept apart from the facts that were loaded, and are
+ * dropped when facts are loaded or the rules change, so that the next evaluation starts from the loaded facts again.
+ * This matters under negation, where new facts can retract facts that were derived before.
+ * </p><p>
+ * Workers serve one coordinator at a time. A worker can be started in its own JVM through {@link #main(String...)},
+ * or on a thread of its own by passing it to a {@link Thread}.
+ * </p>
+ */
+public class Worker implements Runnable, Closeable {
+
+	/* The prefix of the predicates under which the new facts of the previous round are stored */
+	private static final String DELTA = "delta$";
+
+	private final ServerSocket server;
+
+	// The state of the current coordinator's session
+	private Jatalog db;
+	private Partitioning partitioning;
+	private int index;
+	private List<Rule> rules = new ArrayList<>();
+	private Set<String> predicates = new HashSet<>();
+	private Map<String, List<Expr>> delta = new HashMap<>();
+	private Set<Expr> derivedFacts = new HashSet<>();
+	private boolean first;
+
+	/**
+	 * Creates a worker that listens on a port of the loopback interface.
+	 * @param port The port, or 0 for any free port; see {@link #getAddress()}
+	 * @throws IOException if the port can't be bound
+	 */
+	public Worker(int port) throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * Creates a worker that listens on an address.
+	 * @param address The address
+	 * @throws IOException if the address can't be bound
+	 */
+	public Worker(InetSocketAddress address) throws IOException {
+		server = new ServerSocket();
+		server.bind(address);
+	}
+
+	/**
+	 * Retrieves the address that the worker listens on, for the {@link Coordinator}.
+	 * @return the address
+	 */
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress)server.getLocalSocketAddress();
+	}
+
+	/**
+	 * Serves coordinators one after the other, until the worker is closed.
+	 */
+	@Override
+	public void run() {
+		while(!server.isClosed()) {
+			try(Socket socket = server.accept()) {
+				serve(new Wire(socket));
+			} catch (IOException e) {
+				// The coordinator went away, or the worker was closed
+			}
+		}
+	}
+
+	/**
+	 * Stops the worker.
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void serve(Wire wire) throws IOException {
+		db = new Jatalog();
+		delta = new HashMap<>();
+		derivedFacts = new HashSet<>();
+		String[] command;
+		while((command = wire.receive()) != null) {
+			List<String[]> payload = new ArrayList<>();
+			if(!command[0].equals("STEP") && !command[0].equals("FACTS") && !command[0].equals("QUIT")) {
+				String[] line;
+				while(!(line = wire.expect())[0].equals(Wire.END)) {
+					payload.add(line);
+				}
+			}
+			try {
+				switch(command[0]) {
+				case "CONFIG":
+					forgetDerived();
+					configure(command, payload);
+					wire.send(Wire.OK);
+					break;
+				case "LOAD":
+					forgetDerived();
+					for(String[] fields : payload) {
+						db.fact(Wire.decode(fields, 0));
+					}
+					wire.send(Wire.OK, Integer.toString(payload.size()));
+					break;
+				case "STRATUM":
+					stratum(payload);
+					wire.send(Wire.OK);
+					break;
+				case "STEP":
+					step(wire);
+					wire.send(Wire.END);
+					break;
+				case "RECEIVE":
+					wire.send(Wire.OK, Integer.toString(receive(payload)));
+					break;
+				case "FACTS":
+					for(Expr fact : db.getEdbProvider().getFacts(command[1])) {
+						wire.send(fact);
+					}
+					wire.send(Wire.END);
+					break;
+				case "QUIT":
+					return;
+				default:
+					throw new DatalogException("Unknown command " + command[0]);
+				}
+			} catch (DatalogException | RuntimeException e) {
+				// Bad input fails the command, not the worker
+				wire.send(Wire.ERROR, String.valueOf(e.getMessage()));
+			}
+			wire.flush();
+		}
+	}
+
+	private void configure(String[] command, List<String[]> payload) {
+		index = Integer.parseInt(command[1]);
+		Map<String, Integer> columns = new HashMap<>();
+		for(String[] fields : payload) {
+			columns.put(fields[0], Integer.parseInt(fields[1]));
+		}
+		partitioning = new Partitioning(columns, Integer.parseInt(command[2]));
+	}
+
+	/* Receives the rules of the next stratum: Each rule is a line with the number of goals in its body,
+	 * followed by its head and its goals */
+	private void stratum(List<String[]> payload) {
+		rules = new ArrayList<>();
+		predicates = new HashSet<>();
+		for(int i = 0; i < payload.size(); ) {
+			int size = Integer.parseInt(payload.get(i)[1]);
+			Expr head = Wire.decode(payload.get(i + 1), 0);
+			List<Expr> body = new ArrayList<>();
+			for(int j = 0; j < size; j++) {
+				body.add(Wire.decode(payload.get(i + 2 + j), 0));
+			}
+			rules.add(new Rule(head, body));
+			predicates.add(head.getPredicate());
+			i += 2 + size;
+		}
+		delta = new HashMap<>();
+		first = true;
+	}
+
+	/* Evaluates the stratum's rules once, and sends the facts that they derive along with their owners */
+	private void step(Wire wire) throws DatalogException, IOException {
+		EdbProvider edb = db.getEdbProvider();
+		List<Expr> deltaFacts = new ArrayList<>();
+		for(Map.Entry<String, List<Expr>> entry : delta.entrySet()) {
+			for(Expr fact : entry.getValue()) {
+				Expr renamed = Expr.of(DELTA + entry.getKey(), fact.getTypedTerms().toArray(new Term[0]));
+				edb.add(renamed);
+				deltaFacts.add(renamed);
+			}
+		}
+		Set<Expr> derived = new LinkedHashSet<>();
+		try {
+			for(Rule rule : rules) {
+				if(!partitioning.evaluates(rule, index)) {
+					continue;
+				}
+				if(first) {
+					derive(rule, rule.getBody(), derived);
+					continue;
+				}
+				for(int i = 0; i < rule.getBody().size(); i++) {
+					Expr goal = rule.getBody().get(i);
+					if(goal.isNegated() || !delta.containsKey(goal.getPredicate())) {
+						continue;
+					}
+					List<Expr> goals = new ArrayList<>(rule.getBody());
+					goals.set(i, Expr.of(DELTA + goal.getPredicate(), goal.getTypedTerms().toArray(new Term[0])));
+					derive(rule, goals, derived);
+				}
+			}
+		} finally {
+			edb.removeAll(deltaFacts);
+			delta = new HashMap<>();
+			first = false;
+		}
+		for(Expr fact : derived) {
+			wire.send(fact, Integer.toString(partitioning.owner(fact)));
+		}
+	}
+
+	/* Matches the goals of a rule against the worker's facts, and collects the facts that the head derives that
+	 * aren't known to be in the database yet */
+	private void derive(Rule rule, List<Expr> goals, Collection<Expr> derived) throws DatalogException {
+		EdbProvider edb = db.getEdbProvider();
+		for(Map<String, String> answer : db.query(goals)) {
+			Expr fact = rule.getHead().substitute(answer);
+			int owner = partitioning.owner(fact);
+			if((owner != index && owner != Partitioning.REPLICATED) || !edb.contains(fact)) {
+				derived.add(fact);
+			}
+		}
+	}
+
+	/* Adds the facts that other workers derived for this one, and returns the number of facts that are new */
+	private int receive(List<String[]> payload) throws DatalogException {
+		EdbProvider edb = db.getEdbProvider();
+		int added = 0;
+		for(String[] fields : payload) {
+			Expr fact = Wire.decode(fields, 0);
+			if(!edb.contains(fact)) {
+				db.fact(fact);
+				derivedFacts.add(fact);
+				delta.computeIfAbsent(fact.getPredicate(), k -> new ArrayList<>()).add(fact);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/* Removes the facts that the previous evaluation derived, since they may not follow from the new facts or rules */
+	private void forgetDerived() {
+		db.getEdbProvider().removeAll(derivedFacts);
+		derivedFacts = new HashSet<>();
+	}
+
+	/**
+	 * Starts a worker in its own JVM.
+	 * @param args The port to listen on, on the loopback interface; any free port if it's omitted.
+	 * @throws IOException if the port can't be bound
+	 */
+	public static void main(String... args) throws IOException {
+		try(Worker worker = new Worker(args.length > 0 ? Integer.parseInt(args[0]) : 0)) {
+			System.out.println("Jatalog worker listening on " + worker.getAddress());
+			worker.run();
+		}
+	}
+}
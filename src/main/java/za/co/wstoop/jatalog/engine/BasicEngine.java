@@ -1,82 +1,507 @@
 package za.co.wstoop.jatalog.engine;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import za.co.wstoop.jatalog.Aggregate;
 import za.co.wstoop.jatalog.DatalogException;
 import za.co.wstoop.jatalog.Expr;
 import za.co.wstoop.jatalog.Jatalog;
 import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.Term;
 
 public class BasicEngine extends Engine {
 
-	@Override
-	public Collection<Map<String, String>> query(Jatalog jatalog, List<Expr> goals, Map<String, String> bindings) throws DatalogException {
-		if (goals.isEmpty())
-			return Collections.emptyList();
+	private volatile StratumCache stratumCache = new StratumCache();
+
+	private volatile int parallelThreshold = 4096;
+
+	private volatile ForkJoinPool parallelPool = ForkJoinPool.commonPool();
+
+	private volatile boolean concurrentStrata = true;
+
+	/**
+	 * Retrieves the cache of the facts derived by the strata of earlier queries, which are reused by later 
+	 * queries if the facts and rules that they depend on haven't changed.
+	 * @return the cache, or null if strata aren't cached
+	 */
+	public StratumCache getStratumCache() {
+		return stratumCache;
+	}
+
+	/**
+	 * Sets the cache of the facts derived by the strata of earlier queries. By default the engine has a cache
+	 * that holds up to {@link StratumCache#DEFAULT_MAX_FACTS} facts.
+	 * @param stratumCache The cache, like {@code new StratumCache(100000)}, or null to evaluate every stratum 
+	 * 	of every query.
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public BasicEngine setStratumCache(StratumCache stratumCache) {
+		this.stratumCache = stratumCache;
+		return this;
+	}
+
+	/**
+	 * Retrieves the number of facts that the first goal of a rule must be matched against before the rule is
+	 * evaluated in parallel.
+	 * @return the threshold
+	 * @see #setParallelThreshold(int)
+	 */
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * Sets the number of facts that the first goal of a rule must be matched against before the rule is
+	 * evaluated in parallel: The facts are split into chunks that are joined with the rule's other goals on the
+	 * {@link #setParallelPool(ForkJoinPool) pool}, so that a single expensive rule can use all the processors.
+	 * Rules are never evaluated in parallel while they are profiled, or if the pool has a single thread.
+	 * @param parallelThreshold The number of facts; {@code Integer.MAX_VALUE} to evaluate every rule on the calling thread.
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public BasicEngine setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+		return this;
+	}
+
+	/**
+	 * Checks whether strata that don't depend on each other are evaluated concurrently.
+	 * @return true if strata are evaluated concurrently
+	 * @see #setConcurrentStrata(boolean)
+	 */
+	public boolean isConcurrentStrata() {
+		return concurrentStrata;
+	}
+
+	/**
+	 * Enables or disables the concurrent evaluation of strata. The strata of a query are scheduled as a DAG on the
+	 * {@link #setParallelPool(ForkJoinPool) pool}: Each stratum starts as soon as the strata whose predicates it uses
+	 * are complete, so strata on independent branches of the dependency graph, like {@code sibling} and {@code married}, 
+	 * are evaluated at the same time, and a query takes roughly as long as its longest chain of strata.
+	 * Strata are evaluated one after the other if the query has listeners, or if the pool has a single thread.
+	 * This is enabled by default.
+	 * @param concurrentStrata true to evaluate independent strata concurrently
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public BasicEngine setConcurrentStrata(boolean concurrentStrata) {
+		this.concurrentStrata = concurrentStrata;
+		return this;
+	}
 
-		// Reorganize the goals so that negated literals are at the end.
-		List<Expr> orderedGoals = Engine.reorderQuery(goals);
+	/**
+	 * Retrieves the pool on which rules are evaluated in parallel.
+	 * @return the pool
+	 * @see #setParallelThreshold(int)
+	 */
+	public ForkJoinPool getParallelPool() {
+		return parallelPool;
+	}
 
-		
-		Collection<String> predicates = getRelevantPredicates(jatalog, goals);			
-		Collection<Rule> rules = jatalog.getIdb().stream().filter(rule -> predicates.contains(rule.getHead().getPredicate())).collect(Collectors.toSet());
+	/**
+	 * Sets the pool on which rules and strata are evaluated in parallel. This is the common {@link ForkJoinPool} by default.
+	 * @param parallelPool The pool
+	 * @return {@code this} so that methods can be chained.
+	 */
+	public BasicEngine setParallelPool(ForkJoinPool parallelPool) {
+		this.parallelPool = parallelPool;
+		return this;
+	}
+
+	@Override
+	public Collection<Map<String, String>> query(Jatalog jatalog, QueryPlan plan, Map<String, String> bindings, QueryContext context) throws DatalogException {
+		if (plan.getGoals().isEmpty())
+			return Collections.emptyList();
 
-		// Build an IndexedSet<> with only the relevant facts for this particular query.			
-		IndexedSet<Expr, String> facts = new IndexedSet<>();
-		for(String predicate : predicates) {
-			facts.addAll(jatalog.getEdbProvider().getFacts(predicate));
+		context.begin();
+		EngineListener listener = context.getListener();
+		long start = 0;
+		if(listener != null) {
+			listener.queryStarted(plan, bindings);
+			start = System.nanoTime();
 		}
 
+		// The facts in the EDB are read in place; only the facts derived for this 
+		// particular query are stored, in an overlay.
+		LayeredFactStore facts = new LayeredFactStore(jatalog.getEdbProvider(), jatalog.getDensePredicates());
+
 		// Build the database. A Set ensures that the facts are unique
-		IndexedSet<Expr, String> resultSet = expandDatabase(facts, rules);
+		List<Expr> goals = plan.getOrderedGoals();
+		if(bindings != null) {
+			goals = goals.stream().map(goal -> goal.substitute(bindings)).collect(Collectors.toList());
+		}
+		FactView resultSet = expandDatabase(jatalog, facts, plan.getStrata(), goals, context);
 
 		// Now match the expanded database to the goals
-		return matchGoals(orderedGoals, resultSet, bindings);
+		long scanned = context.scanned;
+		Collection<Map<String, Term>> answers = joinGoals(plan.getOrderedGoals(), resultSet, Term.toTerms(bindings), context);
+		if(listener != null) {
+			listener.queryCompleted(plan, context.scanned - scanned, answers.size(), System.nanoTime() - start);
+		}
+		// The engine binds variables to typed terms; The API returns their textual forms.
+		return answers.stream().map(Term::toStrings).collect(Collectors.toList());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The strata of all the queries are evaluated once, into a single fact store, after which each query's
+	 * goals are matched against the shared facts. In parallel mode the goals of each query are matched on a 
+	 * separate thread with a {@link QueryContext} of its own, that has the same limits and is cancelled along 
+	 * with the batch's. The listener is notified of each query from the calling thread once all the queries 
+	 * have been matched.
+	 * </p>
+	 */
+	@Override
+	public List<Collection<Map<String, String>>> query(Jatalog jatalog, List<QueryPlan> plans, boolean parallel, QueryContext context) throws DatalogException {
+		context.begin();
+		EngineListener listener = context.getListener();
+		long start = System.nanoTime();
+		if(listener != null) {
+			for(QueryPlan plan : plans) {
+				listener.queryStarted(plan, null);
+			}
+		}
+
+		// The union of the queries' strata, in the order of the stratification so that every stratum 
+		// comes after the strata it depends on
+		Set<Stratum> relevant = new HashSet<>();
+		List<Expr> goals = new ArrayList<>();
+		for(QueryPlan plan : plans) {
+			relevant.addAll(plan.getStrata());
+			goals.addAll(plan.getOrderedGoals());
+		}
+		List<Stratum> strata = new ArrayList<>();
+		for(Stratum stratum : jatalog.getRuleCatalog().getStrata()) {
+			if(relevant.contains(stratum)) {
+				strata.add(stratum);
+			}
+		}
+		LayeredFactStore facts = new LayeredFactStore(jatalog.getEdbProvider(), jatalog.getDensePredicates());
+		FactView resultSet = expandDatabase(jatalog, facts, strata, goals, context);
+
+		// Match each query against the shared facts, which are only read from here on
+		int size = plans.size();
+		List<Collection<Map<String, Term>>> answers = new ArrayList<>(Collections.nCopies(size, null));
+		long[] scanned = new long[size];
+		if(parallel && size > 1) {
+			QueryContext[] forks = new QueryContext[size];
+			DatalogException[] errors = new DatalogException[size];
+			for(int i = 0; i < size; i++) {
+				forks[i] = context.fork();
+			}
+			IntStream.range(0, size).parallel().forEach(i -> {
+				try {
+					answers.set(i, joinGoals(plans.get(i).getOrderedGoals(), resultSet, null, forks[i]));
+				} catch (DatalogException e) {
+					errors[i] = e;
+				}
+			});
+			for(int i = 0; i < size; i++) {
+				if(errors[i] != null) {
+					throw errors[i];
+				}
+				context.join(forks[i]);
+				scanned[i] = forks[i].scanned;
+			}
+			context.checkLimits();
+		} else {
+			for(int i = 0; i < size; i++) {
+				long before = context.scanned;
+				answers.set(i, joinGoals(plans.get(i).getOrderedGoals(), resultSet, null, context));
+				scanned[i] = context.scanned - before;
+			}
+		}
+
+		List<Collection<Map<String, String>>> results = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			if(listener != null) {
+				listener.queryCompleted(plans.get(i), scanned[i], answers.get(i).size(), System.nanoTime() - start);
+			}
+			if(plans.get(i).getGoals().isEmpty()) {
+				results.add(Collections.emptyList());
+			} else {
+				results.add(answers.get(i).stream().map(Term::toStrings).collect(Collectors.toList()));
+			}
+		}
+		return results;
 	}
 	
     /* The core of the bottom-up implementation:
-     * It computes the stratification of the rules in the EDB and then expands each
-     * strata in turn, returning a collection of newly derived facts. */
-    private IndexedSet<Expr,String> expandDatabase(IndexedSet<Expr,String> facts, Collection<Rule> allRules) throws DatalogException {
-        List< Collection<Rule> > strata = computeStratification(allRules);
-        for(int i = 0; i < strata.size(); i++) {
-            Collection<Rule> rules = strata.get(i);
-            expandStrata(facts, rules);
+     * It expands each of the strata computed for the query's rules in turn, returning 
+     * the facts database expanded with the newly derived facts. 
+     * A stratum that isn't recursive can't derive facts that its own rules depend on, so a single 
+     * pass over its rules is enough. 
+     * The goals of the query determine whether a transitive closure can be restricted to a source or target. 
+     * The facts that a stratum derives are cached, and reused by later queries for as long as the stratum's 
+     * inputs don't change (see StratumCache); A stratum that is reused is reported with 0 iterations. 
+     * Strata are always evaluated while profiling, so that their rules are measured. 
+     * Strata that don't depend on each other are evaluated concurrently on the parallel pool, unless the query 
+     * has listeners, which are notified of the strata in order on the calling thread; see StratumScheduler. */
+    private FactView expandDatabase(Jatalog jatalog, LayeredFactStore facts, List<Stratum> strata, List<Expr> goals, QueryContext context) throws DatalogException {
+        // The stamps of the facts of the predicates derived so far; see StratumCache
+        Map<String, Long> stamps = new ConcurrentHashMap<>();
+        StratumCache cache = stratumCache;
+        if(concurrentStrata && strata.size() > 1 && context.getListener() == null && parallelPool.getParallelism() > 1) {
+            StratumScheduler scheduler = new StratumScheduler(strata);
+            if(scheduler.hasIndependentStrata()) {
+                return scheduler.run(jatalog.getEdbProvider(), jatalog.getDensePredicates(), context, parallelPool,
+                        (stratum, store, fork) -> expandStratum(jatalog, store, stratum, strata, goals, cache, stamps, fork));
+            }
+        }
+        for(Stratum stratum : strata) {
+            expandStratum(jatalog, facts, stratum, strata, goals, cache, stamps, context);
         }
         return facts;
     }
 
+    /* Evaluates a stratum of a query, or reuses its cached facts, and records the stamp of its facts.
+     * The cache may be null, in which case the stamps aren't used. */
+    private void expandStratum(Jatalog jatalog, LayeredFactStore facts, Stratum stratum, List<Stratum> strata, List<Expr> goals, StratumCache cache, Map<String, Long> stamps, QueryContext context) throws DatalogException {
+        EngineListener listener = context.getListener();
+        long start = 0;
+        int before = facts.getDerivedCount();
+        if(listener != null) {
+            listener.stratumStarted(stratum);
+            start = System.nanoTime();
+        }
+        StratumCache.Inputs inputs = cache != null ? StratumCache.inputs(jatalog, stratum, stamps) : null;
+        StratumCache.Entry cached = inputs != null && !context.isProfiling() ? cache.get(inputs) : null;
+        int iterations = 0;
+        long stamp;
+        if(cached != null) {
+            facts.addAll(cached.facts);
+            for(DenseRelation relation : cached.relations) {
+                facts.markDense(relation.getPredicate());
+                facts.addAll(DenseRelation.copyOf(relation, facts.getDomain()));
+            }
+            stamp = cached.stamp;
+        } else {
+            Expr closureGoal = null;
+            if(stratum.getTransitiveClosure() != null) {
+                closureGoal = getClosureGoal(stratum.getTransitiveClosure(), strata, goals);
+            }
+            iterations = expandStratum(facts, stratum, closureGoal, context);
+            // A closure that was restricted to the goal's source or target is incomplete
+            if(inputs != null && closureGoal == null) {
+                List<Expr> derived = new ArrayList<>();
+                List<DenseRelation> relations = new ArrayList<>();
+                for(String predicate : stratum.getPredicates()) {
+                    derived.addAll(facts.getDerived().getIndexed(predicate));
+                    DenseRelation relation = facts.getDerivedRelation(predicate);
+                    if(relation != null && !relation.isEmpty()) {
+                        relations.add(relation);
+                    }
+                }
+                stamp = cache.put(inputs, derived, relations);
+            } else {
+                stamp = cache != null ? cache.newStamp() : 0;
+            }
+        }
+        for(String predicate : stratum.getPredicates()) {
+            stamps.put(predicate, stamp);
+        }
+        if(listener != null) {
+            listener.stratumCompleted(stratum, iterations, facts.getDerivedCount() - before, System.nanoTime() - start);
+        }
+    }
+
+    /* Evaluates a single stratum, and returns the number of iterations. 
+     * The closure goal is the goal that a transitive closure may be restricted to. */
+    private int expandStratum(LayeredFactStore facts, Stratum stratum, Expr closureGoal, QueryContext context) throws DatalogException {
+        if(stratum.getTransitiveClosure() != null) {
+            expandClosure(facts, stratum, stratum.getTransitiveClosure(), closureGoal, context);
+            return 1;
+        } else if(stratum.isRecursive()) {
+            return expandStrata(facts, stratum, context);
+        }
+        for(Rule rule : stratum.getRules()) {
+            if(!matchDenseRule(facts, stratum, rule, context)) {
+                facts.addAll(matchRule(facts, stratum, rule, 1, context));
+            }
+        }
+        return 1;
+    }
+
+    /* Evaluates a stratum that computes a transitive closure: The base rules are matched once, after which 
+     * the recursive rule is replaced by a graph search over the facts. 
+     * If all of the closure's facts are needed they are stored as a dense relation, since a closure 
+     * tends to be dense. */
+    private void expandClosure(LayeredFactStore facts, Stratum stratum, TransitiveClosure closure, Expr goal, QueryContext context) throws DatalogException {
+        boolean dense = goal == null && facts.markDense(closure.getPredicate());
+        for(Rule rule : closure.getBaseRules()) {
+            facts.addAll(matchRule(facts, stratum, rule, 1, context));
+        }
+        context.checkInterrupts();
+
+        EngineListener listener = context.getListener();
+        long start = listener != null ? System.nanoTime() : 0;
+        long scanned = context.scanned;
+        int derived;
+        if(dense) {
+            derived = closure.evaluate(facts, context);
+        } else {
+            Set<Expr> found = closure.evaluate(facts, goal, context);
+            facts.addAll(found);
+            derived = found.size();
+        }
+        if(listener != null) {
+            listener.ruleEvaluated(stratum, closure.getRecursiveRule(), 1, context.scanned - scanned, derived, derived, System.nanoTime() - start);
+        }
+    }
+
+    /* Evaluates a non-recursive rule that joins two binary relations into a dense relation a row at a time, 
+     * like sibling(X, Y) :- parent(Z, X), parent(Z, Y), X <> Y: The relations are oriented so that the 
+     * join variable is the second term of the first and the first term of the second, and composed.
+     * Returns false if the rule doesn't have that form, in which case it must be matched normally. */
+    private static boolean matchDenseRule(LayeredFactStore facts, Stratum stratum, Rule rule, QueryContext context) throws DatalogException {
+        Expr head = rule.getHead();
+        if(!facts.isDense(head.getPredicate()) || head.arity() != 2 || Aggregate.hasAggregates(head)) {
+            return false;
+        }
+        Term x = head.getTerm(0), y = head.getTerm(1);
+        if(!x.isVariable() || !y.isVariable() || x.equals(y)) {
+            return false;
+        }
+        List<Expr> joined = new ArrayList<>();
+        boolean irreflexive = false;
+        for(Expr goal : rule.getBody()) {
+            if(goal.isBuiltIn() && !goal.isNegated() && goal.getPredicate().equals("<>")
+                    && new HashSet<>(goal.getTypedTerms()).equals(new HashSet<>(Arrays.asList(x, y)))) {
+                irreflexive = true;
+            } else if(!goal.isBuiltIn() && !goal.isNegated() && goal.arity() == 2
+                    && goal.getTerm(0).isVariable() && goal.getTerm(1).isVariable() && !goal.getTerm(0).equals(goal.getTerm(1))) {
+                joined.add(goal);
+            } else {
+                return false;
+            }
+        }
+        if(joined.size() != 2) {
+            return false;
+        }
+        // The first goal must contain X and the join variable, and the second the join variable and Y
+        Expr first = joined.get(0), second = joined.get(1);
+        if(!first.getTypedTerms().contains(x)) {
+            Expr swap = first; first = second; second = swap;
+        }
+        int fx = first.getTypedTerms().indexOf(x), sy = second.getTypedTerms().indexOf(y);
+        if(fx < 0 || sy < 0) {
+            return false;
+        }
+        Term join = first.getTerm(1 - fx);
+        if(join.equals(y) || !second.getTerm(1 - sy).equals(join)) {
+            return false;
+        }
+
+        EngineListener listener = context.getListener();
+        long start = listener != null ? System.nanoTime() : 0;
+        long scanned = context.scanned;
+        DenseRelation left = relation(facts, first.getPredicate(), context);
+        DenseRelation right = relation(facts, second.getPredicate(), context);
+        if(fx == 1) {
+            left = left.transpose(first.getPredicate());
+        }
+        if(sy == 0) {
+            right = right.transpose(second.getPredicate());
+        }
+        DenseRelation result = DenseRelation.compose(head.getPredicate(), left, right);
+        if(irreflexive) {
+            result.removeReflexive();
+        }
+        int derived = facts.addAll(result);
+        context.derive(derived);
+        if(listener != null) {
+            listener.ruleEvaluated(stratum, rule, 1, context.scanned - scanned, result.size(), derived, System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /* The facts of a binary predicate as a relation over the store's domain */
+    private static DenseRelation relation(LayeredFactStore facts, String predicate, QueryContext context) throws DatalogException {
+        Collection<Expr> found = facts.getFacts(predicate);
+        if(found instanceof DenseRelation) {
+            return DenseRelation.of(predicate, found, facts.getDomain());
+        }
+        DenseRelation relation = new DenseRelation(predicate, facts.getDomain());
+        for(Expr fact : found) {
+            context.scan();
+            relation.add(fact);
+        }
+        return relation;
+    }
+
+    /* Finds the query goal that the facts of a transitive closure are only needed for, so that the 
+     * search can start from its source or target. Returns null if all of the facts may be needed:
+     * if the closure's predicate is used by other rules, or by more than one goal, or in a negated goal. */
+    private static Expr getClosureGoal(TransitiveClosure closure, List<Stratum> strata, List<Expr> goals) {
+        for(Stratum stratum : strata) {
+            if(stratum.getTransitiveClosure() == closure) {
+                continue;
+            }
+            for(Rule rule : stratum.getRules()) {
+                for(Expr goal : rule.getBody()) {
+                    if(goal.getPredicate().equals(closure.getPredicate())) {
+                        return null;
+                    }
+                }
+            }
+        }
+        Expr found = null;
+        for(Expr goal : goals) {
+            if(goal.getPredicate().equals(closure.getPredicate())) {
+                if(found != null || goal.isNegated()) {
+                    return null;
+                }
+                found = goal;
+            }
+        }
+        return found;
+    }
+
     /* This implements the semi-naive part of the evaluator.
      * For all the rules derive a collection of new facts; Repeat until no new
      * facts can be derived.
      * The semi-naive part is to only use the rules that are affected by newly derived
      * facts in each iteration of the loop.
+     * Returns the number of iterations.
      */
-    private Collection<Expr> expandStrata(IndexedSet<Expr,String> facts, Collection<Rule> strataRules) {
+    private int expandStrata(LayeredFactStore facts, Stratum stratum, QueryContext context) throws DatalogException {
 
-		if (strataRules == null || strataRules.isEmpty()) {
-			return Collections.emptyList();
+		Collection<Rule> rules = stratum.getRules();
+		if (rules.isEmpty()) {
+			return 0;
 		}
-		
-		Collection<Rule> rules = strataRules;
 
-        Map<String, Collection<Rule>> dependentRules = buildDependentRules(strataRules);
+        Map<String, Collection<Rule>> dependentRules = stratum.getDependentRules();
+
+        for(int iteration = 1; ; iteration++) {
+            context.checkInterrupts();
 
-        while(true) {
             // Match each rule to the facts
         	IndexedSet<Expr,String> newFacts = new IndexedSet<>();
             for(Rule rule : rules) {
-                newFacts.addAll(matchRule(facts, rule));
+                newFacts.addAll(matchRule(facts, stratum, rule, iteration, context));
+            }
+
+            if(context.getListener() != null) {
+                context.getListener().iterationCompleted(stratum, iteration, newFacts.size());
             }
 
             // Repeat until there are no more facts added
             if(newFacts.isEmpty()) {
-                return facts;
+                return iteration;
             }
 
             // Determine which rules depend on the newly derived facts
@@ -86,17 +511,126 @@ public class BasicEngine extends Engine {
         }
     }
     
-    /* Match the facts in the EDB against a specific rule */
-    private Set<Expr> matchRule(IndexedSet<Expr,String> facts, Rule rule) {
+    /* Match the facts in the EDB against a specific rule.
+     * The body's answers are pushed through the head one at a time rather than collected: Each answer is 
+     * written into a reusable head tuple, which is probed against the facts and the facts derived so far, and
+     * a fact is only allocated for a tuple that is genuinely new. 
+     * If the rule's first goal has enough candidate facts, they are split between the threads of a 
+     * ForkJoinPool instead; see ParallelJoin. */
+    private Set<Expr> matchRule(FactView facts, Stratum stratum, Rule rule, int iteration, QueryContext context) throws DatalogException {
         if(rule.getBody().isEmpty()) // If this happens, you're using the API wrong.
             return Collections.emptySet();
 
+        EngineListener listener = context.getListener();
+        long start = listener != null ? System.nanoTime() : 0;
+        long scanned = context.scanned;
+
         // Match the rule body to the facts.
-        Collection<Map<String, String>> answers = matchGoals(rule.getBody(), facts, null);
-        
-        return answers.stream().map(answer -> rule.getHead().substitute(answer))
-        		.filter(derivedFact -> !facts.contains(derivedFact))
-        		.collect(Collectors.toSet());
+        Expr head = rule.getHead();
+        Set<Expr> derived = new HashSet<>();
+        long[] answers = new long[1];
+        Expr[] candidates;
+        if(Aggregate.hasAggregates(head)) {
+            Grouping groups = new Grouping(head);
+            joinGoals(rule.getBody(), facts, null, context, answer -> {
+                answers[0]++;
+                groups.accept(answer);
+            });
+            for(Expr fact : groups.getFacts()) {
+                if(!facts.contains(fact)) {
+                    derived.add(fact);
+                }
+            }
+        } else if((candidates = parallelCandidates(rule, facts, context)) != null) {
+            derived = ParallelJoin.derive(head, rule.getBody(), candidates, facts, context, parallelPool, answers);
+        } else {
+            Expr tuple = head.copy();
+            Set<Expr> found = derived;
+            joinGoals(rule.getBody(), facts, null, context, answer -> {
+                answers[0]++;
+                head.substituteTerms(answer, tuple);
+                if(!found.contains(tuple) && !facts.contains(tuple)) {
+                    found.add(tuple.copy());
+                }
+            });
+        }
+        context.derive(derived.size());
+
+        if(listener != null) {
+            listener.ruleEvaluated(stratum, rule, iteration, context.scanned - scanned, answers[0], derived.size(), System.nanoTime() - start);
+        }
+        return derived;
+    }
+
+    /* The candidate facts of a rule's first goal if the rule should be evaluated in parallel, or null.
+     * Cyclic bodies are left to the LeapfrogJoin. */
+    private Expr[] parallelCandidates(Rule rule, FactView facts, QueryContext context) {
+        Expr goal = rule.getBody().get(0);
+        if(context.isProfiling() || goal.isBuiltIn() || goal.isNegated() || parallelPool.getParallelism() < 2
+                || LeapfrogJoin.isCyclic(rule.getBody())) {
+            return null;
+        }
+        Collection<Expr> candidates = candidateFacts(goal, rule.getBody(), facts, null);
+        if(candidates.size() < parallelThreshold) {
+            return null;
+        }
+        return candidates.toArray(new Expr[candidates.size()]);
+    }
+
+    /* Derives the facts of a rule with aggregates in its head from the bindings of its body:
+     * The bindings are grouped in a hash table by the values of the head's other variables as they 
+     * are pushed to it, and each group derives one fact. */
+    private static class Grouping implements AnswerSink {
+        private final Expr head;
+        private final int arity;
+        private final List<Aggregate> aggregates;
+        private final Map<List<Term>, Aggregate.Accumulator[]> groups = new LinkedHashMap<>();
+
+        Grouping(Expr head) {
+            this.head = head;
+            this.arity = head.arity();
+            this.aggregates = Aggregate.getAggregates(head);
+        }
+
+        @Override
+        public void accept(Map<String, Term> answer) throws DatalogException {
+            List<Term> key = new ArrayList<>();
+            for(int i = 0; i < arity; i++) {
+                if(aggregates.get(i) == null) {
+                    Term term = head.getTerm(i);
+                    key.add(term.isVariable() ? answer.get(term.getText()) : term);
+                }
+            }
+            Aggregate.Accumulator[] accumulators = groups.get(key);
+            if(accumulators == null) {
+                accumulators = new Aggregate.Accumulator[arity];
+                for(int i = 0; i < arity; i++) {
+                    if(aggregates.get(i) != null) {
+                        accumulators[i] = aggregates.get(i).newAccumulator();
+                    }
+                }
+                groups.put(key, accumulators);
+            }
+            for(int i = 0; i < arity; i++) {
+                if(accumulators[i] != null) {
+                    accumulators[i].add(answer.get(aggregates.get(i).getVariable()));
+                }
+            }
+        }
+
+        Collection<Expr> getFacts() throws DatalogException {
+            List<Expr> facts = new ArrayList<>(groups.size());
+            for(Map.Entry<List<Term>, Aggregate.Accumulator[]> group : groups.entrySet()) {
+                Iterator<Term> key = group.getKey().iterator();
+                Aggregate.Accumulator[] accumulators = group.getValue();
+                Term[] values = new Term[arity];
+                for(int i = 0; i < arity; i++) {
+                    values[i] = accumulators[i] != null ? accumulators[i].result() : key.next();
+                }
+                facts.add(Expr.of(head.getPredicate(), values));
+            }
+            return facts;
+        }
     }
 
 }
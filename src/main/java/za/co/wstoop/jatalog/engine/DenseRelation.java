@@ -0,0 +1,387 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * A binary relation that is stored as a bitset of targets per source, for dense relations such as the
+ * transitive closure of a graph or {@code related(X, Y) :- ancestor(Z, X), ancestor(Z, Y)}.
+ * <p>
+ * The terms are numbered by a {@link Domain} that is shared by the relations of a {@link LayeredFactStore}, so a
+ * fact takes a single bit instead of an {@link Expr} in a couple of hash tables. The facts are presented as
+ * {@code Expr}s when the relation is iterated, but they are only created on demand.
+ * </p><p>
+ * Besides adding facts one at a time, relations can be combined a set at a time with {@link #addAll(DenseRelation)},
+ * {@link #removeAll(DenseRelation)} and {@link #compose(String, DenseRelation, DenseRelation)}, which the engine uses
+ * to evaluate rules that join two binary relations.
+ * </p>
+ */
+public class DenseRelation extends AbstractCollection<Expr> {
+
+	/**
+	 * Numbers the terms of dense relations, so that they can be stored in bitsets.
+	 */
+	public static class Domain {
+		private final Map<Term, Integer> ids = new HashMap<>();
+		private final List<Term> terms = new ArrayList<>();
+
+		/**
+		 * Retrieves the number of a term, numbering it if it hasn't been numbered yet.
+		 * @param term The term
+		 * @return the term's number
+		 */
+		public int id(Term term) {
+			Integer id = ids.get(term);
+			if(id == null) {
+				id = terms.size();
+				ids.put(term, id);
+				terms.add(term);
+			}
+			return id;
+		}
+
+		/**
+		 * Retrieves the number of a term without numbering it.
+		 * @param term The term
+		 * @return the term's number, or -1 if the term hasn't been numbered
+		 */
+		public int lookup(Term term) {
+			Integer id = ids.get(term);
+			return id != null ? id : -1;
+		}
+
+		/**
+		 * Retrieves the term with a number.
+		 * @param id The number
+		 * @return the term
+		 */
+		public Term term(int id) {
+			return terms.get(id);
+		}
+
+		/**
+		 * Retrieves the number of terms that have been numbered.
+		 * @return the size of the domain
+		 */
+		public int size() {
+			return terms.size();
+		}
+	}
+
+	private final String predicate;
+	private final Domain domain;
+	private final List<BitSet> rows = new ArrayList<>();
+	private int size;
+
+	/**
+	 * Creates an empty relation.
+	 * @param predicate The predicate of the facts in the relation
+	 * @param domain The numbering of the terms
+	 */
+	public DenseRelation(String predicate, Domain domain) {
+		this.predicate = predicate;
+		this.domain = domain;
+	}
+
+	/**
+	 * Creates a relation from the binary facts in a collection. If the collection is already a relation
+	 * over the same domain it is returned as it is.
+	 * @param predicate The predicate of the facts
+	 * @param facts The facts; facts that aren't binary are ignored
+	 * @param domain The numbering of the terms
+	 * @return the relation
+	 */
+	public static DenseRelation of(String predicate, Collection<Expr> facts, Domain domain) {
+		if(facts instanceof DenseRelation && ((DenseRelation)facts).domain == domain) {
+			return (DenseRelation)facts;
+		}
+		DenseRelation relation = new DenseRelation(predicate, domain);
+		for(Expr fact : facts) {
+			if(fact.arity() == 2) {
+				relation.add(fact);
+			}
+		}
+		return relation;
+	}
+
+	/**
+	 * Copies a relation into a relation over another domain, a row at a time, numbering its terms in that domain.
+	 * @param relation The relation to copy
+	 * @param domain The numbering of the terms of the copy
+	 * @return the copy
+	 */
+	public static DenseRelation copyOf(DenseRelation relation, Domain domain) {
+		DenseRelation copy = new DenseRelation(relation.predicate, domain);
+		int[] ids = new int[relation.domain.size()];
+		Arrays.fill(ids, -1);
+		for(int source = 0; source < relation.rows.size(); source++) {
+			BitSet row = relation.rows.get(source);
+			if(row == null || row.isEmpty()) {
+				continue;
+			}
+			BitSet targets = new BitSet();
+			for(int target = row.nextSetBit(0); target >= 0; target = row.nextSetBit(target + 1)) {
+				targets.set(translate(ids, relation.domain, domain, target));
+			}
+			copy.addRow(translate(ids, relation.domain, domain, source), targets);
+		}
+		return copy;
+	}
+
+	/* The number in one domain of the term with a number in another, remembering the numbers found so far */
+	private static int translate(int[] ids, Domain from, Domain to, int id) {
+		if(ids[id] < 0) {
+			ids[id] = to.id(from.term(id));
+		}
+		return ids[id];
+	}
+
+	/**
+	 * Retrieves the predicate of the facts in the relation.
+	 * @return the predicate
+	 */
+	public String getPredicate() {
+		return predicate;
+	}
+
+	/**
+	 * Retrieves the targets of a source.
+	 * @param source The number of the source
+	 * @return the numbers of the targets, or null if the source has none. The bitset must not be modified.
+	 */
+	public BitSet getRow(int source) {
+		return source < rows.size() ? rows.get(source) : null;
+	}
+
+	private BitSet row(int source) {
+		while(rows.size() <= source) {
+			rows.add(null);
+		}
+		BitSet row = rows.get(source);
+		if(row == null) {
+			row = new BitSet();
+			rows.set(source, row);
+		}
+		return row;
+	}
+
+	/**
+	 * Retrieves the number of rows, which is one more than the number of the last source.
+	 * @return the number of rows
+	 */
+	public int getSources() {
+		return rows.size();
+	}
+
+	/**
+	 * Adds a fact for each target of a source.
+	 * @param source The number of the source
+	 * @param targets The numbers of the targets
+	 * @return the number of facts that weren't in the relation yet
+	 */
+	public int addRow(int source, BitSet targets) {
+		if(targets.isEmpty()) {
+			return 0;
+		}
+		BitSet row = row(source);
+		int before = row.cardinality();
+		row.or(targets);
+		int added = row.cardinality() - before;
+		size += added;
+		return added;
+	}
+
+	/**
+	 * Adds a fact by the numbers of its terms.
+	 * @param source The number of the first term
+	 * @param target The number of the second term
+	 * @return true if the fact wasn't in the relation yet
+	 */
+	public boolean add(int source, int target) {
+		BitSet row = row(source);
+		if(row.get(target)) {
+			return false;
+		}
+		row.set(target);
+		size++;
+		return true;
+	}
+
+	@Override
+	public boolean add(Expr fact) {
+		if(fact.arity() != 2) {
+			throw new IllegalArgumentException("Only binary facts can be stored in a dense relation: " + fact);
+		}
+		return add(domain.id(fact.getTerm(0)), domain.id(fact.getTerm(1)));
+	}
+
+	/**
+	 * Adds the facts of another relation over the same domain, a row at a time.
+	 * @param that The other relation
+	 * @return the number of facts that weren't in this relation yet
+	 */
+	public int addAll(DenseRelation that) {
+		int before = size;
+		for(int source = 0; source < that.rows.size(); source++) {
+			BitSet other = that.rows.get(source);
+			if(other != null) {
+				addRow(source, other);
+			}
+		}
+		return size - before;
+	}
+
+	/**
+	 * Removes the facts of another relation over the same domain, a row at a time.
+	 * @param that The other relation
+	 * @return the number of facts that were removed
+	 */
+	public int removeAll(DenseRelation that) {
+		int before = size;
+		for(int source = 0; source < Math.min(rows.size(), that.rows.size()); source++) {
+			BitSet row = rows.get(source), other = that.rows.get(source);
+			if(row != null && other != null) {
+				size -= row.cardinality();
+				row.andNot(other);
+				size += row.cardinality();
+			}
+		}
+		return before - size;
+	}
+
+	/**
+	 * Removes the facts whose two terms are equal.
+	 */
+	public void removeReflexive() {
+		for(int source = 0; source < rows.size(); source++) {
+			BitSet row = rows.get(source);
+			if(row != null && row.get(source)) {
+				row.clear(source);
+				size--;
+			}
+		}
+	}
+
+	/**
+	 * Creates the relation with the terms of each fact swapped.
+	 * @param predicate The predicate of the new relation
+	 * @return the transposed relation
+	 */
+	public DenseRelation transpose(String predicate) {
+		DenseRelation transposed = new DenseRelation(predicate, domain);
+		for(int source = 0; source < rows.size(); source++) {
+			BitSet row = rows.get(source);
+			if(row != null) {
+				for(int target = row.nextSetBit(0); target >= 0; target = row.nextSetBit(target + 1)) {
+					transposed.add(target, source);
+				}
+			}
+		}
+		return transposed;
+	}
+
+	/**
+	 * Joins two relations over the same domain on the second term of the first relation and the first term of
+	 * the second: The result contains {@code (x, z)} for every {@code (x, y)} in {@code first} and {@code (y, z)}
+	 * in {@code second}. Each row of the result is the union of the rows of {@code second} for the targets of
+	 * the row in {@code first}.
+	 * @param predicate The predicate of the result
+	 * @param first The first relation
+	 * @param second The second relation
+	 * @return the composition of the relations
+	 */
+	public static DenseRelation compose(String predicate, DenseRelation first, DenseRelation second) {
+		DenseRelation result = new DenseRelation(predicate, first.domain);
+		for(int source = 0; source < first.rows.size(); source++) {
+			BitSet row = first.rows.get(source);
+			if(row == null) {
+				continue;
+			}
+			BitSet targets = null;
+			for(int middle = row.nextSetBit(0); middle >= 0; middle = row.nextSetBit(middle + 1)) {
+				BitSet next = second.getRow(middle);
+				if(next != null) {
+					if(targets == null) {
+						targets = new BitSet();
+					}
+					targets.or(next);
+				}
+			}
+			if(targets != null && !targets.isEmpty()) {
+				while(result.rows.size() < source) {
+					result.rows.add(null);
+				}
+				result.rows.add(targets);
+				result.size += targets.cardinality();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Expr)) {
+			return false;
+		}
+		Expr fact = (Expr)o;
+		if(fact.arity() != 2 || (predicate != null && !predicate.equals(fact.getPredicate())) || fact.isNegated()) {
+			return false;
+		}
+		int source = domain.lookup(fact.getTerm(0)), target = domain.lookup(fact.getTerm(1));
+		if(source < 0 || target < 0) {
+			return false;
+		}
+		BitSet row = getRow(source);
+		return row != null && row.get(target);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<Expr> iterator() {
+		return new Iterator<Expr>() {
+			private int source = -1, target = -1;
+			{
+				advance();
+			}
+
+			private void advance() {
+				BitSet row = source >= 0 ? rows.get(source) : null;
+				target = row != null ? row.nextSetBit(target + 1) : -1;
+				while(target < 0 && ++source < rows.size()) {
+					row = rows.get(source);
+					target = row != null ? row.nextSetBit(0) : -1;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return target >= 0;
+			}
+
+			@Override
+			public Expr next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Expr fact = Expr.of(predicate, domain.term(source), domain.term(target));
+				advance();
+				return fact;
+			}
+		};
+	}
+}
@@ -1,23 +1,157 @@
 package za.co.wstoop.jatalog.engine;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import za.co.wstoop.jatalog.Aggregate;
 import za.co.wstoop.jatalog.DatalogException;
 import za.co.wstoop.jatalog.Expr;
 import za.co.wstoop.jatalog.Jatalog;
 import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.Term;
 
 public abstract class Engine {
 
-	public abstract Collection<Map<String, String>> query(Jatalog jatalog, List<Expr> goals, Map<String, String> bindings) throws DatalogException;
+	private final List<EngineListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Registers a listener that is notified of the progress of every query that this engine evaluates.
+	 * @param listener The listener to add
+	 * @see QueryMetrics
+	 */
+	public void addListener(EngineListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener that was registered through {@link #addListener(EngineListener)}.
+	 * @param listener The listener to remove
+	 */
+	public void removeListener(EngineListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Creates the context for evaluating a query, which notifies the registered listeners 
+	 * in addition to the specified ones.
+	 * @param extraListeners Listeners for this query only
+	 * @return the new context
+	 */
+	public QueryContext createContext(EngineListener... extraListeners) {
+		List<EngineListener> all = new ArrayList<>(listeners);
+		all.addAll(Arrays.asList(extraListeners));
+		return new QueryContext(all);
+	}
+
+	/**
+	 * Executes a query with the specified goals against a database.
+	 * <p>
+	 * The default implementation prepares a {@link QueryPlan} for the goals and executes it.
+	 * </p>
+	 * @param jatalog The database to query
+	 * @param goals The goals of the query
+	 * @param bindings An optional (nullable) mapping of variable names to values.
+	 * @return the answers to the query
+	 * @throws DatalogException on errors encountered during evaluation.
+	 */
+	public Collection<Map<String, String>> query(Jatalog jatalog, List<Expr> goals, Map<String, String> bindings) throws DatalogException {
+		return query(jatalog, prepare(jatalog, goals), bindings);
+	}
+
+	/**
+	 * Executes a previously prepared query plan against a database.
+	 * <p>
+	 * The query is evaluated in a new context, which notifies the registered listeners and enforces the
+	 * database's {@link Jatalog#getQueryLimits() limits}.
+	 * </p>
+	 * @param jatalog The database to query; the plan must be {@link QueryPlan#isValid(Jatalog) valid} for it.
+	 * @param plan The plan to execute
+	 * @param bindings An optional (nullable) mapping of variable names to values.
+	 * @return the answers to the query
+	 * @throws DatalogException on errors encountered during evaluation.
+	 */
+	public Collection<Map<String, String>> query(Jatalog jatalog, QueryPlan plan, Map<String, String> bindings) throws DatalogException {
+		QueryContext context = createContext();
+		context.setLimits(jatalog.getQueryLimits());
+		return query(jatalog, plan, bindings, context);
+	}
+
+	/**
+	 * Executes a previously prepared query plan against a database, within a specific context.
+	 * @param jatalog The database to query; the plan must be {@link QueryPlan#isValid(Jatalog) valid} for it.
+	 * @param plan The plan to execute
+	 * @param bindings An optional (nullable) mapping of variable names to values.
+	 * @param context The context of the evaluation, which is notified of its progress and enforces its limits; 
+	 * 	see {@link #createContext(EngineListener...)}
+	 * @return the answers to the query
+	 * @throws DatalogException on errors encountered during evaluation, including a 
+	 * 	{@link za.co.wstoop.jatalog.QueryAbortedException} if the query exceeds its limits or is cancelled.
+	 */
+	public abstract Collection<Map<String, String>> query(Jatalog jatalog, QueryPlan plan, Map<String, String> bindings, QueryContext context) throws DatalogException;
+
+	/**
+	 * Executes a batch of previously prepared query plans against a database, within a single context.
+	 * <p>
+	 * The default implementation executes the plans one after the other. Engines may share the evaluation 
+	 * of the rules between the queries instead.
+	 * </p>
+	 * @param jatalog The database to query; the plans must be {@link QueryPlan#isValid(Jatalog) valid} for it.
+	 * @param plans The plans to execute
+	 * @param parallel Whether the queries' goals may be matched in parallel, on the common {@code ForkJoinPool}
+	 * @param context The context of the evaluation of all the queries; see {@link #createContext(EngineListener...)}
+	 * @return the answers to each query, in the order of the plans
+	 * @throws DatalogException on errors encountered during evaluation, including a 
+	 * 	{@link za.co.wstoop.jatalog.QueryAbortedException} if the queries exceed their limits or are cancelled.
+	 */
+	public List<Collection<Map<String, String>>> query(Jatalog jatalog, List<QueryPlan> plans, boolean parallel, QueryContext context) throws DatalogException {
+		List<Collection<Map<String, String>>> answers = new ArrayList<>();
+		for(QueryPlan plan : plans) {
+			answers.add(query(jatalog, plan, null, context));
+		}
+		return answers;
+	}
+
+	/**
+	 * Compiles the goals of a query into a {@link QueryPlan} that can be executed repeatedly.
+	 * @param jatalog The database the query will be executed against
+	 * @param goals The goals of the query
+	 * @return the plan
+	 * @throws DatalogException if the relevant rules cannot be stratified. Rules that aren't relevant to the 
+	 * 	query may have negative recursion.
+	 */
+	public QueryPlan prepare(Jatalog jatalog, List<Expr> goals) throws DatalogException {
+		// Reorganize the goals so that negated literals are at the end.
+		List<Expr> orderedGoals = reorderQuery(goals);
+
+		Collection<String> predicates = getRelevantPredicates(jatalog, goals);
+
+		// The stratification of all the rules is cached by the database. If any predicate in a stratum
+		// is relevant then all of them are, since they depend on each other, so the query's strata are
+		// just the relevant strata, in the same order. Only the relevant strata have to be stratifiable.
+		List<Stratum> strata = new ArrayList<>();
+		Collection<Rule> rules = new ArrayList<>();
+		for(Stratum stratum : jatalog.getRuleCatalog().getStrata()) {
+			if(predicates.contains(stratum.getPredicates().iterator().next())) {
+				if(stratum.getError() != null) {
+					throw new DatalogException(stratum.getError());
+				}
+				strata.add(stratum);
+				rules.addAll(stratum.getRules());
+			}
+		}
+		return new QueryPlan(jatalog, goals, orderedGoals, predicates, rules, strata);
+	}
 
 	/* Reorganize the goals in a query so that negated literals are at the end.
     A rule such as `a(X) :- not b(X), c(X)` won't work if the `not b(X)` is evaluated first, since X will not
@@ -45,85 +179,178 @@ public abstract class Engine {
         return ordered;
     }
 
-    /* Computes the stratification of the rules in the IDB by doing a depth-first search.
+    /* Computes the stratification of the rules in the IDB.
+     * The strata are the strongly connected components of the predicate dependency graph, found with
+     * Tarjan's algorithm in O(rules + edges). Tarjan's algorithm emits a component only after all the
+     * components reachable from it, so the strata come out in the order in which they must be evaluated.
      * It throws a DatalogException if there are negative loops in the rules, in which case the
      * rules aren't stratified and cannot be computed. */
-    public static List< Collection<Rule> > computeStratification(Collection<Rule> allRules) throws DatalogException {
-        ArrayList<Collection<Rule>> strata = new ArrayList<>(10);
-
-        Map<String, Integer> strats = new HashMap<>();
-        for(Rule rule : allRules) {
-            String pred = rule.getHead().getPredicate();
-            Integer stratum = strats.get(pred);
-            if(stratum == null) {
-                stratum = depthFirstSearch(rule.getHead(), allRules, new ArrayList<>(), 0);
-                strats.put(pred, stratum);
-            }
+    public static List<Stratum> computeStratification(Collection<Rule> allRules) throws DatalogException {
+        return computeStratification(new RuleCatalog(allRules));
+    }
 
-            while(stratum >= strata.size()) {
-                strata.add(new ArrayList<>());
+    /* Computes the stratification of the rules in a RuleCatalog; See computeStratification(Collection) */
+    public static List<Stratum> computeStratification(RuleCatalog catalog) throws DatalogException {
+        List<Stratum> strata = stratify(catalog);
+        for(Stratum stratum : strata) {
+            if(stratum.getError() != null) {
+                throw new DatalogException(stratum.getError());
             }
-            strata.get(stratum).add(rule);
         }
-
-        strata.add(allRules);
         return strata;
     }
-    
-    /* The recursive depth-first method that computes the stratification of a set of rules */
-    private static int depthFirstSearch(Expr goal, Collection<Rule> graph, List<Expr> visited, int level) throws DatalogException {
-        String pred = goal.getPredicate();
-
-        // Step (1): Guard against negative recursion
-        boolean negated = goal.isNegated();
-        StringBuilder route = new StringBuilder(pred); // for error reporting
-        for(int i = visited.size()-1; i >= 0; i--) {
-            Expr e = visited.get(i);
-            route.append(e.isNegated() ? " <- ~" : " <- ").append(e.getPredicate());
-            if(e.getPredicate().equals(pred)) {
-                if(negated) {
-                    throw new DatalogException("Program is not stratified - predicate " + pred + " has a negative recursion: " + route);
+
+    /* Computes the strata of the rules in a RuleCatalog like computeStratification(), but records negative 
+     * recursion and recursive aggregates on the strata that contain them rather than rejecting all the rules,
+     * so that queries that don't depend on those strata can still be evaluated. */
+    static List<Stratum> stratify(RuleCatalog catalog) {
+
+        // Number the predicates in the heads of the rules
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> predicates = new ArrayList<>(catalog.getHeadPredicates());
+        for(int i = 0; i < predicates.size(); i++) {
+            ids.put(predicates.get(i), i);
+        }
+
+        // The edges of the dependency graph go from the head of a rule to the predicates in its body.
+        // Predicates that don't appear in any rule's head are in the EDB, so they have no edges.
+        int n = predicates.size();
+        int[][] edges = new int[n][];
+        for(int v = 0; v < n; v++) {
+            List<Integer> targets = new ArrayList<>();
+            for(Rule rule : catalog.getRulesByHead(predicates.get(v))) {
+                for(Expr goal : rule.getBody()) {
+                    Integer w = ids.get(goal.getPredicate());
+                    if(w != null) {
+                        targets.add(w);
+                    }
                 }
-                return 0;
             }
-            if(e.isNegated()) {
-                negated = true;
+            edges[v] = new int[targets.size()];
+            for(int i = 0; i < edges[v].length; i++) {
+                edges[v][i] = targets.get(i);
             }
         }
-        visited.add(goal);
 
-        // Step (2): Do the actual depth-first search to compute the strata
-        int m = 0;
-        for(Rule rule : graph) {
-            if(rule.getHead().getPredicate().equals(pred)) {
-                for(Expr expr : rule.getBody()) {
-                    int x = depthFirstSearch(expr, graph, visited, level + 1);
-                    if(expr.isNegated())
-                        x++;
-                    if(x > m) {
-                        m = x;
+        // Tarjan's algorithm. It is iterative rather than recursive so that long chains of
+        // generated rules don't overflow the stack.
+        int[] index = new int[n];
+        int[] lowlink = new int[n];
+        int[] next = new int[n]; // The next edge of each vertex to visit
+        int[] component = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+        int counter = 0;
+        Deque<Integer> stack = new ArrayDeque<>();
+        Deque<Integer> work = new ArrayDeque<>();
+        List<Stratum> strata = new ArrayList<>();
+
+        for(int root = 0; root < n; root++) {
+            if(index[root] >= 0) {
+                continue;
+            }
+            index[root] = lowlink[root] = counter++;
+            stack.push(root);
+            onStack[root] = true;
+            work.push(root);
+            while(!work.isEmpty()) {
+                int v = work.peek();
+                if(next[v] < edges[v].length) {
+                    int w = edges[v][next[v]++];
+                    if(index[w] < 0) {
+                        index[w] = lowlink[w] = counter++;
+                        stack.push(w);
+                        onStack[w] = true;
+                        work.push(w);
+                    } else if(onStack[w]) {
+                        lowlink[v] = Math.min(lowlink[v], index[w]);
                     }
+                    continue;
+                }
+                work.pop();
+                if(!work.isEmpty()) {
+                    int u = work.peek();
+                    lowlink[u] = Math.min(lowlink[u], lowlink[v]);
+                }
+                if(lowlink[v] == index[v]) {
+                    // v is the root of a strongly connected component
+                    Set<String> members = new HashSet<>();
+                    List<Rule> rules = new ArrayList<>();
+                    int w;
+                    do {
+                        w = stack.pop();
+                        onStack[w] = false;
+                        component[w] = strata.size();
+                        members.add(predicates.get(w));
+                        rules.addAll(catalog.getRulesByHead(predicates.get(w)));
+                    } while(w != v);
+                    strata.add(new Stratum(members, rules, isRecursive(v, members, edges, component), 
+                            buildDependentRules(catalog, members)));
+                }
+            }
+        }
+
+        // Step (2): Guard against negative recursion: A negated expression may not refer to a
+        // predicate in the same stratum as the rule's head. A rule with aggregates in its head can only be 
+        // evaluated once all of its body's facts are known, so that applies to all of its expressions.
+        // The first violation in each stratum is recorded on it.
+        for(Rule rule : catalog.getRules()) {
+            String pred = rule.getHead().getPredicate();
+            boolean aggregate = Aggregate.hasAggregates(rule.getHead());
+            for(Expr goal : rule.getBody()) {
+                Integer w = ids.get(goal.getPredicate());
+                if(w == null || component[w] != component[ids.get(pred)]) {
+                    continue;
+                }
+                Stratum stratum = strata.get(component[w]);
+                if(stratum.getError() != null) {
+                    break;
+                }
+                if(goal.isNegated()) {
+                    stratum.error = "Program is not stratified - predicate " + pred + " has a negative recursion: " 
+                            + pred + " <- ~" + goal.getPredicate() + " in rule " + rule;
+                } else if(aggregate) {
+                    stratum.error = "Program is not stratified - predicate " + pred + " has a recursive aggregate: " 
+                            + pred + " <- " + goal.getPredicate() + " in rule " + rule;
                 }
             }
         }
-        visited.remove(visited.size()-1);
 
-        return m;
+        return strata;
+    }
+
+    /* A strongly connected component is recursive if it has more than one member, or if its only 
+     * member depends on itself. */
+    private static boolean isRecursive(int v, Set<String> members, int[][] edges, int[] component) {
+        if(members.size() > 1) {
+            return true;
+        }
+        for(int w : edges[v]) {
+            if(w == v) {
+                return true;
+            }
+        }
+        return false;
     }
     
     /* Returns a list of rules that are relevant to the query.
     If for example you're querying employment status, you don't care about family relationships, etc.
     The advantages of this of this optimization becomes bigger the more complex the rules get. */
     protected static Collection<String> getRelevantPredicates(Jatalog jatalog, List<Expr> originalGoals) {
+	    RuleCatalog catalog = jatalog.getRuleCatalog();
 	    Collection<String> relevant = new HashSet<>();
-	    LinkedList<Expr> goals = new LinkedList<>(originalGoals);
-	    while(!goals.isEmpty()) {
-	        Expr expr = goals.poll();
-			if (!relevant.contains(expr.getPredicate())) {
-				relevant.add(expr.getPredicate());
-				for (Rule rule : jatalog.getIdb()) {
-					if (rule.getHead().getPredicate().equals(expr.getPredicate())) {
-						goals.addAll(rule.getBody());
+	    LinkedList<String> predicates = new LinkedList<>();
+	    for(Expr goal : originalGoals) {
+	    	predicates.add(goal.getPredicate());
+	    }
+	    while(!predicates.isEmpty()) {
+	        String predicate = predicates.poll();
+			if (relevant.add(predicate)) {
+				for (Rule rule : catalog.getRulesByHead(predicate)) {
+					for (Expr goal : rule.getBody()) {
+						if(!goal.isBuiltIn()) {
+							predicates.add(goal.getPredicate());
+						}
 					}
 				}
 			}
@@ -131,24 +358,27 @@ public abstract class Engine {
 	    return relevant;
 	}
 	
-    /* This basically constructs the dependency graph for semi-naive evaluation: In the returned map, the string
-    is a predicate in the rules' heads that maps to a collection of all the rules that have that predicate in
-    their body so that we can easily find the rules that are affected when new facts are deduced in different
-    iterations of buildDatabase().
+    /* This basically constructs the dependency graph for semi-naive evaluation of a stratum: In the returned map, 
+    the string is a predicate derived in the stratum that maps to a collection of all the stratum's rules that have 
+    that predicate in their body so that we can easily find the rules that are affected when new facts are deduced 
+    in different iterations of expandStrata().
     For example if you have a rule p(X) :- q(X) then there will be a mapping from "q" to that rule
-    so that when new facts q(Z) are deduced, the rule will be run in the next iteration to deduce p(Z) */
-	protected static Map<String, Collection<Rule>> buildDependentRules(Collection<Rule> rules) {
+    so that when new facts q(Z) are deduced, the rule will be run in the next iteration to deduce p(Z).
+    It is computed once per stratum when the stratification is computed, from the catalog's index of rules
+    by the predicates in their bodies. Facts with predicates from other strata are never derived while a 
+    stratum is being evaluated, so they don't need entries. */
+	protected static Map<String, Collection<Rule>> buildDependentRules(RuleCatalog catalog, Set<String> stratumPredicates) {
 	    Map<String, Collection<Rule>> map = new HashMap<>();
-	    for(Rule rule : rules) {
-	        for(Expr goal : rule.getBody()) {
-	            Collection<Rule> dependants = map.get(goal.getPredicate());
-	            if(dependants == null) {
-	                dependants = new ArrayList<>();
-	                map.put(goal.getPredicate(), dependants);
-	            }
-	            if(!dependants.contains(rule))
-	                dependants.add(rule);
-	        }
+	    for(String predicate : stratumPredicates) {
+	    	Collection<Rule> dependants = new ArrayList<>();
+	    	for(Rule rule : catalog.getRulesByBody(predicate)) {
+	    		if(stratumPredicates.contains(rule.getHead().getPredicate())) {
+	    			dependants.add(rule);
+	    		}
+	    	}
+	    	if(!dependants.isEmpty()) {
+	    		map.put(predicate, dependants);
+	    	}
 	    }
 	    return map;
 	}
@@ -169,40 +399,137 @@ public abstract class Engine {
         return dependantRules;
     }
     
-    /* Match the goals in a rule to the facts in the database (recursively). 
-     * If the goal is a built-in predicate, it is also evaluated here. */
-    protected static Collection<Map<String, String>> matchGoals(List<Expr> goals, IndexedSet<Expr,String> facts, Map<String, String> bindings) {
+    /* Receives the bindings that satisfy a list of goals, one at a time, as they are found.
+     * The bindings map is reused for subsequent answers once accept() returns, so a sink must 
+     * copy it (with copy()) if it needs to keep it. */
+    interface AnswerSink {
+        void accept(Map<String, Term> answer) throws DatalogException;
+    }
+
+    /* Joins the goals of a rule body or a query: With a worst-case optimal join if the positive goals 
+     * are cyclic, otherwise with the nested loop of matchGoals() */
+    protected static Collection<Map<String, Term>> joinGoals(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context) throws DatalogException {
+        List<Map<String, Term>> answers = new ArrayList<>();
+        joinGoals(goals, facts, bindings, context, answer -> answers.add(copy(answer)));
+        return answers;
+    }
+
+    /* joinGoals() that pushes each answer to a sink instead of collecting them */
+    static void joinGoals(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context, AnswerSink sink) throws DatalogException {
+        if(LeapfrogJoin.isCyclic(goals)) {
+            LeapfrogJoin.join(goals, facts, bindings, context, sink);
+        } else {
+            matchGoals(goals, facts, bindings, context, sink);
+        }
+    }
+
+    /* Match the goals in a rule to the facts in the database, outside of any query context */
+    protected static Collection<Map<String, Term>> matchGoals(List<Expr> goals, FactView facts, Map<String, Term> bindings) throws DatalogException {
+        return matchGoals(goals, facts, bindings, new QueryContext());
+    }
+
+    /* Match the goals in a rule to the facts in the database, collecting the answers */
+    protected static Collection<Map<String, Term>> matchGoals(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context) throws DatalogException {
+        List<Map<String, Term>> answers = new ArrayList<>();
+        matchGoals(goals, facts, bindings, context, answer -> answers.add(copy(answer)));
+        return answers;
+    }
+
+    /* Match the goals in a rule to the facts in the database (recursively), pushing each answer to the sink. 
+     * If the goal is a built-in predicate, it is also evaluated here. 
+     * The facts that are unified with the goals are counted in the context. */
+    static void matchGoals(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context, AnswerSink sink) throws DatalogException {
+        if(context.isProfiling()) {
+            profileGoals(goals, facts, bindings, context, sink);
+        } else {
+            evaluateGoals(goals, facts, bindings, context, sink);
+        }
+    }
+
+    /* Copies an answer that a sink needs to keep. StackMaps are flattened, since their 
+     * entrySet() would modify a map that is still in use. */
+    static Map<String, Term> copy(Map<String, Term> answer) {
+        if(answer == null) {
+            return new HashMap<>();
+        }
+        if(answer instanceof StackMap) {
+            return ((StackMap<String, Term>)answer).flatten();
+        }
+        return new HashMap<>(answer);
+    }
+
+    /* matchGoals() for queries that are being profiled: It reports the numbers of each goal to the 
+     * context's listener. The numbers are exclusive: Each goal's nested matchGoals() call for the remaining
+     * goals reports its own numbers, which are then subtracted from this goal's. A frame on the context's 
+     * stack accumulates the nested calls' time and scanned facts, and counts the nested calls, 
+     * which is the number of bindings that satisfied this goal. The last goal counts the answers 
+     * that it pushes to the sink instead. */
+    private static void profileGoals(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context, AnswerSink sink) throws DatalogException {
+        Deque<long[]> frames = context.frames;
+        if(!frames.isEmpty()) {
+            frames.peek()[2]++;
+        }
+        long[] frame = new long[3];
+        frames.push(frame);
+        long scanned = context.scanned;
+        long start = System.nanoTime();
+        if(goals.size() == 1) {
+            evaluateGoals(goals, facts, bindings, context, answer -> {
+                frame[2]++;
+                sink.accept(answer);
+            });
+        } else {
+            evaluateGoals(goals, facts, bindings, context, sink);
+        }
+        long nanos = System.nanoTime() - start;
+        frames.pop();
+        scanned = context.scanned - scanned;
+
+        context.getListener().goalEvaluated(goals.get(0), scanned - frame[1], frame[2], nanos - frame[0]);
+        if(!frames.isEmpty()) {
+            long[] parent = frames.peek();
+            parent[0] += nanos;
+            parent[1] += scanned;
+        }
+    }
+
+    private static void evaluateGoals(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context, AnswerSink sink) throws DatalogException {
 
         Expr goal = goals.get(0); // First goal; Assumes goals won't be empty
 
         boolean lastGoal = (goals.size() == 1);
 
         if(goal.isBuiltIn()) {
-            Map<String, String> newBindings = new StackMap<String, String>(bindings);
-            boolean eval = goal.evalBuiltIn(newBindings);
+            Map<String, Term> newBindings = new StackMap<String, Term>(bindings);
+            boolean eval = goal.evalBuiltInTerms(newBindings);
             if(eval && !goal.isNegated() || !eval && goal.isNegated()) {
                 if(lastGoal) {
-                    return Collections.singletonList(newBindings);
+                    sink.accept(newBindings);
                 } else {
-                    return matchGoals(goals.subList(1, goals.size()), facts, newBindings);
+                    matchGoals(goals.subList(1, goals.size()), facts, newBindings, context, sink);
                 }
             }
-            return Collections.emptyList();
+            return;
         }
 
-        Collection<Map<String, String>> answers = new ArrayList<>();
+        // A single map holds the bindings of each fact in turn: The answers that are pushed 
+        // to the sink, and the nested calls for the remaining goals, only use it until they return.
+        StackMap<String, Term> newBindings = new StackMap<String, Term>(bindings);
         if(!goal.isNegated()) {
             // Positive rule: Match each fact to the first goal.
-            // If the fact matches: If it is the last/only goal then we can return the bindings
+            // If the fact matches: If it is the last/only goal then we can push the bindings
             // as an answer, otherwise we recursively check the remaining goals.
-            for(Expr fact : facts.getIndexed(goal.getPredicate())) {
-                Map<String, String> newBindings = new StackMap<String, String>(bindings);
-                if(fact.unify(goal, newBindings)) {
+            List<Expr> rest = lastGoal ? null : goals.subList(1, goals.size());
+            for(Expr fact : candidateFacts(goal, goals, facts, bindings)) {
+                context.scan();
+                newBindings.reset(bindings);
+                if(fact.unifyTerms(goal, newBindings)) {
+                    context.bind();
                     if(lastGoal) {
-                        answers.add(newBindings);
+                        sink.accept(newBindings);
                     } else {
                         // More goals to match. Recurse with the remaining goals.
-                        answers.addAll(matchGoals(goals.subList(1, goals.size()), facts, newBindings));
+                        matchGoals(rest, facts, newBindings, context, sink);
                     }
                 }
             }
@@ -213,22 +540,110 @@ public abstract class Engine {
             // If your rule is `und(X) :- stud(X), not grad(X)` and you're at the `not grad` part, and in the
             // previous goal stud(a) was true, then bindings now contains X:a so we want to search the database
             // for the fact grad(a).
+            // A goal that is fully bound is a single hash probe. If it is partly bound only the facts 
+            // with the same values in the bound columns are unified with it, through a hash index.
             if(bindings != null) {
-                goal = goal.substitute(bindings);
+                goal = goal.substituteTerms(bindings);
             }
-            for(Expr fact : facts.getIndexed(goal.getPredicate())) {
-                Map<String, String> newBindings = new StackMap<String, String>(bindings);
-                if(fact.unify(goal, newBindings)) {
-                    return Collections.emptyList();
+            int[] columns = boundColumns(goal);
+            if(columns.length == goal.arity()) {
+                context.scan();
+                if(facts.contains(Expr.of(goal.getPredicate(), goal.getTypedTerms().toArray(new Term[columns.length])))) {
+                    return;
+                }
+            } else {
+                Collection<Expr> candidates = columns.length > 0 
+                        ? KeyIndex.get(facts, goal.getPredicate(), columns, context).getFacts(goal) 
+                        : facts.getFacts(goal.getPredicate());
+                for(Expr fact : candidates) {
+                    context.scan();
+                    newBindings.reset(bindings);
+                    if(fact.unifyTerms(goal, newBindings)) {
+                        return;
+                    }
                 }
             }
             // not found
             if(lastGoal) {
-                answers.add(bindings);
+                sink.accept(bindings);
             } else {
-                answers.addAll(matchGoals(goals.subList(1, goals.size()), facts, bindings));
+                matchGoals(goals.subList(1, goals.size()), facts, bindings, context, sink);
             }
         }
-        return answers;
+    }
+
+    /* The positions of the terms of a goal that aren't variables */
+    private static int[] boundColumns(Expr goal) {
+        int count = 0;
+        for(int i = 0; i < goal.arity(); i++) {
+            if(!goal.getTerm(i).isVariable()) {
+                count++;
+            }
+        }
+        int[] columns = new int[count];
+        for(int i = 0, j = 0; i < goal.arity(); i++) {
+            if(!goal.getTerm(i).isVariable()) {
+                columns[j++] = i;
+            }
+        }
+        return columns;
+    }
+
+    /* Retrieves the facts to match against a positive goal. If a comparison among the remaining goals 
+     * constrains a variable of the goal by a bound value, and the facts have a range index on the variable's
+     * column, only the facts in that range are scanned. The comparison is still evaluated after the goal, so 
+     * the range only has to contain the facts that can satisfy it. */
+    static Collection<Expr> candidateFacts(Expr goal, List<Expr> goals, FactView facts, Map<String, Term> bindings) {
+        int column = -1;
+        Term low = null, high = null;
+        for(int i = 1; i < goals.size(); i++) {
+            Expr comparison = goals.get(i);
+            if(!comparison.isBuiltIn() || comparison.isNegated() || comparison.getPredicate().equals("<>")) {
+                continue;
+            }
+            // Normalize the comparison so that the goal's variable is on the left
+            String operator = comparison.getPredicate();
+            int c = rangeColumn(goal, comparison.getTerm(0), facts);
+            Term value = resolve(comparison.getTerm(1), bindings);
+            if(c < 0 || value == null) {
+                c = rangeColumn(goal, comparison.getTerm(1), facts);
+                value = resolve(comparison.getTerm(0), bindings);
+                operator = operator.replace('<', '#').replace('>', '<').replace('#', '>');
+            }
+            if(c < 0 || value == null || (column >= 0 && c != column)) {
+                continue;
+            }
+            column = c;
+            if(!operator.startsWith("<") && (low == null || value.compareNumerically(low) > 0)) {
+                low = value;
+            }
+            if(!operator.startsWith(">") && (high == null || value.compareNumerically(high) < 0)) {
+                high = value;
+            }
+        }
+        if(column < 0) {
+            return facts.getFacts(goal.getPredicate());
+        }
+        return facts.getFacts(goal.getPredicate(), column, low, high);
+    }
+
+    /* The column of a goal that contains a variable and has a range index, or -1 */
+    private static int rangeColumn(Expr goal, Term variable, FactView facts) {
+        if(variable.isVariable()) {
+            for(int i = 0; i < goal.arity(); i++) {
+                if(goal.getTerm(i).equals(variable) && facts.hasRangeIndex(goal.getPredicate(), i)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /* The value of a term under the bindings, or null if it is an unbound variable */
+    private static Term resolve(Term term, Map<String, Term> bindings) {
+        if(!term.isVariable()) {
+            return term;
+        }
+        return bindings != null ? bindings.get(term.getText()) : null;
     }
 }
@@ -0,0 +1,93 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.Map;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Rule;
+
+/**
+ * Receives notifications about the progress of the {@link Engine} while it evaluates a query.
+ * <p>
+ * Listeners are registered with {@link Engine#addListener(EngineListener)} to observe every query, or passed
+ * to a single query through a {@link QueryContext}. {@link QueryMetrics} is an implementation that collects
+ * the numbers reported to it, so that the expensive rules of a program can be identified.
+ * </p><p>
+ * All the methods have empty default implementations, so that implementations only need to override the
+ * notifications they are interested in. The methods are called on the thread that evaluates the query, so they
+ * should return quickly. A listener registered with the engine may be called for several queries concurrently.
+ * </p><p>
+ * Times are reported in nanoseconds, as measured by {@link System#nanoTime()}.
+ * </p>
+ */
+public interface EngineListener {
+
+	/**
+	 * Called before the evaluation of a query starts.
+	 * @param plan The plan of the query; its {@link QueryPlan#getStrata() strata} will be evaluated in order.
+	 * @param bindings The bindings the query is executed with; may be null.
+	 */
+	default public void queryStarted(QueryPlan plan, Map<String, String> bindings) {
+	}
+
+	/**
+	 * Called before the rules of a stratum are evaluated.
+	 * @param stratum The stratum
+	 */
+	default public void stratumStarted(Stratum stratum) {
+	}
+
+	/**
+	 * Called every time the body of a rule has been matched against the facts.
+	 * @param stratum The stratum the rule belongs to
+	 * @param rule The rule
+	 * @param iteration The iteration of the stratum's fixed point loop, counting from 1.
+	 * 	Rules in strata that are not {@link Stratum#isRecursive() recursive} are only evaluated in iteration 1.
+	 * @param scanned The number of candidate facts that were unified with the goals of the rule's body
+	 * @param bindings The number of bindings of the rule's variables that satisfied the body
+	 * @param derived The number of facts derived by the rule that were not known before
+	 * @param nanos The time spent evaluating the rule
+	 */
+	default public void ruleEvaluated(Stratum stratum, Rule rule, int iteration, long scanned, long bindings, int derived, long nanos) {
+	}
+
+	/**
+	 * Called every time a goal has been matched against the facts, if the query's {@link QueryContext} is 
+	 * {@link QueryContext#isProfiling() profiling}. Goals are matched in a nested loop: A goal is matched once for
+	 * every binding that satisfied the goals before it in the body of its rule or query.
+	 * @param goal The goal, which is one of the expressions in a rule's body or the query's {@link QueryPlan#getOrderedGoals() goals}.
+	 * @param scanned The number of candidate facts that were unified with the goal
+	 * @param matched The number of bindings that satisfied the goal
+	 * @param nanos The time spent matching the goal, excluding the time spent matching the goals after it
+	 */
+	default public void goalEvaluated(Expr goal, long scanned, long matched, long nanos) {
+	}
+
+	/**
+	 * Called after an iteration of the fixed point loop of a recursive stratum.
+	 * @param stratum The stratum
+	 * @param iteration The iteration, counting from 1.
+	 * @param derived The number of new facts derived in the iteration; the loop ends after an iteration that derived none.
+	 */
+	default public void iterationCompleted(Stratum stratum, int iteration, int derived) {
+	}
+
+	/**
+	 * Called after all the facts of a stratum have been derived.
+	 * @param stratum The stratum
+	 * @param iterations The number of iterations it took to reach the fixed point; 1 for a stratum that is not recursive.
+	 * @param derived The number of facts derived by the stratum's rules
+	 * @param nanos The time spent evaluating the stratum
+	 */
+	default public void stratumCompleted(Stratum stratum, int iterations, int derived, long nanos) {
+	}
+
+	/**
+	 * Called after the query's goals have been matched against the expanded database.
+	 * @param plan The plan of the query
+	 * @param scanned The number of candidate facts that were unified with the goals of the query
+	 * @param answers The number of answers
+	 * @param nanos The total time spent evaluating the query, including the strata
+	 */
+	default public void queryCompleted(QueryPlan plan, long scanned, int answers, long nanos) {
+	}
+}
@@ -0,0 +1,57 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.Collection;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * Read access to the facts that the engine matches goals against during evaluation.
+ * <p>
+ * The facts are retrieved by predicate. Views can optionally also retrieve the facts of a predicate by a 
+ * range of values in one column, through a {@link RangeIndex}.
+ * </p>
+ * @see LayeredFactStore
+ */
+public interface FactView {
+
+	/**
+	 * Retrieves all the facts with a specific predicate.
+	 * @param predicate The predicate of the facts to be retrieved.
+	 * @return A collection of facts matching the {@code predicate}; empty if there are none.
+	 */
+	public Collection<Expr> getFacts(String predicate);
+
+	/**
+	 * Checks whether a fact is present.
+	 * @param fact The fact to look for
+	 * @return true if the fact is present
+	 */
+	public boolean contains(Expr fact);
+
+	/**
+	 * Checks whether the facts of a predicate can be retrieved by a range of values in a column.
+	 * @param predicate The predicate
+	 * @param column The position of the term, starting at 0
+	 * @return true if {@link #getFacts(String, int, Term, Term)} uses an index for the column
+	 */
+	default public boolean hasRangeIndex(String predicate, int column) {
+		return false;
+	}
+
+	/**
+	 * Retrieves the facts with a specific predicate whose term in a column lies in a range.
+	 * <p>
+	 * The result may contain facts outside the range, so the caller still has to check the facts.
+	 * Views without a range index on the column return all the facts with the predicate.
+	 * </p>
+	 * @param predicate The predicate of the facts to be retrieved.
+	 * @param column The position of the term, starting at 0
+	 * @param low The inclusive lower bound, or null if the range has none
+	 * @param high The inclusive upper bound, or null if the range has none
+	 * @return A collection of facts that contains all the facts in the range
+	 */
+	default public Collection<Expr> getFacts(String predicate, int column, Term low, Term high) {
+		return getFacts(predicate);
+	}
+}
@@ -0,0 +1,66 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/* A hash index on some columns of the facts of a predicate, through which the engine evaluates negated goals
+ * whose terms are only partly bound: Instead of unifying the goal with every fact of its predicate, only the
+ * facts with the same values in the bound columns are unified with it.
+ * The index is built on demand for each combination of bound columns, and cached in the QueryContext.
+ * The facts of a negated predicate don't change once they are used, because of the stratification,
+ * but the index records the facts and the number of facts that it was built from so that it can be rebuilt if they do. */
+final class KeyIndex {
+
+	private final FactView facts;
+	private final int[] columns;
+	private final int size;
+	private final Map<List<Term>, List<Expr>> buckets = new HashMap<>();
+
+	private KeyIndex(FactView facts, int[] columns, int size) {
+		this.facts = facts;
+		this.columns = columns;
+		this.size = size;
+	}
+
+	/* Retrieves the index of the facts of a predicate on some columns, building it if the context doesn't have an
+	 * index for the current facts yet */
+	static KeyIndex get(FactView facts, String predicate, int[] columns, QueryContext context) throws DatalogException {
+		Collection<Expr> all = facts.getFacts(predicate);
+		String name = predicate + Arrays.toString(columns);
+		KeyIndex index = context.keyIndexes.get(name);
+		if(index == null || index.facts != facts || index.size != all.size()) {
+			index = new KeyIndex(facts, columns, all.size());
+			for(Expr fact : all) {
+				context.scan();
+				if(fact.arity() > columns[columns.length - 1]) {
+					index.buckets.computeIfAbsent(index.key(fact), k -> new ArrayList<>()).add(fact);
+				}
+			}
+			context.keyIndexes.put(name, index);
+		}
+		return index;
+	}
+
+	/* The facts whose terms in the index's columns equal those of the goal */
+	Collection<Expr> getFacts(Expr goal) {
+		List<Expr> found = buckets.get(key(goal));
+		return found != null ? found : Collections.emptyList();
+	}
+
+	private List<Term> key(Expr expr) {
+		List<Term> key = new ArrayList<>(columns.length);
+		for(int column : columns) {
+			key.add(expr.getTerm(column));
+		}
+		return key;
+	}
+}
@@ -0,0 +1,297 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.AbstractCollection;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.EdbProvider;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * A {@link FactView} that layers the facts derived during the evaluation of a query over the facts in the EDB.
+ * <p>
+ * The EDB facts are read in place from the {@link EdbProvider} rather than copied, so a query only pays for
+ * the facts it derives. Derived facts are kept in an overlay {@link IndexedSet} that is discarded with the store.
+ * Facts are only added to the overlay if they are not already in the EDB, so the two layers never overlap and
+ * the facts of a predicate can be presented as the concatenation of both layers.
+ * </p><p>
+ * The derived facts of <i>dense</i> binary predicates are stored in a {@link DenseRelation} instead of the 
+ * {@code IndexedSet}, with a bit per fact. Predicates are dense if they are declared as such, or if the engine 
+ * marks them through {@link #markDense(String)}, which it does for the unrestricted transitive closures.
+ * </p><p>
+ * The EDB must not be modified while the store is in use.
+ * </p>
+ */
+public class LayeredFactStore implements FactView {
+
+	private final EdbProvider edb;
+	private final IndexedSet<Expr, String> derived = new IndexedSet<>();
+	private final Set<String> densePredicates;
+	private final DenseRelation.Domain domain = new DenseRelation.Domain();
+	private final Map<String, DenseRelation> dense = new HashMap<>();
+	// The EDB facts of the dense predicates, which are excluded from their relations
+	private final Map<String, DenseRelation> denseEdb = new HashMap<>();
+
+	/**
+	 * Creates a store with an empty overlay on top of an EDB.
+	 * @param edb The facts in the database
+	 */
+	public LayeredFactStore(EdbProvider edb) {
+		this(edb, Collections.emptySet());
+	}
+
+	/**
+	 * Creates a store with an empty overlay on top of an EDB, that stores the derived facts of some 
+	 * predicates in {@link DenseRelation}s.
+	 * @param edb The facts in the database
+	 * @param densePredicates The predicates whose derived facts are stored in dense relations
+	 */
+	public LayeredFactStore(EdbProvider edb, Set<String> densePredicates) {
+		this.edb = edb;
+		this.densePredicates = new HashSet<>(densePredicates);
+	}
+
+	@Override
+	public Collection<Expr> getFacts(String predicate) {
+		Collection<Expr> base = edb.getFacts(predicate);
+		Collection<Expr> overlay = getOverlay(predicate);
+		if(overlay.isEmpty()) {
+			return base;
+		} else if(base.isEmpty()) {
+			return overlay;
+		}
+		return new Concatenation(base, overlay);
+	}
+
+	/* Only the EDB layer has range indexes: the derived facts of the overlay are all returned */
+	@Override
+	public boolean hasRangeIndex(String predicate, int column) {
+		return edb.hasRangeIndex(predicate, column);
+	}
+
+	@Override
+	public Collection<Expr> getFacts(String predicate, int column, Term low, Term high) {
+		Collection<Expr> base = edb.getFacts(predicate, column, low, high);
+		Collection<Expr> overlay = getOverlay(predicate);
+		if(overlay.isEmpty()) {
+			return base;
+		} else if(base.isEmpty()) {
+			return overlay;
+		}
+		return new Concatenation(base, overlay);
+	}
+
+	/**
+	 * Retrieves the facts of a predicate that were derived, i.e. its facts in the overlay.
+	 * @param predicate The predicate
+	 * @return the derived facts
+	 */
+	public Collection<Expr> getDerivedFacts(String predicate) {
+		return getOverlay(predicate);
+	}
+
+	/* The derived facts of a predicate */
+	private Collection<Expr> getOverlay(String predicate) {
+		Collection<Expr> overlay = derived.getIndexed(predicate);
+		DenseRelation relation = dense.get(predicate);
+		if(relation == null || relation.isEmpty()) {
+			return overlay;
+		} else if(overlay.isEmpty()) {
+			return relation;
+		}
+		return new Concatenation(relation, overlay);
+	}
+
+	@Override
+	public boolean contains(Expr fact) {
+		if(isDense(fact)) {
+			DenseRelation relation = dense.get(fact.getPredicate());
+			if(relation != null && relation.contains(fact)) {
+				return true;
+			}
+		}
+		return derived.contains(fact) || edb.contains(fact);
+	}
+
+	/**
+	 * Checks whether the derived facts of a predicate are stored in a {@link DenseRelation}.
+	 * @param predicate The predicate
+	 * @return true if the predicate is dense
+	 */
+	public boolean isDense(String predicate) {
+		return densePredicates.contains(predicate);
+	}
+
+	private boolean isDense(Expr fact) {
+		return fact.arity() == 2 && densePredicates.contains(fact.getPredicate());
+	}
+
+	/**
+	 * Stores the derived facts of a predicate in a {@link DenseRelation} from now on. This only has an effect
+	 * if no facts have been derived for the predicate yet.
+	 * @param predicate The predicate
+	 * @return true if the predicate is dense
+	 */
+	public boolean markDense(String predicate) {
+		if(!densePredicates.contains(predicate) && derived.getIndexed(predicate).isEmpty()) {
+			densePredicates.add(predicate);
+		}
+		return isDense(predicate);
+	}
+
+	/**
+	 * Retrieves the numbering of the terms of the dense relations.
+	 * @return the domain
+	 */
+	public DenseRelation.Domain getDomain() {
+		return domain;
+	}
+
+	private DenseRelation getDenseRelation(String predicate) {
+		return dense.computeIfAbsent(predicate, p -> new DenseRelation(p, domain));
+	}
+
+	/**
+	 * Retrieves the relation in which the derived facts of a dense predicate are stored.
+	 * @param predicate The predicate
+	 * @return the relation, or null if no facts have been derived for the predicate as a dense relation
+	 */
+	public DenseRelation getDerivedRelation(String predicate) {
+		return dense.get(predicate);
+	}
+
+	/**
+	 * Adds derived facts of a dense predicate a set at a time: A fact for each target in a row of a relation.
+	 * @param predicate The dense predicate
+	 * @param source The number of the source in the {@link #getDomain() domain}
+	 * @param targets The numbers of the targets; the bitset may be modified
+	 * @return the number of facts that were not present yet
+	 */
+	public int addRow(String predicate, int source, BitSet targets) {
+		DenseRelation edbFacts = denseEdb.computeIfAbsent(predicate, p -> DenseRelation.of(p, edb.getFacts(p), domain));
+		BitSet excluded = edbFacts.getRow(source);
+		if(excluded != null) {
+			targets.andNot(excluded);
+		}
+		return getDenseRelation(predicate).addRow(source, targets);
+	}
+
+	/**
+	 * Adds the facts of a relation over the {@link #getDomain() domain} to the dense relation of its predicate,
+	 * a set at a time.
+	 * @param relation The facts to add
+	 * @return the number of facts that were not present yet
+	 */
+	public int addAll(DenseRelation relation) {
+		int added = 0;
+		for(int source = 0; source < relation.getSources(); source++) {
+			BitSet row = relation.getRow(source);
+			if(row != null) {
+				added += addRow(relation.getPredicate(), source, (BitSet)row.clone());
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Retrieves the number of derived facts in the overlay, including those in dense relations.
+	 * @return the number of derived facts
+	 */
+	public int getDerivedCount() {
+		int count = derived.size();
+		for(DenseRelation relation : dense.values()) {
+			count += relation.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Adds a derived fact to the overlay.
+	 * @param fact The fact to add
+	 * @return true if the fact was not present yet
+	 */
+	public boolean add(Expr fact) {
+		if(edb.contains(fact)) {
+			return false;
+		}
+		if(isDense(fact)) {
+			return getDenseRelation(fact.getPredicate()).add(fact);
+		}
+		return derived.add(fact);
+	}
+
+	/**
+	 * Adds a collection of derived facts to the overlay.
+	 * @param facts The facts to add
+	 * @return true if any of the facts were not present yet
+	 */
+	public boolean addAll(Collection<Expr> facts) {
+		boolean result = false;
+		for(Expr fact : facts) {
+			if(add(fact))
+				result = true;
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieves the facts that were derived, i.e. the facts in the overlay, except for the facts
+	 * of dense predicates.
+	 * @return The derived facts
+	 */
+	public IndexedSet<Expr, String> getDerived() {
+		return derived;
+	}
+
+	/* Read-only view of two disjoint collections, one after the other */
+	private static class Concatenation extends AbstractCollection<Expr> {
+		private final Collection<Expr> first, second;
+
+		Concatenation(Collection<Expr> first, Collection<Expr> second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public Iterator<Expr> iterator() {
+			return new Iterator<Expr>() {
+				private Iterator<Expr> current = first.iterator();
+				private boolean onSecond = false;
+
+				@Override
+				public boolean hasNext() {
+					if(!current.hasNext() && !onSecond) {
+						current = second.iterator();
+						onSecond = true;
+					}
+					return current.hasNext();
+				}
+
+				@Override
+				public Expr next() {
+					if(!hasNext())
+						throw new NoSuchElementException();
+					return current.next();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return first.size() + second.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return first.contains(o) || second.contains(o);
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * A worst-case optimal join of the positive goals of a rule body, using the Leapfrog Triejoin algorithm of [veld].
+ * <p>
+ * The nested loop of {@link Engine#matchGoals(List, FactView, Map, QueryContext)} joins the goals one at a time, so
+ * for cyclic bodies like {@code tri(X,Y,Z) :- e(X,Y), e(Y,Z), e(Z,X)} it can produce intermediate results that are
+ * far larger than the output. Leapfrog Triejoin instead binds the variables one at a time: The facts of each
+ * goal are sorted into a trie by the goal's variables, and the values of a variable are found by intersecting
+ * the tries of all the goals that contain it, seeking past values that any of them lacks.
+ * </p><p>
+ * The terms are dictionary-encoded as {@code int}s for the duration of the join, so that the tries are sorted arrays
+ * of integers; The order of the values is arbitrary, but equal terms get equal codes.
+ * The built-in and negated goals are evaluated on each binding of the positive goals afterwards.
+ * </p><p>
+ * The engine uses this join for bodies whose positive goals are cyclic, as determined by {@link #isCyclic(List)}.
+ * Acyclic bodies are joined efficiently enough by the nested loop.
+ * </p>
+ */
+public final class LeapfrogJoin {
+
+	private LeapfrogJoin() {}
+
+	/**
+	 * Checks whether the positive goals in a list form a cyclic join, through the GYO reduction: Variables
+	 * that occur in only one goal are removed, as are goals whose variables are a subset of another goal's,
+	 * until nothing changes. The join is cyclic if more than one goal remains.
+	 * @param goals The goals, typically the body of a rule
+	 * @return true if the join of the positive goals is cyclic
+	 */
+	public static boolean isCyclic(List<Expr> goals) {
+		List<Set<String>> edges = new ArrayList<>();
+		for(Expr goal : goals) {
+			if(isJoined(goal)) {
+				edges.add(new HashSet<>(variables(goal)));
+			}
+		}
+		if(edges.size() < 3) {
+			return false;
+		}
+		boolean changed = true;
+		while(changed && edges.size() > 1) {
+			changed = false;
+			Map<String, Integer> occurrences = new HashMap<>();
+			for(Set<String> edge : edges) {
+				for(String variable : edge) {
+					occurrences.merge(variable, 1, Integer::sum);
+				}
+			}
+			for(Set<String> edge : edges) {
+				if(edge.removeIf(variable -> occurrences.get(variable) == 1)) {
+					changed = true;
+				}
+			}
+			for(int i = 0; i < edges.size(); i++) {
+				for(int j = 0; j < edges.size(); j++) {
+					if(i != j && edges.get(j).containsAll(edges.get(i))) {
+						edges.remove(i--);
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		return edges.size() > 1;
+	}
+
+	/**
+	 * Determines the order in which the join binds the variables of the positive goals: the order in which
+	 * they first occur in the goals.
+	 * @param goals The goals
+	 * @return the variables
+	 */
+	public static List<String> getVariableOrder(List<Expr> goals) {
+		Set<String> order = new LinkedHashSet<>();
+		for(Expr goal : goals) {
+			if(isJoined(goal)) {
+				order.addAll(variables(goal));
+			}
+		}
+		return new ArrayList<>(order);
+	}
+
+	/* Joins the goals, collecting the answers */
+	static Collection<Map<String, Term>> join(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context) throws DatalogException {
+		List<Map<String, Term>> answers = new ArrayList<>();
+		join(goals, facts, bindings, context, answer -> answers.add(Engine.copy(answer)));
+		return answers;
+	}
+
+	/* Joins the goals: The positive goals with Leapfrog Triejoin, followed by the remaining goals in a nested loop.
+	 * Each answer is pushed to the sink in a map that is reused for the next answer. */
+	static void join(List<Expr> goals, FactView facts, Map<String, Term> bindings, QueryContext context, Engine.AnswerSink sink) throws DatalogException {
+		List<Expr> positive = new ArrayList<>();
+		List<Expr> rest = new ArrayList<>();
+		for(Expr goal : goals) {
+			if(isJoined(goal)) {
+				positive.add(bindings != null ? goal.substituteTerms(bindings) : goal);
+			} else {
+				rest.add(goal);
+			}
+		}
+		List<String> order = getVariableOrder(positive);
+
+		Map<Term, Integer> codes = new HashMap<>();
+		List<Term> dictionary = new ArrayList<>();
+		TrieIterator[] tries = new TrieIterator[positive.size()];
+		List<List<TrieIterator>> participants = new ArrayList<>();
+		for(int i = 0; i < order.size(); i++) {
+			participants.add(new ArrayList<>());
+		}
+		for(int i = 0; i < positive.size(); i++) {
+			Expr goal = positive.get(i);
+			List<String> variables = variables(goal);
+			variables.sort((a, b) -> order.indexOf(a) - order.indexOf(b));
+			int[][] rows = encode(goal, variables, facts.getFacts(goal.getPredicate()), codes, dictionary, context);
+			if(rows.length == 0) {
+				return;
+			}
+			tries[i] = new TrieIterator(rows);
+			for(String variable : variables) {
+				participants.get(order.indexOf(variable)).add(tries[i]);
+			}
+		}
+
+		int[] tuple = new int[order.size()];
+		StackMap<String, Term> answer = new StackMap<>(bindings);
+		search(0, participants, tuple, tuple.length, (int[] values) -> {
+			context.bind();
+			answer.reset(bindings);
+			for(int i = 0; i < values.length; i++) {
+				answer.put(order.get(i), dictionary.get(values[i]));
+			}
+			if(rest.isEmpty()) {
+				sink.accept(answer);
+			} else {
+				Engine.matchGoals(rest, facts, answer, context, sink);
+			}
+		});
+	}
+
+	/* A goal that takes part in the join: positive, not built-in, and with at least one variable */
+	private static boolean isJoined(Expr goal) {
+		return !goal.isBuiltIn() && !goal.isNegated() && !goal.isGround();
+	}
+
+	/* The distinct variables of a goal, in the order in which they occur */
+	private static List<String> variables(Expr goal) {
+		List<String> variables = new ArrayList<>();
+		for(Term term : goal.getTypedTerms()) {
+			if(term.isVariable() && !variables.contains(term.getText())) {
+				variables.add(term.getText());
+			}
+		}
+		return variables;
+	}
+
+	/* Encodes the facts that match a goal as rows of the codes of the values of its variables, sorted
+	 * lexicographically. Facts that don't match the goal's constants or repeated variables are skipped. */
+	private static int[][] encode(Expr goal, List<String> variables, Collection<Expr> facts,
+			Map<Term, Integer> codes, List<Term> dictionary, QueryContext context) throws DatalogException {
+		List<int[]> rows = new ArrayList<>();
+		for(Expr fact : facts) {
+			context.scan();
+			Map<String, Term> binding = new HashMap<>();
+			if(!fact.unifyTerms(goal, binding)) {
+				continue;
+			}
+			int[] row = new int[variables.size()];
+			for(int i = 0; i < row.length; i++) {
+				Term value = binding.get(variables.get(i));
+				Integer code = codes.get(value);
+				if(code == null) {
+					code = dictionary.size();
+					codes.put(value, code);
+					dictionary.add(value);
+				}
+				row[i] = code;
+			}
+			rows.add(row);
+		}
+		int[][] sorted = rows.toArray(new int[rows.size()][]);
+		Arrays.sort(sorted, (a, b) -> {
+			for(int i = 0; i < a.length; i++) {
+				if(a[i] != b[i]) {
+					return Integer.compare(a[i], b[i]);
+				}
+			}
+			return 0;
+		});
+		return sorted;
+	}
+
+	private interface Output {
+		void accept(int[] values) throws DatalogException;
+	}
+
+	/* Binds the variable at the depth to each value in the intersection of the tries that contain it,
+	 * and recurses to the next variable */
+	private static void search(int depth, List<List<TrieIterator>> participants, int[] tuple, int variables, Output output) throws DatalogException {
+		if(depth == variables) {
+			output.accept(tuple);
+			return;
+		}
+		List<TrieIterator> iterators = participants.get(depth);
+		int k = iterators.size();
+		TrieIterator[] its = iterators.toArray(new TrieIterator[k]);
+		for(TrieIterator it : its) {
+			it.open();
+		}
+		try {
+			for(TrieIterator it : its) {
+				if(it.atEnd()) {
+					return;
+				}
+			}
+			// The leapfrog: Keep the iterators sorted by key, and seek the smallest one to the largest key
+			Arrays.sort(its, (a, b) -> Integer.compare(a.key(), b.key()));
+			int p = 0;
+			int max = its[k - 1].key();
+			while(true) {
+				int key = its[p].key();
+				if(key == max) {
+					tuple[depth] = key;
+					search(depth + 1, participants, tuple, variables, output);
+					its[p].next();
+				} else {
+					its[p].seek(max);
+				}
+				if(its[p].atEnd()) {
+					return;
+				}
+				max = its[p].key();
+				p = (p + 1) % k;
+			}
+		} finally {
+			for(TrieIterator it : its) {
+				it.up();
+			}
+		}
+	}
+
+	/* Iterates over a trie that is represented as lexicographically sorted rows.
+	 * At each depth it ranges over the distinct values in that column among the rows that share the
+	 * values of the columns above it. */
+	private static final class TrieIterator {
+		private final int[][] rows;
+		private final int[] start, end, pos;
+		private int depth = -1;
+
+		TrieIterator(int[][] rows) {
+			this.rows = rows;
+			int levels = rows[0].length;
+			start = new int[levels];
+			end = new int[levels];
+			pos = new int[levels];
+		}
+
+		/* Descends to the values under the current key */
+		void open() {
+			int from = 0, to = rows.length;
+			if(depth >= 0) {
+				from = pos[depth];
+				to = seek(depth, from, end[depth], key() + 1);
+			}
+			depth++;
+			start[depth] = from;
+			end[depth] = to;
+			pos[depth] = from;
+		}
+
+		void up() {
+			depth--;
+		}
+
+		int key() {
+			return rows[pos[depth]][depth];
+		}
+
+		boolean atEnd() {
+			return pos[depth] >= end[depth];
+		}
+
+		void next() {
+			pos[depth] = seek(depth, pos[depth] + 1, end[depth], key() + 1);
+		}
+
+		/* Moves to the least key that is at least the given key */
+		void seek(int key) {
+			pos[depth] = seek(depth, pos[depth], end[depth], key);
+		}
+
+		/* The first row in [from, to) whose value at the level is at least key, by galloping and then binary search */
+		private int seek(int level, int from, int to, int key) {
+			int step = 1;
+			int lo = from, hi = from;
+			while(hi < to && rows[hi][level] < key) {
+				lo = hi + 1;
+				hi += step;
+				step <<= 1;
+			}
+			if(hi > to) {
+				hi = to;
+			}
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(rows[mid][level] < key) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+}
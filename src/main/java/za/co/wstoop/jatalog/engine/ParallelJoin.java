@@ -0,0 +1,176 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/* Evaluates a single rule on a ForkJoinPool, for rules whose first goal has so many candidate facts that one
+ * rule dominates an iteration, like cousin(X, Y) :- parent(P, X), parent(Q, Y), sibling(P, Q).
+ * The candidate facts of the first goal are split in halves until the chunks are small, and each chunk is joined
+ * with the remaining goals by matchGoals() on its own thread. Each chunk derives its facts into a buffer of its own
+ * with a QueryContext forked from the rule's, and the buffers and the contexts' counts are merged as the
+ * halves are joined. Idle threads steal the halves that haven't been started yet, which balances chunks whose
+ * facts have many more bindings than others.
+ * The KeyIndexes of the rule's partly bound negated goals are built once, before the chunks start, and the forked
+ * contexts share them, so that the negated relations aren't scanned again for every chunk.
+ * The facts are only read while the rule is evaluated, which is what makes this safe. */
+final class ParallelJoin extends RecursiveTask<ParallelJoin.Result> {
+
+	private static final long serialVersionUID = 1L;
+
+	/* The number of candidate facts that a chunk is joined with on a single thread */
+	static final int CHUNK = 256;
+
+	/* The facts derived by a range of candidates, and the forked context that counted their evaluation */
+	static final class Result {
+		final Set<Expr> derived;
+		final QueryContext context;
+		long answers;
+
+		Result(Set<Expr> derived, QueryContext context) {
+			this.derived = derived;
+			this.context = context;
+		}
+
+		Result merge(Result that) {
+			Result into = derived.size() >= that.derived.size() ? this : that, from = into == this ? that : this;
+			into.derived.addAll(from.derived);
+			into.context.join(from.context);
+			into.answers += from.answers;
+			return into;
+		}
+	}
+
+	/* Carries a DatalogException out of compute() */
+	private static final class Failure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Failure(DatalogException cause) {
+			super(cause);
+		}
+	}
+
+	private final Expr head;
+	private final List<Expr> goals;
+	private final Expr[] candidates;
+	private final FactView facts;
+	private final QueryContext context;
+	private final int from, to;
+
+	private ParallelJoin(Expr head, List<Expr> goals, Expr[] candidates, FactView facts, QueryContext context, int from, int to) {
+		this.head = head;
+		this.goals = goals;
+		this.candidates = candidates;
+		this.facts = facts;
+		this.context = context;
+		this.from = from;
+		this.to = to;
+	}
+
+	/* Derives the new facts of a rule's head from its goals, the first of which is matched against the candidate
+	 * facts, which must be all the facts that can unify with it. The answers are counted in answers[0]. */
+	static Set<Expr> derive(Expr head, List<Expr> goals, Expr[] candidates, FactView facts, QueryContext context, ForkJoinPool pool, long[] answers) throws DatalogException {
+		indexNegatedGoals(goals, facts, context);
+		Result result;
+		try {
+			result = pool.invoke(new ParallelJoin(head, goals, candidates, facts, context, 0, candidates.length));
+		} catch (RuntimeException e) {
+			// The pool may have wrapped the failure to preserve the calling thread's stack trace
+			for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if(cause instanceof DatalogException) {
+					throw (DatalogException)cause;
+				}
+			}
+			throw e;
+		}
+		context.join(result.context);
+		context.checkLimits();
+		answers[0] += result.answers;
+		return result.derived;
+	}
+
+	/* Builds the indexes on the bound columns of the negated goals that are only partly bound, in the context that
+	 * the chunks' contexts are forked from. The columns are those whose terms are constants or variables that the
+	 * goals before it bind. */
+	private static void indexNegatedGoals(List<Expr> goals, FactView facts, QueryContext context) throws DatalogException {
+		Set<String> bound = new HashSet<>();
+		for(Expr goal : goals) {
+			if(!goal.isNegated()) {
+				for(Term term : goal.getTypedTerms()) {
+					if(term.isVariable()) {
+						bound.add(term.getText());
+					}
+				}
+				continue;
+			}
+			if(goal.isBuiltIn()) {
+				continue;
+			}
+			int count = 0;
+			int[] columns = new int[goal.arity()];
+			for(int i = 0; i < goal.arity(); i++) {
+				Term term = goal.getTerm(i);
+				if(!term.isVariable() || bound.contains(term.getText())) {
+					columns[count++] = i;
+				}
+			}
+			if(count > 0 && count < goal.arity()) {
+				KeyIndex.get(facts, goal.getPredicate(), Arrays.copyOf(columns, count), context);
+			}
+		}
+	}
+
+	@Override
+	protected Result compute() {
+		if(to - from <= CHUNK) {
+			try {
+				return joinChunk();
+			} catch (DatalogException e) {
+				throw new Failure(e);
+			}
+		}
+		int middle = (from + to) >>> 1;
+		ParallelJoin left = new ParallelJoin(head, goals, candidates, facts, context, from, middle);
+		ParallelJoin right = new ParallelJoin(head, goals, candidates, facts, context, middle, to);
+		left.fork();
+		Result result = right.compute();
+		return left.join().merge(result);
+	}
+
+	/* Joins a chunk of candidates with the remaining goals, like evaluateGoals() does on a single thread */
+	private Result joinChunk() throws DatalogException {
+		Result result = new Result(new HashSet<>(), context.fork());
+		QueryContext fork = result.context;
+		Expr goal = goals.get(0);
+		List<Expr> rest = goals.subList(1, goals.size());
+		Expr tuple = head.copy();
+		Engine.AnswerSink sink = answer -> {
+			result.answers++;
+			head.substituteTerms(answer, tuple);
+			if(!result.derived.contains(tuple) && !facts.contains(tuple)) {
+				result.derived.add(tuple.copy());
+			}
+		};
+		StackMap<String, Term> bindings = new StackMap<String, Term>(null);
+		for(int i = from; i < to; i++) {
+			fork.scan();
+			bindings.reset(null);
+			if(candidates[i].unifyTerms(goal, bindings)) {
+				fork.bind();
+				if(rest.isEmpty()) {
+					sink.accept(bindings);
+				} else {
+					Engine.matchGoals(rest, facts, bindings, fork, sink);
+				}
+			}
+		}
+		return result;
+	}
+}
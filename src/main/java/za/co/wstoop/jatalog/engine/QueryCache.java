@@ -0,0 +1,170 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import za.co.wstoop.jatalog.EdbProvider;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Jatalog;
+
+/**
+ * A size-bounded cache of the answers of queries, for workloads that repeat the same queries against
+ * data that changes less often than it is queried.
+ * <p>
+ * The answers are keyed by the goals of the query in evaluation order (see {@link QueryPlan#getOrderedGoals()})
+ * and its bindings. Each entry records the {@link EdbProvider#getVersion(String) versions} of the facts of the
+ * query's relevant predicates when it was computed, and it is only used while none of them have changed
+ * and no rules have been added to the database (see {@link QueryPlan#isValid(Jatalog)}). Queries against
+ * {@link EdbProvider}s that don't track versions are never cached.
+ * </p><p>
+ * When the cache is full, the least recently used entry is evicted.
+ * The cached answers are unmodifiable, since they are shared by every caller that asks the same query.
+ * The cache is thread-safe.
+ * </p>
+ * @see Jatalog#setQueryCache(QueryCache)
+ */
+public class QueryCache {
+
+	private static class Entry {
+		final Jatalog jatalog;
+		final EdbProvider edb;
+		final QueryPlan plan;
+		final Map<String, Long> versions;
+		final Collection<Map<String, String>> answers;
+
+		Entry(Jatalog jatalog, QueryPlan plan, Map<String, Long> versions, Collection<Map<String, String>> answers) {
+			this.jatalog = jatalog;
+			this.edb = jatalog.getEdbProvider();
+			this.plan = plan;
+			this.versions = versions;
+			this.answers = answers;
+		}
+
+		boolean isValid(Jatalog jatalog) {
+			if(this.jatalog != jatalog || edb != jatalog.getEdbProvider() || !plan.isValid(jatalog)) {
+				return false;
+			}
+			for(Map.Entry<String, Long> version : versions.entrySet()) {
+				if(edb.getVersion(version.getKey()) != version.getValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final int maxEntries;
+	private final LinkedHashMap<List<Object>, Entry> entries;
+	private long hits, misses;
+
+	/**
+	 * Creates an empty cache.
+	 * @param maxEntries The maximum number of queries whose answers are kept
+	 */
+	public QueryCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		// In access order, so that the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>, Entry> eldest) {
+				return size() > QueryCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Retrieves the answers of a query, if they are in the cache and still valid.
+	 * @param jatalog The database that is queried
+	 * @param plan The plan of the query
+	 * @param bindings The bindings that the query is executed with, which may be null
+	 * @return the answers, or null if the query has to be evaluated
+	 */
+	public synchronized Collection<Map<String, String>> get(Jatalog jatalog, QueryPlan plan, Map<String, String> bindings) {
+		List<Object> key = key(plan, bindings);
+		Entry entry = entries.get(key);
+		if(entry != null && !entry.isValid(jatalog)) {
+			entries.remove(key);
+			entry = null;
+		}
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.answers;
+	}
+
+	/**
+	 * Stores the answers of a query, along with the current versions of its relevant predicates.
+	 * The answers are only stored if the database's {@link EdbProvider} tracks versions.
+	 * @param jatalog The database that was queried
+	 * @param plan The plan of the query
+	 * @param bindings The bindings that the query was executed with, which may be null
+	 * @param answers The answers of the query
+	 * @return the answers, as they are cached if they were stored
+	 */
+	public synchronized Collection<Map<String, String>> put(Jatalog jatalog, QueryPlan plan, Map<String, String> bindings, Collection<Map<String, String>> answers) {
+		Map<String, Long> versions = new HashMap<>();
+		for(String predicate : plan.getPredicates()) {
+			long version = jatalog.getEdbProvider().getVersion(predicate);
+			if(version < 0) {
+				return answers;
+			}
+			versions.put(predicate, version);
+		}
+		List<Map<String, String>> copy = new ArrayList<>(answers.size());
+		for(Map<String, String> answer : answers) {
+			copy.add(Collections.unmodifiableMap(answer));
+		}
+		Collection<Map<String, String>> cached = Collections.unmodifiableList(copy);
+		entries.put(key(plan, bindings), new Entry(jatalog, plan, versions, cached));
+		return cached;
+	}
+
+	/* The normalized form of a query: Its goals in evaluation order, and its bindings in sorted order */
+	private static List<Object> key(QueryPlan plan, Map<String, String> bindings) {
+		Map<String, String> sorted = bindings != null ? new TreeMap<>(bindings) : Collections.emptyMap();
+		return Arrays.asList(new ArrayList<Expr>(plan.getOrderedGoals()), sorted);
+	}
+
+	/**
+	 * Removes all the entries from the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Retrieves the number of queries whose answers are in the cache, including entries that are no longer valid
+	 * but haven't been asked for since.
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Retrieves the number of times that {@link #get(Jatalog, QueryPlan, Map)} found valid answers.
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Retrieves the number of times that {@link #get(Jatalog, QueryPlan, Map)} had to report a miss.
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,355 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.QueryAbortedException;
+import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.QueryAbortedException.Reason;
+
+/**
+ * The state of a single evaluation of a query, which the {@link Engine} threads through the evaluation.
+ * <p>
+ * It counts the candidate facts that the engine scans while matching goals, and it carries the
+ * {@link EngineListener}s that are notified of the evaluation's progress. 
+ * A context should only be used for one query at a time.
+ * </p><p>
+ * The context also enforces the query's {@link QueryLimits limits}, and it is the handle through which a
+ * query can be {@link #cancel() cancelled} from another thread. In both cases the evaluation is stopped with
+ * a {@link QueryAbortedException}.
+ * </p><p>
+ * If {@link #setProfiling(boolean) profiling} is enabled the listeners are also notified of the evaluation
+ * of each goal, which is considerably slower.
+ * </p>
+ */
+public class QueryContext {
+
+	private final EngineListener listener;
+
+	// The number of facts unified with goals so far
+	long scanned;
+
+	// The number of bindings produced and facts derived so far
+	private long bindings, derived;
+
+	private QueryLimits limits = QueryLimits.NONE;
+	private long maxBindings = Long.MAX_VALUE, maxDerived = Long.MAX_VALUE;
+	private long deadline;
+	private boolean timed;
+
+	private volatile boolean cancelled;
+
+	// The context that this one was forked from, whose cancellation also applies to this one
+	private QueryContext parent;
+
+	// The context of the whole query, whose limits this one's forks share, or null if this context isn't a fork
+	private QueryContext budget;
+
+	// The bindings and facts that the forks of this context have counted and that haven't been joined into it yet.
+	// Bindings are only shared if they are limited, since bind() is called for every binding.
+	private final AtomicLong forkedBindings = new AtomicLong(), forkedDerived = new AtomicLong();
+
+	private boolean profiling;
+
+	// The stack of goals being matched while profiling; see Engine#profileGoals()
+	final Deque<long[]> frames = new ArrayDeque<>();
+
+	// The indexes on the bound columns of negated goals; see KeyIndex
+	final Map<String, KeyIndex> keyIndexes = new HashMap<>();
+
+	/**
+	 * Creates a context without listeners.
+	 */
+	public QueryContext() {
+		this.listener = null;
+	}
+
+	/**
+	 * Creates a context that notifies a number of listeners.
+	 * @param listeners The listeners, which are notified in order.
+	 */
+	public QueryContext(EngineListener... listeners) {
+		this(Arrays.asList(listeners));
+	}
+
+	/**
+	 * Creates a context that notifies a number of listeners.
+	 * @param listeners The listeners, which are notified in order.
+	 */
+	public QueryContext(Collection<EngineListener> listeners) {
+		if(listeners.isEmpty()) {
+			this.listener = null;
+		} else if(listeners.size() == 1) {
+			this.listener = listeners.iterator().next();
+		} else {
+			this.listener = new Multicaster(listeners);
+		}
+	}
+
+	/**
+	 * Checks whether there are any listeners; the engine doesn't measure the evaluation if there are none.
+	 * @return true if there are listeners to notify
+	 */
+	public boolean isInstrumented() {
+		return listener != null;
+	}
+
+	/**
+	 * Sets the limits that the evaluation of the query must stay within.
+	 * @param limits The limits; {@link QueryLimits#NONE} for none.
+	 */
+	public void setLimits(QueryLimits limits) {
+		this.limits = limits;
+		this.maxBindings = limits.getMaxBindings() > 0 ? limits.getMaxBindings() : Long.MAX_VALUE;
+		this.maxDerived = limits.getMaxDerivedFacts() > 0 ? limits.getMaxDerivedFacts() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Retrieves the limits that the evaluation of the query must stay within.
+	 * @return the limits
+	 */
+	public QueryLimits getLimits() {
+		return limits;
+	}
+
+	/**
+	 * Requests that the evaluation of the query be stopped. 
+	 * <p>
+	 * This method can be called from any thread. The thread that evaluates the query checks the request 
+	 * periodically, and then throws a {@link QueryAbortedException} with {@link Reason#CANCELLED}. 
+	 * A context that is cancelled before its query starts aborts the query immediately.
+	 * </p>
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Checks whether {@link #cancel()} has been called.
+	 * @return true if the query was cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Retrieves the number of bindings that the goals have produced in this context so far.
+	 * <p>
+	 * While parts of the query are evaluated on other threads their bindings are only included if the
+	 * query's {@link QueryLimits#getMaxBindings() bindings are limited}; they are always included once they are done.
+	 * </p>
+	 * @return the number of bindings
+	 */
+	public long getBindings() {
+		return bindings + forkedBindings.get();
+	}
+
+	/**
+	 * Retrieves the number of facts that the rules have derived in this context so far, including the facts
+	 * derived by parts of the query that are evaluated on other threads.
+	 * @return the number of facts derived
+	 */
+	public long getDerived() {
+		return derived + forkedDerived.get();
+	}
+
+	/* Called by the engine when the evaluation of the query starts; It starts the clock on the timeout */
+	void begin() throws QueryAbortedException {
+		long timeout = limits.getTimeout(TimeUnit.NANOSECONDS);
+		timed = timeout > 0;
+		deadline = System.nanoTime() + timeout;
+		keyIndexes.clear();
+		checkInterrupts();
+	}
+
+	/* Called by the engine for each candidate fact that it unifies with a goal. The clock and the 
+	 * cancellation flag are only checked every 1024 facts, since System.nanoTime() is not free. */
+	void scan() throws QueryAbortedException {
+		if((++scanned & 1023) == 0) {
+			checkInterrupts();
+		}
+	}
+
+	/* Called by the engine for each binding that satisfies a goal. A fork counts its bindings towards the
+	 * query's as well, so that forks running at the same time can't produce more than the query may between them. */
+	void bind() throws QueryAbortedException {
+		++bindings;
+		if(budget == null || maxBindings == Long.MAX_VALUE) {
+			if(bindings > maxBindings) {
+				throw tooManyBindings();
+			}
+		} else if(budget.bindings + budget.forkedBindings.incrementAndGet() > maxBindings) {
+			throw tooManyBindings();
+		}
+	}
+
+	/* Checks the bindings and facts of the query, including those that forked contexts have added to this one's */
+	void checkLimits() throws QueryAbortedException {
+		QueryContext query = budget != null ? budget : this;
+		if(query.getBindings() > maxBindings) {
+			throw tooManyBindings();
+		}
+		if(query.getDerived() > maxDerived) {
+			throw tooManyFacts();
+		}
+	}
+
+	/* Called by the engine when a rule derives new facts */
+	void derive(int count) throws QueryAbortedException {
+		derived += count;
+		if(budget == null) {
+			if(derived > maxDerived) {
+				throw tooManyFacts();
+			}
+		} else if(budget.derived + budget.forkedDerived.addAndGet(count) > maxDerived) {
+			throw tooManyFacts();
+		}
+	}
+
+	private QueryAbortedException tooManyBindings() {
+		return new QueryAbortedException(Reason.BINDINGS, "Query aborted: it produced more than " 
+				+ limits.getMaxBindings() + " bindings");
+	}
+
+	private QueryAbortedException tooManyFacts() {
+		return new QueryAbortedException(Reason.DERIVED_FACTS, "Query aborted: it derived more than " 
+				+ limits.getMaxDerivedFacts() + " facts");
+	}
+
+	/* Checks whether the query has been cancelled or timed out */
+	void checkInterrupts() throws QueryAbortedException {
+		for(QueryContext context = this; context != null; context = context.parent) {
+			if(context.cancelled) {
+				throw new QueryAbortedException(Reason.CANCELLED, "Query aborted: it was cancelled");
+			}
+		}
+		if(timed && System.nanoTime() - deadline > 0) {
+			throw new QueryAbortedException(Reason.TIMEOUT, "Query aborted: it took longer than " 
+					+ limits.getTimeout(TimeUnit.MILLISECONDS) + " ms");
+		}
+	}
+
+	/* Creates a context without listeners for evaluating part of this context's query on another thread.
+	 * It has the same limits and deadline, and it is cancelled along with this context. The forks of a query,
+	 * including the forks of forks, count their bindings and facts towards the query's as they go, so all of them
+	 * together may only produce what the query has left. The query's context must not be used while its forks run.
+	 * The fork starts with the KeyIndexes of this context, which it only reads. */
+	QueryContext fork() {
+		QueryContext fork = new QueryContext();
+		fork.setLimits(limits);
+		fork.timed = timed;
+		fork.deadline = deadline;
+		fork.parent = this;
+		fork.budget = budget != null ? budget : this;
+		fork.keyIndexes.putAll(keyIndexes);
+		return fork;
+	}
+
+	/* Adds the counts of a forked context to this one's, once its evaluation is done */
+	void join(QueryContext fork) {
+		scanned += fork.scanned;
+		bindings += fork.bindings;
+		derived += fork.derived;
+		if(budget == null) {
+			// The query's own counts now include the fork's, which it had counted towards the query's as it went
+			if(maxBindings != Long.MAX_VALUE) {
+				forkedBindings.addAndGet(-fork.bindings);
+			}
+			forkedDerived.addAndGet(-fork.derived);
+		}
+	}
+
+	/**
+	 * Checks whether the listeners are notified of the evaluation of every goal.
+	 * @return true if goals are profiled
+	 */
+	public boolean isProfiling() {
+		return profiling && listener != null;
+	}
+
+	/**
+	 * Enables or disables notifications of the evaluation of every goal through 
+	 * {@link EngineListener#goalEvaluated(Expr, long, long, long)}.
+	 * @param profiling true to profile the goals
+	 */
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	/**
+	 * Retrieves the listener to notify.
+	 * @return the listener, which forwards the notifications to all of this context's listeners, 
+	 * 	or null if there are no listeners.
+	 */
+	public EngineListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Retrieves the number of candidate facts that have been unified with goals in this context so far.
+	 * @return the number of facts scanned
+	 */
+	public long getScanned() {
+		return scanned;
+	}
+
+	/* Forwards notifications to several listeners */
+	private static class Multicaster implements EngineListener {
+		private final List<EngineListener> listeners;
+
+		Multicaster(Collection<EngineListener> listeners) {
+			this.listeners = new ArrayList<>(listeners);
+		}
+
+		@Override
+		public void queryStarted(QueryPlan plan, Map<String, String> bindings) {
+			for(EngineListener listener : listeners)
+				listener.queryStarted(plan, bindings);
+		}
+
+		@Override
+		public void stratumStarted(Stratum stratum) {
+			for(EngineListener listener : listeners)
+				listener.stratumStarted(stratum);
+		}
+
+		@Override
+		public void ruleEvaluated(Stratum stratum, Rule rule, int iteration, long scanned, long bindings, int derived, long nanos) {
+			for(EngineListener listener : listeners)
+				listener.ruleEvaluated(stratum, rule, iteration, scanned, bindings, derived, nanos);
+		}
+
+		@Override
+		public void goalEvaluated(Expr goal, long scanned, long matched, long nanos) {
+			for(EngineListener listener : listeners)
+				listener.goalEvaluated(goal, scanned, matched, nanos);
+		}
+
+		@Override
+		public void iterationCompleted(Stratum stratum, int iteration, int derived) {
+			for(EngineListener listener : listeners)
+				listener.iterationCompleted(stratum, iteration, derived);
+		}
+
+		@Override
+		public void stratumCompleted(Stratum stratum, int iterations, int derived, long nanos) {
+			for(EngineListener listener : listeners)
+				listener.stratumCompleted(stratum, iterations, derived, nanos);
+		}
+
+		@Override
+		public void queryCompleted(QueryPlan plan, long scanned, int answers, long nanos) {
+			for(EngineListener listener : listeners)
+				listener.queryCompleted(plan, scanned, answers, nanos);
+		}
+	}
+}
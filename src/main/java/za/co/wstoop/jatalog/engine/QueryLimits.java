@@ -0,0 +1,104 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the resources that the evaluation of a single query may use.
+ * <p>
+ * A query that exceeds any of its limits is stopped with a {@link za.co.wstoop.jatalog.QueryAbortedException},
+ * so that a runaway rule, such as an accidental cross product, can't exhaust the memory of the JVM or keep a thread 
+ * busy indefinitely. The limits are:
+ * </p>
+ * <ul>
+ * <li> A timeout on the wall-clock time of the evaluation.
+ * <li> The maximum number of facts that the rules may derive.
+ * <li> The maximum number of bindings that the goals of the rules and the query may produce; each fact that 
+ * 	unifies with a goal produces a binding.
+ * </ul>
+ * <p>
+ * The limits are checked inside the engine's fixed point and goal matching loops. Instances are immutable; the
+ * {@code with...()} methods return modified copies, starting from {@link #NONE}:
+ * </p>
+ * <pre>
+ * QueryLimits limits = QueryLimits.NONE.withTimeout(5, TimeUnit.SECONDS).withMaxDerivedFacts(1000000);
+ * </pre>
+ * @see za.co.wstoop.jatalog.Jatalog#setQueryLimits(QueryLimits)
+ * @see QueryContext#setLimits(QueryLimits)
+ */
+public class QueryLimits {
+
+	/**
+	 * No limits at all.
+	 */
+	public static final QueryLimits NONE = new QueryLimits(0, 0, 0);
+
+	private final long timeoutNanos;
+	private final long maxDerivedFacts;
+	private final long maxBindings;
+
+	private QueryLimits(long timeoutNanos, long maxDerivedFacts, long maxBindings) {
+		this.timeoutNanos = timeoutNanos;
+		this.maxDerivedFacts = maxDerivedFacts;
+		this.maxBindings = maxBindings;
+	}
+
+	/**
+	 * Creates a copy of these limits with a timeout.
+	 * @param timeout The maximum time the evaluation of a query may take; 0 for no timeout.
+	 * @param unit The unit of {@code timeout}
+	 * @return the new limits
+	 */
+	public QueryLimits withTimeout(long timeout, TimeUnit unit) {
+		return new QueryLimits(unit.toNanos(timeout), maxDerivedFacts, maxBindings);
+	}
+
+	/**
+	 * Creates a copy of these limits with a maximum number of derived facts.
+	 * @param maxDerivedFacts The maximum number of facts the rules may derive for a query; 0 for no limit.
+	 * @return the new limits
+	 */
+	public QueryLimits withMaxDerivedFacts(long maxDerivedFacts) {
+		return new QueryLimits(timeoutNanos, maxDerivedFacts, maxBindings);
+	}
+
+	/**
+	 * Creates a copy of these limits with a maximum number of bindings.
+	 * @param maxBindings The maximum number of bindings the goals may produce for a query; 0 for no limit.
+	 * @return the new limits
+	 */
+	public QueryLimits withMaxBindings(long maxBindings) {
+		return new QueryLimits(timeoutNanos, maxDerivedFacts, maxBindings);
+	}
+
+	/**
+	 * Retrieves the timeout.
+	 * @param unit The unit in which to return the timeout
+	 * @return the timeout, or 0 if there is none
+	 */
+	public long getTimeout(TimeUnit unit) {
+		return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Retrieves the maximum number of derived facts.
+	 * @return the maximum, or 0 if there is no limit
+	 */
+	public long getMaxDerivedFacts() {
+		return maxDerivedFacts;
+	}
+
+	/**
+	 * Retrieves the maximum number of bindings.
+	 * @return the maximum, or 0 if there is no limit
+	 */
+	public long getMaxBindings() {
+		return maxBindings;
+	}
+
+	@Override
+	public String toString() {
+		return "timeout " + (timeoutNanos > 0 ? (timeoutNanos / 1000000) + " ms" : "none") 
+				+ ", max derived facts " + (maxDerivedFacts > 0 ? maxDerivedFacts : "none") 
+				+ ", max bindings " + (maxBindings > 0 ? maxBindings : "none");
+	}
+}
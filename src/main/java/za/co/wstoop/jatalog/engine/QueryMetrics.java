@@ -0,0 +1,233 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Rule;
+
+/**
+ * An {@link EngineListener} that accumulates the numbers that the engine reports, per rule and per stratum.
+ * <p>
+ * Pass it to a single query through a {@link QueryContext} to profile that query, or register it with
+ * {@link Engine#addListener(EngineListener)} to accumulate the numbers over all queries, in which case the
+ * rules that are evaluated most frequently will also stand out. {@link #toString()} formats the
+ * numbers as a report, with the most expensive rules first.
+ * </p>
+ */
+public class QueryMetrics implements EngineListener {
+
+	/**
+	 * The numbers accumulated for a single rule.
+	 */
+	public static class RuleMetrics {
+		private final Rule rule;
+		private long invocations, scanned, bindings, derived, nanos;
+
+		RuleMetrics(Rule rule) {
+			this.rule = rule;
+		}
+
+		/** @return the rule */
+		public Rule getRule() { return rule; }
+		/** @return the number of times the rule's body was matched against the facts */
+		public long getInvocations() { return invocations; }
+		/** @return the number of candidate facts unified with the rule's goals */
+		public long getScanned() { return scanned; }
+		/** @return the number of bindings that satisfied the rule's body */
+		public long getBindings() { return bindings; }
+		/** @return the number of new facts derived by the rule */
+		public long getDerived() { return derived; }
+		/** @return the time spent evaluating the rule, in nanoseconds */
+		public long getNanos() { return nanos; }
+	}
+
+	/**
+	 * The numbers accumulated for a single stratum.
+	 */
+	public static class StratumMetrics {
+		private final Stratum stratum;
+		private long evaluations, iterations, derived, nanos;
+
+		StratumMetrics(Stratum stratum) {
+			this.stratum = stratum;
+		}
+
+		/** @return the stratum */
+		public Stratum getStratum() { return stratum; }
+		/** @return the number of times the stratum was evaluated */
+		public long getEvaluations() { return evaluations; }
+		/** @return the total number of fixed point iterations of all the evaluations */
+		public long getIterations() { return iterations; }
+		/** @return the number of facts derived by the stratum */
+		public long getDerived() { return derived; }
+		/** @return the time spent evaluating the stratum, in nanoseconds */
+		public long getNanos() { return nanos; }
+	}
+
+	/**
+	 * The numbers accumulated for a single goal, when the query is profiled.
+	 * @see QueryContext#setProfiling(boolean)
+	 */
+	public static class GoalMetrics {
+		private final Expr goal;
+		private long invocations, scanned, matched, nanos;
+
+		GoalMetrics(Expr goal) {
+			this.goal = goal;
+		}
+
+		/** @return the goal */
+		public Expr getGoal() { return goal; }
+		/** @return the number of times the goal was matched against the facts */
+		public long getInvocations() { return invocations; }
+		/** @return the number of candidate facts unified with the goal */
+		public long getScanned() { return scanned; }
+		/** @return the number of bindings that satisfied the goal */
+		public long getMatched() { return matched; }
+		/** @return the time spent matching the goal, excluding the goals after it, in nanoseconds */
+		public long getNanos() { return nanos; }
+	}
+
+	private final Map<Rule, RuleMetrics> rules = new LinkedHashMap<>();
+	// Goals are identified by identity, since the same expression can appear in several rules
+	private final Map<Expr, GoalMetrics> goals = new IdentityHashMap<>();
+	private final Map<Stratum, StratumMetrics> strata = new LinkedHashMap<>();
+	private long queries, scanned, answers, nanos;
+
+	@Override
+	public synchronized void ruleEvaluated(Stratum stratum, Rule rule, int iteration, long scanned, long bindings, int derived, long nanos) {
+		RuleMetrics metrics = rules.get(rule);
+		if(metrics == null) {
+			metrics = new RuleMetrics(rule);
+			rules.put(rule, metrics);
+		}
+		metrics.invocations++;
+		metrics.scanned += scanned;
+		metrics.bindings += bindings;
+		metrics.derived += derived;
+		metrics.nanos += nanos;
+	}
+
+	@Override
+	public synchronized void goalEvaluated(Expr goal, long scanned, long matched, long nanos) {
+		GoalMetrics metrics = goals.get(goal);
+		if(metrics == null) {
+			metrics = new GoalMetrics(goal);
+			goals.put(goal, metrics);
+		}
+		metrics.invocations++;
+		metrics.scanned += scanned;
+		metrics.matched += matched;
+		metrics.nanos += nanos;
+	}
+
+	@Override
+	public synchronized void stratumCompleted(Stratum stratum, int iterations, int derived, long nanos) {
+		StratumMetrics metrics = strata.get(stratum);
+		if(metrics == null) {
+			metrics = new StratumMetrics(stratum);
+			strata.put(stratum, metrics);
+		}
+		metrics.evaluations++;
+		metrics.iterations += iterations;
+		metrics.derived += derived;
+		metrics.nanos += nanos;
+	}
+
+	@Override
+	public synchronized void queryCompleted(QueryPlan plan, long scanned, int answers, long nanos) {
+		this.queries++;
+		this.scanned += scanned;
+		this.answers += answers;
+		this.nanos += nanos;
+	}
+
+	/**
+	 * Retrieves the numbers of each rule that has been evaluated.
+	 * @return the numbers, in the order in which the rules were first evaluated
+	 */
+	public synchronized Collection<RuleMetrics> getRuleMetrics() {
+		return Collections.unmodifiableList(new ArrayList<>(rules.values()));
+	}
+
+	/**
+	 * Retrieves the numbers of a specific rule.
+	 * @param rule The rule
+	 * @return the numbers, or null if the rule has not been evaluated
+	 */
+	public synchronized RuleMetrics getRuleMetrics(Rule rule) {
+		return rules.get(rule);
+	}
+
+	/**
+	 * Retrieves the numbers of a specific goal, if the query was profiled.
+	 * @param goal The goal; an expression in the body of a rule or in a plan's {@link QueryPlan#getOrderedGoals() goals}.
+	 * @return the numbers, or null if the goal has not been profiled
+	 */
+	public synchronized GoalMetrics getGoalMetrics(Expr goal) {
+		return goals.get(goal);
+	}
+
+	/**
+	 * Retrieves the numbers of a specific stratum.
+	 * @param stratum The stratum
+	 * @return the numbers, or null if the stratum has not been evaluated
+	 */
+	public synchronized StratumMetrics getStratumMetrics(Stratum stratum) {
+		return strata.get(stratum);
+	}
+
+	/**
+	 * Retrieves the numbers of each stratum that has been evaluated.
+	 * @return the numbers, in the order in which the strata were first evaluated
+	 */
+	public synchronized Collection<StratumMetrics> getStratumMetrics() {
+		return Collections.unmodifiableList(new ArrayList<>(strata.values()));
+	}
+
+	/** @return the number of queries completed */
+	public synchronized long getQueries() { return queries; }
+	/** @return the number of candidate facts unified with the goals of the queries, excluding the rules */
+	public synchronized long getScanned() { return scanned; }
+	/** @return the number of answers of all the queries */
+	public synchronized long getAnswers() { return answers; }
+	/** @return the total time spent evaluating queries, in nanoseconds */
+	public synchronized long getNanos() { return nanos; }
+
+	/**
+	 * Discards all the numbers accumulated so far.
+	 */
+	public synchronized void reset() {
+		rules.clear();
+		goals.clear();
+		strata.clear();
+		queries = scanned = answers = nanos = 0;
+	}
+
+	static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d queries; %s ms; %d facts scanned; %d answers%n", queries, millis(nanos), scanned, answers));
+		for(StratumMetrics s : strata.values()) {
+			sb.append(String.format("stratum %s: %d iterations; %d derived; %s ms%n", s.stratum, s.iterations, s.derived, millis(s.nanos)));
+		}
+		List<RuleMetrics> sorted = new ArrayList<>(rules.values());
+		sorted.sort(Comparator.comparingLong(RuleMetrics::getNanos).reversed());
+		for(RuleMetrics r : sorted) {
+			sb.append(String.format("rule %s: %d invocations; %d scanned; %d bindings; %d derived; %s ms%n", 
+					r.rule, r.invocations, r.scanned, r.bindings, r.derived, millis(r.nanos)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,209 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Jatalog;
+import za.co.wstoop.jatalog.Rule;
+
+/**
+ * The compiled form of a query.
+ * <p>
+ * A plan captures everything about a query that depends only on its goals and the rules in the IDB, and not on
+ * the facts in the EDB or the bindings it is executed with: The evaluation order of the goals (see
+ * {@link Engine#reorderQuery(List)}), the predicates that are relevant to the query, the rules that derive
+ * those predicates and the stratification of those rules. The relevant predicates are also the indexes through
+ * which the facts will be retrieved.
+ * </p><p>
+ * Plans are created through {@link Jatalog#prepareQuery(List)} and executed through
+ * {@link Jatalog#query(QueryPlan, java.util.Map)}, so that a query that is executed repeatedly with different
+ * bindings only pays the evaluation cost. A plan remains valid until rules are added to the database
+ * that it was prepared against; see {@link #isValid(Jatalog)}.
+ * </p><p>
+ * Plans are immutable, so they can be shared between threads. {@link #explain()} describes how a plan 
+ * will be evaluated.
+ * </p>
+ */
+public class QueryPlan {
+
+	private final Jatalog jatalog;
+	private final long idbVersion;
+
+	private final List<Expr> goals;
+	private final List<Expr> orderedGoals;
+	private final Collection<String> predicates;
+	private final Collection<Rule> rules;
+	private final List<Stratum> strata;
+
+	QueryPlan(Jatalog jatalog, List<Expr> goals, List<Expr> orderedGoals, Collection<String> predicates,
+			Collection<Rule> rules, List<Stratum> strata) {
+		this.jatalog = jatalog;
+		this.idbVersion = jatalog.getIdbVersion();
+		this.goals = Collections.unmodifiableList(goals);
+		this.orderedGoals = Collections.unmodifiableList(orderedGoals);
+		this.predicates = Collections.unmodifiableCollection(predicates);
+		this.rules = Collections.unmodifiableCollection(rules);
+		this.strata = Collections.unmodifiableList(strata);
+	}
+
+	/**
+	 * Checks whether this plan can still be used to execute its query against a database.
+	 * A plan is only valid for the database it was prepared against, and only while no rules have been
+	 * added to that database since.
+	 * @param jatalog The database against which the plan is to be executed.
+	 * @return true if the plan can be executed against {@code jatalog}
+	 */
+	public boolean isValid(Jatalog jatalog) {
+		return this.jatalog == jatalog && this.idbVersion == jatalog.getIdbVersion();
+	}
+
+	/**
+	 * Retrieves the goals of the query, as they were specified.
+	 * @return the goals of the query
+	 */
+	public List<Expr> getGoals() {
+		return goals;
+	}
+
+	/**
+	 * Retrieves the goals of the query in the order in which they will be evaluated.
+	 * @return the reordered goals
+	 */
+	public List<Expr> getOrderedGoals() {
+		return orderedGoals;
+	}
+
+	/**
+	 * Retrieves the predicates that are relevant to the query.
+	 * @return the relevant predicates
+	 */
+	public Collection<String> getPredicates() {
+		return predicates;
+	}
+
+	/**
+	 * Retrieves the rules that need to be evaluated to answer the query.
+	 * @return the relevant rules
+	 */
+	public Collection<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Retrieves the stratification of the relevant rules, in the order in which they will be evaluated.
+	 * @return the strata
+	 */
+	public List<Stratum> getStrata() {
+		return strata;
+	}
+
+	/**
+	 * Describes how the query will be evaluated, for debugging slow queries.
+	 * <p>
+	 * The description lists the relevant predicates, the goals in the order in which they are evaluated and the
+	 * strata in the order in which they are evaluated, with the rules of each stratum. For each goal it shows
+	 * how its facts are retrieved, which of its variables are bound by the goals before it and which variables
+	 * it binds.
+	 * </p>
+	 * @return the description
+	 * @see QueryProfile
+	 */
+	public String explain() {
+		return explain(null);
+	}
+
+	/* Describes the plan, with the numbers of a profiled execution if metrics is not null */
+	String explain(QueryMetrics metrics) {
+		StringBuilder sb = new StringBuilder("Query: ");
+		for(int i = 0; i < goals.size(); i++) {
+			sb.append(i > 0 ? ", " : "").append(goals.get(i));
+		}
+		sb.append("?\n");
+		List<String> sorted = new ArrayList<>(predicates);
+		Collections.sort(sorted);
+		sb.append("Relevant predicates: ").append(String.join(", ", sorted)).append("\n");
+		sb.append("Goals:\n");
+		explainGoals(sb, "  ", orderedGoals, metrics);
+		sb.append(strata.isEmpty() ? "No rules to evaluate\n" : "Strata:\n");
+		for(int i = 0; i < strata.size(); i++) {
+			Stratum stratum = strata.get(i);
+			sb.append("  ").append(i + 1).append(". ").append(stratum);
+			if(stratum.getTransitiveClosure() != null) {
+				sb.append(", evaluated as the ").append(stratum.getTransitiveClosure());
+			}
+			QueryMetrics.StratumMetrics s = metrics != null ? metrics.getStratumMetrics(stratum) : null;
+			if(s != null) {
+				sb.append(String.format(" -- %d iterations, %d derived, %s ms", s.getIterations(), s.getDerived(), QueryMetrics.millis(s.getNanos())));
+			}
+			sb.append("\n");
+			for(Rule rule : stratum.getRules()) {
+				sb.append("     ").append(rule);
+				QueryMetrics.RuleMetrics r = metrics != null ? metrics.getRuleMetrics(rule) : null;
+				if(r != null) {
+					sb.append(String.format(" -- %d invocations, %d scanned, %d bindings, %d derived, %s ms", 
+							r.getInvocations(), r.getScanned(), r.getBindings(), r.getDerived(), QueryMetrics.millis(r.getNanos())));
+				}
+				sb.append("\n");
+				explainGoals(sb, "       ", rule.getBody(), metrics);
+			}
+		}
+		return sb.toString();
+	}
+
+	/* Describes how each goal in a list is matched; the goals are evaluated in a nested loop, in order, 
+	 * unless they are cyclic, in which case the positive goals are joined by a LeapfrogJoin first */
+	private static void explainGoals(StringBuilder sb, String indent, List<Expr> goals, QueryMetrics metrics) {
+		if(LeapfrogJoin.isCyclic(goals)) {
+			sb.append(indent).append("Leapfrog triejoin of the positive goals, binding ")
+				.append(String.join(", ", LeapfrogJoin.getVariableOrder(goals))).append("\n");
+		}
+		Set<String> bound = new HashSet<>();
+		for(int i = 0; i < goals.size(); i++) {
+			Expr goal = goals.get(i);
+			List<String> inputs = new ArrayList<>();
+			List<String> outputs = new ArrayList<>();
+			for(String term : goal.getTerms()) {
+				if(Character.isUpperCase(term.charAt(0))) {
+					(bound.contains(term) ? inputs : outputs).add(term);
+				}
+			}
+			sb.append(indent).append(i + 1).append(". ").append(goal).append(" [");
+			if(goal.isBuiltIn()) {
+				sb.append("built-in");
+			} else if(goal.isNegated()) {
+				boolean partial = false;
+				for(String term : goal.getTerms()) {
+					partial |= !Character.isUpperCase(term.charAt(0)) || bound.contains(term);
+				}
+				if(outputs.isEmpty()) {
+					sb.append("anti-join, probe ").append(goal.getPredicate());
+				} else if(partial) {
+					sb.append("anti-join, key index on ").append(goal.getPredicate());
+				} else {
+					sb.append("anti-join, scan ").append(goal.getPredicate());
+				}
+			} else {
+				sb.append("scan ").append(goal.getPredicate());
+			}
+			if(!inputs.isEmpty()) {
+				sb.append("; bound ").append(String.join(", ", inputs));
+			}
+			if(!outputs.isEmpty() && !goal.isNegated()) {
+				sb.append("; binds ").append(String.join(", ", outputs));
+				bound.addAll(outputs);
+			}
+			sb.append("]");
+			QueryMetrics.GoalMetrics g = metrics != null ? metrics.getGoalMetrics(goal) : null;
+			if(g != null) {
+				sb.append(String.format(" -- %d invocations, %d scanned, %d matched, %s ms", 
+						g.getInvocations(), g.getScanned(), g.getMatched(), QueryMetrics.millis(g.getNanos())));
+			}
+			sb.append("\n");
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The result of a profiled execution of a query: The answers, the plan that was executed and the numbers
+ * that the engine reported while evaluating it.
+ * <p>
+ * {@link #toString()} formats the plan as {@link QueryPlan#explain()} does, annotated with the actual
+ * numbers of facts scanned, bindings and facts derived and the time spent on each stratum, rule and goal.
+ * </p>
+ * @see za.co.wstoop.jatalog.Jatalog#profile(java.util.List, Map)
+ */
+public class QueryProfile {
+
+	private final QueryPlan plan;
+	private final QueryMetrics metrics;
+	private final Collection<Map<String, String>> answers;
+
+	/**
+	 * Constructor.
+	 * @param plan The plan that was executed
+	 * @param metrics The numbers collected while executing the plan
+	 * @param answers The answers of the query
+	 */
+	public QueryProfile(QueryPlan plan, QueryMetrics metrics, Collection<Map<String, String>> answers) {
+		this.plan = plan;
+		this.metrics = metrics;
+		this.answers = answers;
+	}
+
+	/**
+	 * Retrieves the plan that was executed.
+	 * @return the plan
+	 */
+	public QueryPlan getPlan() {
+		return plan;
+	}
+
+	/**
+	 * Retrieves the numbers collected while executing the plan.
+	 * @return the metrics
+	 */
+	public QueryMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Retrieves the answers of the query.
+	 * @return the answers
+	 */
+	public Collection<Map<String, String>> getAnswers() {
+		return answers;
+	}
+
+	@Override
+	public String toString() {
+		return plan.explain(metrics) + String.format("%d answers; %d facts scanned by the goals; %s ms%n", 
+				answers.size(), metrics.getScanned(), QueryMetrics.millis(metrics.getNanos()));
+	}
+}
@@ -0,0 +1,113 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * A sorted index on one column of the facts of a predicate, through which the engine serves the comparison
+ * built-in predicates ({@code <}, {@code <=}, {@code >}, {@code >=} and {@code =}) with range scans instead of full scans.
+ * <p>
+ * The facts are sorted by the numeric value of the term in the column, the way {@link Term#compareNumerically(Term)}
+ * compares them, so terms that aren't numeric are indexed under 0.0 like the comparison predicates treat them.
+ * The ranges are inclusive; The engine still evaluates the comparison on each fact in the range.
+ * </p><p>
+ * The index is maintained incrementally as facts are added and removed.
+ * </p>
+ */
+public class RangeIndex {
+
+	private final int column;
+	private final NavigableMap<Double, Set<Expr>> index = new TreeMap<>();
+	private int size;
+
+	/**
+	 * Creates an empty index.
+	 * @param column The position of the indexed term in the facts, starting at 0
+	 */
+	public RangeIndex(int column) {
+		this.column = column;
+	}
+
+	/**
+	 * Retrieves the position of the indexed term.
+	 * @return the column
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	/**
+	 * Adds a fact to the index. Facts that don't have a term in the column are ignored.
+	 * @param fact The fact to add
+	 */
+	public void add(Expr fact) {
+		if(fact.arity() > column && index.computeIfAbsent(key(fact), k -> new LinkedHashSet<>()).add(fact)) {
+			size++;
+		}
+	}
+
+	/**
+	 * Removes a fact from the index.
+	 * @param fact The fact to remove
+	 */
+	public void remove(Expr fact) {
+		if(fact.arity() <= column) {
+			return;
+		}
+		Double key = key(fact);
+		Set<Expr> facts = index.get(key);
+		if(facts != null && facts.remove(fact)) {
+			size--;
+			if(facts.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the number of facts in the index.
+	 * @return the number of facts
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Retrieves the facts whose term in the column lies in a range.
+	 * @param low The inclusive lower bound, or null if the range has none
+	 * @param high The inclusive upper bound, or null if the range has none
+	 * @return the facts in the range
+	 */
+	public Collection<Expr> getRange(Term low, Term high) {
+		NavigableMap<Double, Set<Expr>> range = index;
+		if(low != null && high != null) {
+			if(Double.compare(low.toDouble(), high.toDouble()) > 0) {
+				return Collections.emptyList();
+			}
+			range = index.subMap(low.toDouble(), true, high.toDouble(), true);
+		} else if(low != null) {
+			range = index.tailMap(low.toDouble(), true);
+		} else if(high != null) {
+			range = index.headMap(high.toDouble(), true);
+		}
+		List<Expr> facts = new ArrayList<>();
+		for(Map.Entry<Double, Set<Expr>> entry : range.entrySet()) {
+			facts.addAll(entry.getValue());
+		}
+		return facts;
+	}
+
+	private Double key(Expr fact) {
+		return fact.getTerm(column).toDouble();
+	}
+}
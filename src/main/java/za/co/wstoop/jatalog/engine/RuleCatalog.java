@@ -0,0 +1,177 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Rule;
+
+/**
+ * The collection of rules in the IDB, indexed by the predicates in their heads and bodies.
+ * <p>
+ * The indexes are maintained incrementally as rules are added, so that the engine can find the rules that
+ * derive a predicate (when determining which rules are relevant to a query) and the rules that depend on a
+ * predicate (for semi-naive evaluation) without scanning all the rules.
+ * </p><p>
+ * The catalog also caches the {@link #getStratification() stratification} of its rules, which is recomputed
+ * only after rules have been added.
+ * </p>
+ */
+public class RuleCatalog {
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	private final Map<String, List<Rule>> byHead = new LinkedHashMap<>();
+	private final Map<String, List<Rule>> byBody = new HashMap<>();
+
+	private long version;
+	private final Map<String, Long> versions = new HashMap<>();
+
+	private List<Stratum> stratification;
+	private long stratificationVersion = -1;
+
+	/**
+	 * Default constructor, for an empty catalog.
+	 */
+	public RuleCatalog() {
+	}
+
+	/**
+	 * Creates a catalog containing a collection of rules.
+	 * @param rules The rules to add to the catalog
+	 */
+	public RuleCatalog(Collection<Rule> rules) {
+		for(Rule rule : rules) {
+			add(rule);
+		}
+	}
+
+	/**
+	 * Adds a rule to the catalog and updates the indexes.
+	 * @param rule The rule to add
+	 */
+	public void add(Rule rule) {
+		rules.add(rule);
+		index(byHead, rule.getHead().getPredicate(), rule);
+		for(Expr goal : rule.getBody()) {
+			if(!goal.isBuiltIn()) {
+				index(byBody, goal.getPredicate(), rule);
+			}
+		}
+		version++;
+		versions.put(rule.getHead().getPredicate(), version);
+	}
+
+	private static void index(Map<String, List<Rule>> map, String predicate, Rule rule) {
+		List<Rule> list = map.get(predicate);
+		if(list == null) {
+			list = new ArrayList<>();
+			map.put(predicate, list);
+		}
+		// A rule can refer to the same predicate more than once in its body
+		if(list.isEmpty() || list.get(list.size() - 1) != rule) {
+			list.add(rule);
+		}
+	}
+
+	/**
+	 * Retrieves all the rules in the catalog, in the order in which they were added.
+	 * @return An unmodifiable view of the rules
+	 */
+	public Collection<Rule> getRules() {
+		return Collections.unmodifiableList(rules);
+	}
+
+	/**
+	 * Retrieves the rules with a specific predicate in their heads; that is, the rules that derive facts with that predicate.
+	 * @param predicate The predicate
+	 * @return the rules, or an empty collection if there are none
+	 */
+	public Collection<Rule> getRulesByHead(String predicate) {
+		List<Rule> list = byHead.get(predicate);
+		if(list == null) return Collections.emptyList();
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Retrieves the rules with a specific predicate in their bodies, negated or not; that is, the rules
+	 * whose results may change when facts with that predicate are derived.
+	 * @param predicate The predicate
+	 * @return the rules, or an empty collection if there are none
+	 */
+	public Collection<Rule> getRulesByBody(String predicate) {
+		List<Rule> list = byBody.get(predicate);
+		if(list == null) return Collections.emptyList();
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Retrieves the predicates that appear in the heads of rules; i.e. the predicates of derived facts.
+	 * @return the predicates, in the order in which they were first added
+	 */
+	public Set<String> getHeadPredicates() {
+		return Collections.unmodifiableSet(byHead.keySet());
+	}
+
+	/**
+	 * Retrieves a number that changes every time a rule is added to the catalog.
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Retrieves a number that changes every time a rule that derives a specific predicate is added to the catalog.
+	 * Like the catalog's version it only ever increases.
+	 * @param predicate The predicate in the heads of the rules
+	 * @return the version, or 0 if there are no rules for the predicate
+	 */
+	public long getVersion(String predicate) {
+		return versions.getOrDefault(predicate, 0L);
+	}
+
+	/**
+	 * Retrieves the number of rules in the catalog
+	 * @return the number of rules
+	 */
+	public int size() {
+		return rules.size();
+	}
+
+	/**
+	 * Retrieves the stratification of the rules in the catalog.
+	 * <p>
+	 * It is computed through {@link Engine#computeStratification(RuleCatalog)} the first time it is needed and
+	 * cached until rules are added. Queries only need the strata that they depend on to be stratified; see
+	 * {@link Stratum#getError()}.
+	 * </p>
+	 * @return the strata, in the order in which they must be evaluated
+	 * @throws DatalogException if the rules cannot be stratified because of negative recursion.
+	 */
+	public List<Stratum> getStratification() throws DatalogException {
+		List<Stratum> strata = getStrata();
+		for(Stratum stratum : strata) {
+			if(stratum.getError() != null) {
+				throw new DatalogException(stratum.getError());
+			}
+		}
+		return strata;
+	}
+
+	/* The cached strata of the rules, including the strata that can't be evaluated; see Stratum.getError() */
+	synchronized List<Stratum> getStrata() {
+		if(stratificationVersion != version) {
+			stratification = Engine.stratify(this);
+			stratificationVersion = version;
+		}
+		return stratification;
+	}
+}
@@ -0,0 +1,99 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.Rule;
+
+/**
+ * A stratum is a group of rules that are evaluated together.
+ * <p>
+ * Each stratum corresponds to a strongly connected component of the predicate dependency graph: It contains
+ * all the rules for a set of mutually recursive predicates. The strata computed by
+ * {@link Engine#computeStratification(Collection)} are ordered so that every stratum comes after all the strata
+ * whose predicates it depends on, which means that all the facts that a stratum's rules depend on (including the
+ * ones used in negated expressions) have already been derived by the time the stratum is evaluated.
+ * </p><p>
+ * A stratum that is not {@link #isRecursive() recursive} can be evaluated in a single pass over its rules; only
+ * recursive strata need to be evaluated until a fixed point is reached. Recursive strata that compute the
+ * {@link TransitiveClosure} of a relation are evaluated with a graph search instead.
+ * </p>
+ */
+public class Stratum {
+
+	private final Set<String> predicates;
+	private final Collection<Rule> rules;
+	private final boolean recursive;
+	private final Map<String, Collection<Rule>> dependentRules;
+	private final TransitiveClosure transitiveClosure;
+	// Why the stratum can't be evaluated, if it has negative recursion or a recursive aggregate; see Engine.stratify()
+	String error;
+
+	Stratum(Set<String> predicates, Collection<Rule> rules, boolean recursive, Map<String, Collection<Rule>> dependentRules) {
+		this.predicates = Collections.unmodifiableSet(predicates);
+		this.rules = Collections.unmodifiableCollection(rules);
+		this.recursive = recursive;
+		this.dependentRules = Collections.unmodifiableMap(dependentRules);
+		this.transitiveClosure = TransitiveClosure.recognize(this);
+	}
+
+	/**
+	 * Retrieves the predicates that are derived by the rules in this stratum.
+	 * @return the predicates in the heads of this stratum's rules
+	 */
+	public Set<String> getPredicates() {
+		return predicates;
+	}
+
+	/**
+	 * Retrieves the rules in this stratum.
+	 * @return the rules
+	 */
+	public Collection<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Checks whether any of the rules in this stratum depend, directly or indirectly, on the
+	 * predicates derived in this stratum.
+	 * @return true if the stratum needs to be evaluated until a fixed point is reached.
+	 */
+	public boolean isRecursive() {
+		return recursive;
+	}
+
+	/**
+	 * Retrieves the dependency graph used for semi-naive evaluation of this stratum:
+	 * It maps each predicate derived in this stratum to the rules in this stratum that have
+	 * the predicate in their bodies.
+	 * @return the rules in this stratum that depend on each of the stratum's predicates 
+	 */
+	public Map<String, Collection<Rule>> getDependentRules() {
+		return dependentRules;
+	}
+
+	/**
+	 * Retrieves the transitive closure that this stratum computes, if its rules have that form.
+	 * @return the transitive closure, or null if the stratum has to be evaluated as a fixed point
+	 */
+	public TransitiveClosure getTransitiveClosure() {
+		return transitiveClosure;
+	}
+
+	/**
+	 * Retrieves the reason why this stratum can't be evaluated, if its rules aren't stratified: If a predicate
+	 * depends on a negation or an aggregate of a predicate in the same stratum.
+	 * Queries that depend on such a stratum are rejected, while queries of other predicates are not.
+	 * @return the reason, or null if the stratum can be evaluated
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return (recursive ? "recursive " : "") + predicates;
+	}
+}
@@ -0,0 +1,235 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.EdbProvider;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Jatalog;
+import za.co.wstoop.jatalog.Rule;
+
+/**
+ * The facts that the strata of earlier queries derived, which the {@link BasicEngine} reuses instead of
+ * evaluating a stratum again when none of its inputs have changed.
+ * <p>
+ * A stratum's inputs are the versions of the facts of the predicates in its rules, as tracked by the
+ * {@link EdbProvider#getVersion(String) EdbProvider}, the {@link RuleCatalog#getVersion(String) versions of the rules}
+ * of its own predicates, and the facts that earlier strata derived. Every set of facts that is derived for a
+ * stratum gets a new <i>stamp</i>, which is the version of the stratum's predicates for the strata that depend
+ * on them. So when a fact is added, only the strata whose predicates depend on the fact's predicate,
+ * directly or through other strata, are evaluated again.
+ * </p><p>
+ * Strata are only cached if the EdbProvider tracks the versions of its predicates, and if all their facts were
+ * derived: A transitive closure that was only searched from the source or target of a query's goal is not.
+ * </p><p>
+ * The facts of dense predicates are kept as the rows of a {@link DenseRelation} and restored a row at a time.
+ * The cache holds up to a maximum number of facts, where 64 facts of a dense relation count as one. A stratum that
+ * derives more facts than that isn't cached, and otherwise the least recently used strata are evicted to make room.
+ * The cache is thread-safe.
+ * </p>
+ * @see BasicEngine#setStratumCache(StratumCache)
+ */
+public class StratumCache {
+
+	/* The inputs of a stratum, that determine the facts it derives */
+	static final class Inputs {
+		private final Jatalog jatalog;
+		private final EdbProvider edb;
+		private final Set<String> predicates;
+		private final Map<String, Long> versions = new HashMap<>();
+
+		private Inputs(Jatalog jatalog, Set<String> predicates) {
+			this.jatalog = jatalog;
+			this.edb = jatalog.getEdbProvider();
+			this.predicates = predicates;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Inputs)) {
+				return false;
+			}
+			Inputs that = (Inputs)o;
+			return jatalog == that.jatalog && edb == that.edb && predicates.equals(that.predicates) && versions.equals(that.versions);
+		}
+
+		@Override
+		public int hashCode() {
+			return predicates.hashCode() + versions.hashCode();
+		}
+	}
+
+	static final class Entry {
+		final Inputs inputs;
+		final long stamp;
+		final List<Expr> facts;
+		// The facts of dense predicates, each over a domain of its own
+		final List<DenseRelation> relations;
+		final long weight;
+
+		Entry(Inputs inputs, long stamp, List<Expr> facts, List<DenseRelation> relations, long weight) {
+			this.inputs = inputs;
+			this.stamp = stamp;
+			this.facts = facts;
+			this.relations = relations;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * The number of facts that a cache holds if no other maximum is given.
+	 */
+	public static final long DEFAULT_MAX_FACTS = 1000000;
+
+	private final long maxFacts;
+	// In access order, so that the first entry is the least recently used one
+	private final LinkedHashMap<Set<String>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long weight;
+	private long stamps;
+	private long hits, misses;
+
+	/**
+	 * Creates an empty cache that holds up to {@link #DEFAULT_MAX_FACTS} facts.
+	 */
+	public StratumCache() {
+		this(DEFAULT_MAX_FACTS);
+	}
+
+	/**
+	 * Creates an empty cache.
+	 * @param maxFacts The maximum number of facts that the cache holds
+	 */
+	public StratumCache(long maxFacts) {
+		this.maxFacts = maxFacts;
+	}
+
+	/* Determines the inputs of a stratum. The stamps map the predicates of the earlier strata of
+	 * the query to the stamps of their facts. Returns null if the inputs can't be versioned. */
+	static Inputs inputs(Jatalog jatalog, Stratum stratum, Map<String, Long> stamps) {
+		Inputs inputs = new Inputs(jatalog, stratum.getPredicates());
+		Set<String> read = new HashSet<>(stratum.getPredicates());
+		for(Rule rule : stratum.getRules()) {
+			for(Expr goal : rule.getBody()) {
+				if(!goal.isBuiltIn()) {
+					read.add(goal.getPredicate());
+				}
+			}
+		}
+		for(String predicate : read) {
+			long version = inputs.edb.getVersion(predicate);
+			if(version < 0) {
+				return null;
+			}
+			inputs.versions.put("edb:" + predicate, version);
+			if(stratum.getPredicates().contains(predicate)) {
+				inputs.versions.put("rules:" + predicate, jatalog.getRuleCatalog().getVersion(predicate));
+			} else if(stamps.containsKey(predicate)) {
+				inputs.versions.put("derived:" + predicate, stamps.get(predicate));
+			}
+		}
+		return inputs;
+	}
+
+	/* Retrieves the entry for a stratum with the same inputs, removing the entry if its inputs differ */
+	synchronized Entry get(Inputs inputs) {
+		Entry entry = entries.get(inputs.predicates);
+		if(entry != null && entry.inputs.equals(inputs)) {
+			hits++;
+			return entry;
+		}
+		remove(inputs.predicates);
+		misses++;
+		return null;
+	}
+
+	/* Stores the facts derived for a stratum, and returns their stamp. The facts of the dense predicates are
+	 * copied, so that they don't hold on to the domain of the query's store */
+	long put(Inputs inputs, Collection<Expr> facts, Collection<DenseRelation> relations) {
+		long size = facts.size();
+		for(DenseRelation relation : relations) {
+			size += (relation.size() + 63) / 64;
+		}
+		List<Expr> copy = new ArrayList<>();
+		List<DenseRelation> copies = new ArrayList<>();
+		if(size <= maxFacts) {
+			copy.addAll(facts);
+			for(DenseRelation relation : relations) {
+				copies.add(DenseRelation.copyOf(relation, new DenseRelation.Domain()));
+			}
+		}
+		synchronized(this) {
+			long stamp = newStamp();
+			remove(inputs.predicates);
+			if(size > maxFacts) {
+				return stamp;
+			}
+			entries.put(inputs.predicates, new Entry(inputs, stamp, copy, copies, size));
+			weight += size;
+			Iterator<Entry> eldest = entries.values().iterator();
+			while(weight > maxFacts) {
+				weight -= eldest.next().weight;
+				eldest.remove();
+			}
+			return stamp;
+		}
+	}
+
+	private void remove(Set<String> predicates) {
+		Entry entry = entries.remove(predicates);
+		if(entry != null) {
+			weight -= entry.weight;
+		}
+	}
+
+	/* A stamp for facts that aren't cached, which no entry's inputs will match */
+	synchronized long newStamp() {
+		return ++stamps;
+	}
+
+	/**
+	 * Removes all the cached facts, so that every stratum is evaluated again.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	/**
+	 * Retrieves the maximum number of facts that the cache holds.
+	 * @return the maximum number of facts
+	 */
+	public long getMaxFacts() {
+		return maxFacts;
+	}
+
+	/**
+	 * Retrieves the number of strata whose facts are cached.
+	 * @return the number of strata
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Retrieves the number of times that a stratum's facts were reused.
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Retrieves the number of times that a stratum had to be evaluated.
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,196 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.EdbProvider;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.Term;
+
+/* Evaluates the strata of a query concurrently, as a DAG: Each stratum is started on the executor as soon as the
+ * strata whose predicates its rules use are complete, so strata on independent branches of the predicate dependency
+ * graph, like sibling and married, are evaluated at the same time.
+ * Each stratum derives its facts into a LayeredFactStore of its own, over a view of the EDB in which the predicates
+ * of the strata it depends on are read from their stores. Those stores are complete before the stratum starts and
+ * are only read from then on, so the stores need no locks. Each stratum is evaluated with a QueryContext forked from
+ * the query's, which counts the stratum's bindings and facts towards the query's limits as it goes, so that strata
+ * running at the same time can't derive more than the query may between them. If a stratum fails, the strata
+ * that are still running are cancelled and the strata that depend on it are never started. */
+final class StratumScheduler {
+
+	/* Evaluates a single stratum into its store */
+	interface Evaluation {
+		void evaluate(Stratum stratum, LayeredFactStore facts, QueryContext context) throws DatalogException;
+	}
+
+	private final List<Stratum> strata;
+	// The indexes of the strata that each stratum's rules read the facts of
+	private final List<List<Integer>> dependencies = new ArrayList<>();
+
+	/* The strata must be in the order of the stratification, so that each stratum comes after its dependencies */
+	StratumScheduler(List<Stratum> strata) {
+		this.strata = strata;
+		Map<String, Integer> owners = new HashMap<>();
+		for(int i = 0; i < strata.size(); i++) {
+			List<Integer> found = new ArrayList<>();
+			for(Rule rule : strata.get(i).getRules()) {
+				for(Expr goal : rule.getBody()) {
+					Integer owner = owners.get(goal.getPredicate());
+					if(owner != null && !found.contains(owner)) {
+						found.add(owner);
+					}
+				}
+			}
+			dependencies.add(found);
+			for(String predicate : strata.get(i).getPredicates()) {
+				owners.put(predicate, i);
+			}
+		}
+	}
+
+	/* Checks whether any two strata can be evaluated at the same time, i.e. whether the strata aren't a chain
+	 * in which every stratum depends on the one before it */
+	boolean hasIndependentStrata() {
+		List<BitSet> ancestors = new ArrayList<>();
+		for(int i = 0; i < strata.size(); i++) {
+			BitSet found = new BitSet();
+			for(int dependency : dependencies.get(i)) {
+				found.set(dependency);
+				found.or(ancestors.get(dependency));
+			}
+			if(i > 0 && !found.get(i - 1)) {
+				return true;
+			}
+			ancestors.add(found);
+		}
+		return false;
+	}
+
+	/* Evaluates the strata on the executor, and returns a view of the EDB and all the derived facts */
+	FactView run(EdbProvider edb, Set<String> densePredicates, QueryContext context, Executor executor, Evaluation evaluation) throws DatalogException {
+		int size = strata.size();
+		LayeredFactStore[] stores = new LayeredFactStore[size];
+		QueryContext[] forks = new QueryContext[size];
+		for(int i = 0; i < size; i++) {
+			forks[i] = context.fork();
+		}
+		AtomicReference<DatalogException> failure = new AtomicReference<>();
+		List<CompletableFuture<Void>> futures = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			int index = i;
+			CompletableFuture<?>[] ready = dependencies.get(i).stream().map(futures::get).toArray(CompletableFuture<?>[]::new);
+			futures.add(CompletableFuture.allOf(ready).thenRunAsync(() -> {
+				Map<String, LayeredFactStore> inputs = new HashMap<>();
+				for(int dependency : dependencies.get(index)) {
+					for(String predicate : strata.get(dependency).getPredicates()) {
+						inputs.put(predicate, stores[dependency]);
+					}
+				}
+				LayeredFactStore store = new LayeredFactStore(new Inputs(edb, inputs), densePredicates);
+				try {
+					evaluation.evaluate(strata.get(index), store, forks[index]);
+				} catch (DatalogException e) {
+					// The first failure is reported; the strata that it cancels fail after it
+					if(failure.compareAndSet(null, e)) {
+						for(QueryContext fork : forks) {
+							fork.cancel();
+						}
+					}
+					throw new CompletionException(e);
+				}
+				stores[index] = store;
+			}, executor));
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[size])).join();
+		} catch (CompletionException e) {
+			if(failure.get() != null) {
+				throw failure.get();
+			}
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+		}
+
+		for(QueryContext fork : forks) {
+			context.join(fork);
+		}
+		context.checkLimits();
+		Map<String, LayeredFactStore> derived = new HashMap<>();
+		for(int i = 0; i < size; i++) {
+			for(String predicate : strata.get(i).getPredicates()) {
+				derived.put(predicate, stores[i]);
+			}
+		}
+		return new Inputs(edb, derived);
+	}
+
+	/* A read-only view of the EDB in which the facts of some predicates are read from the stores of the strata
+	 * that derived them. It is the EDB of a stratum's store, and the view of all the facts once the strata are done. */
+	private static final class Inputs implements EdbProvider, FactView {
+		private final EdbProvider edb;
+		private final Map<String, LayeredFactStore> derived;
+
+		Inputs(EdbProvider edb, Map<String, LayeredFactStore> derived) {
+			this.edb = edb;
+			this.derived = derived;
+		}
+
+		@Override
+		public Collection<Expr> getFacts(String predicate) {
+			LayeredFactStore view = derived.get(predicate);
+			return view != null ? view.getFacts(predicate) : edb.getFacts(predicate);
+		}
+
+		@Override
+		public boolean contains(Expr fact) {
+			LayeredFactStore view = derived.get(fact.getPredicate());
+			return view != null ? view.contains(fact) : edb.contains(fact);
+		}
+
+		@Override
+		public boolean hasRangeIndex(String predicate, int column) {
+			LayeredFactStore view = derived.get(predicate);
+			return view != null ? view.hasRangeIndex(predicate, column) : edb.hasRangeIndex(predicate, column);
+		}
+
+		@Override
+		public Collection<Expr> getFacts(String predicate, int column, Term low, Term high) {
+			LayeredFactStore view = derived.get(predicate);
+			return view != null ? view.getFacts(predicate, column, low, high) : edb.getFacts(predicate, column, low, high);
+		}
+
+		@Override
+		public long getVersion(String predicate) {
+			return edb.getVersion(predicate);
+		}
+
+		@Override
+		public Collection<Expr> allFacts() {
+			List<Expr> facts = new ArrayList<>(edb.allFacts());
+			for(Map.Entry<String, LayeredFactStore> entry : derived.entrySet()) {
+				facts.addAll(entry.getValue().getDerivedFacts(entry.getKey()));
+			}
+			return facts;
+		}
+
+		@Override
+		public void add(Expr fact) {
+			throw new UnsupportedOperationException("The facts of a query's strata are read-only");
+		}
+
+		@Override
+		public boolean removeAll(Collection<Expr> facts) {
+			throw new UnsupportedOperationException("The facts of a query's strata are read-only");
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package za.co.wstoop.jatalog.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.co.wstoop.jatalog.Aggregate;
+import za.co.wstoop.jatalog.DatalogException;
+import za.co.wstoop.jatalog.Expr;
+import za.co.wstoop.jatalog.Rule;
+import za.co.wstoop.jatalog.Term;
+
+/**
+ * A recursive stratum that computes the transitive closure of a binary relation, which the engine evaluates
+ * with a graph search instead of a fixed point iteration.
+ * <p>
+ * The stratum must derive a single binary predicate {@code p}, with any number of non-recursive <i>base</i>
+ * rules and a single recursive rule in one of these forms, where {@code e} is a binary predicate from an earlier stratum:
+ * </p>
+ * <ul>
+ * <li>right-linear: {@code p(X, Y) :- p(X, Z), e(Z, Y).}
+ * <li>left-linear: {@code p(X, Y) :- e(X, Z), p(Z, Y).}
+ * <li>non-linear: {@code p(X, Y) :- p(X, Z), p(Z, Y).}
+ * </ul>
+ * <p>
+ * If {@code b} is the relation of the facts derived by the base rules (and the facts of {@code p} in the EDB), then
+ * {@code p(X, Y)} holds if there is a path from a {@code Z} with {@code b(X, Z)} to {@code Y} in the graph of {@code e}
+ * (in the graph of {@code b} itself for the non-linear form). For the left-linear form the path runs backwards.
+ * The paths are found by a breadth-first search from each source, over nodes that are numbered for the duration of
+ * the search, with a {@code BitSet} of the visited nodes.
+ * </p><p>
+ * If the query only needs the facts with a specific source or target, like {@code ancestor(alice, X)?}, only
+ * that source or target is searched from. Otherwise the facts are written to a {@link DenseRelation} in the
+ * {@link LayeredFactStore}, a row of targets per source.
+ * </p>
+ */
+public final class TransitiveClosure {
+
+	private final String predicate;
+	private final String edges;
+	private final boolean leftLinear;
+	private final Rule recursiveRule;
+	private final List<Rule> baseRules;
+
+	private TransitiveClosure(String predicate, String edges, boolean leftLinear, Rule recursiveRule, List<Rule> baseRules) {
+		this.predicate = predicate;
+		this.edges = edges;
+		this.leftLinear = leftLinear;
+		this.recursiveRule = recursiveRule;
+		this.baseRules = baseRules;
+	}
+
+	/**
+	 * Recognizes a stratum that computes a transitive closure.
+	 * @param stratum The stratum
+	 * @return the transitive closure, or null if the stratum doesn't have the required form
+	 */
+	static TransitiveClosure recognize(Stratum stratum) {
+		if(!stratum.isRecursive() || stratum.getPredicates().size() != 1) {
+			return null;
+		}
+		String predicate = stratum.getPredicates().iterator().next();
+		Rule recursive = null;
+		List<Rule> base = new ArrayList<>();
+		for(Rule rule : stratum.getRules()) {
+			if(rule.getHead().arity() != 2 || Aggregate.hasAggregates(rule.getHead())) {
+				return null;
+			}
+			boolean isRecursive = false;
+			for(Expr goal : rule.getBody()) {
+				if(goal.getPredicate().equals(predicate)) {
+					isRecursive = true;
+				}
+			}
+			if(!isRecursive) {
+				base.add(rule);
+			} else if(recursive == null) {
+				recursive = rule;
+			} else {
+				return null;
+			}
+		}
+		if(recursive == null || recursive.getBody().size() != 2) {
+			return null;
+		}
+
+		// The head must be p(X, Y) and the body must be a path X -> Z -> Y through two binary goals
+		Term x = recursive.getHead().getTerm(0), y = recursive.getHead().getTerm(1);
+		Expr first = recursive.getBody().get(0), second = recursive.getBody().get(1);
+		for(Expr goal : recursive.getBody()) {
+			if(goal.isBuiltIn() || goal.isNegated() || goal.arity() != 2) {
+				return null;
+			}
+		}
+		Term z = first.getTerm(1);
+		if(!x.isVariable() || !y.isVariable() || !z.isVariable() || x.equals(y) || z.equals(x) || z.equals(y)
+				|| !first.getTerm(0).equals(x) || !second.getTerm(0).equals(z) || !second.getTerm(1).equals(y)) {
+			return null;
+		}
+		if(first.getPredicate().equals(predicate)) {
+			return new TransitiveClosure(predicate, second.getPredicate(), false, recursive, base);
+		}
+		return new TransitiveClosure(predicate, first.getPredicate(), true, recursive, base);
+	}
+
+	/**
+	 * Retrieves the predicate of the closure.
+	 * @return the predicate derived by the stratum
+	 */
+	public String getPredicate() {
+		return predicate;
+	}
+
+	/**
+	 * Retrieves the predicate of the edges of the graph that is searched.
+	 * @return the predicate of the relation whose closure is computed
+	 */
+	public String getEdges() {
+		return edges;
+	}
+
+	/**
+	 * Retrieves the recursive rule that the graph search replaces.
+	 * @return the recursive rule
+	 */
+	public Rule getRecursiveRule() {
+		return recursiveRule;
+	}
+
+	/**
+	 * Retrieves the non-recursive rules of the stratum, which derive the facts that the paths start from.
+	 * @return the base rules
+	 */
+	public List<Rule> getBaseRules() {
+		return baseRules;
+	}
+
+	/* Derives the facts of the closure that aren't in the facts yet, after the base rules have been evaluated. 
+	 * If goal is not null only the facts that match its constant source or target are derived. 
+	 * The derived facts are counted in the context as they are found, so that its limits apply. */
+	Set<Expr> evaluate(FactView facts, Expr goal, QueryContext context) throws DatalogException {
+		// Number the nodes. For the left-linear form the edges are reversed, so that the search
+		// always runs from the first term of a base fact to the second.
+		Map<Term, Integer> ids = new HashMap<>();
+		List<Term> nodes = new ArrayList<>();
+		List<int[]> base = pairs(facts.getFacts(predicate), leftLinear, ids, nodes, context);
+		List<int[]> graph = edges.equals(predicate) ? base : pairs(facts.getFacts(edges), leftLinear, ids, nodes, context);
+		int[][] starts = adjacency(base, nodes.size(), false);
+		int[][] successors = adjacency(graph, nodes.size(), false);
+
+		Term source = null, target = null;
+		if(goal != null) {
+			source = goal.getTerm(leftLinear ? 1 : 0);
+			target = goal.getTerm(leftLinear ? 0 : 1);
+		}
+		Set<Expr> derived = new HashSet<>();
+		if(source != null && !source.isVariable()) {
+			Integer id = ids.get(source);
+			if(id != null) {
+				search(id, starts[id], successors, nodes, facts, derived, context);
+			}
+		} else if(target != null && !target.isVariable()) {
+			// Search backwards from the target for the nodes that reach it, then find their sources
+			Integer id = ids.get(target);
+			if(id != null) {
+				BitSet reaching = new BitSet();
+				reaching.set(id);
+				reach(new int[]{id}, adjacency(graph, nodes.size(), true), reaching, context);
+				for(int[] pair : base) {
+					if(reaching.get(pair[1])) {
+						add(fact(nodes.get(pair[0]), target), facts, derived, context);
+					}
+				}
+			}
+		} else {
+			for(int node = 0; node < nodes.size(); node++) {
+				if(starts[node].length > 0) {
+					search(node, starts[node], successors, nodes, facts, derived, context);
+				}
+			}
+		}
+		return derived;
+	}
+
+	/* Derives all the facts of the closure into the dense relation of its predicate, which the store must 
+	 * already have marked as dense, after the base rules have been evaluated. 
+	 * Returns the number of facts that were derived. */
+	int evaluate(LayeredFactStore facts, QueryContext context) throws DatalogException {
+		Map<Term, Integer> ids = new HashMap<>();
+		List<Term> nodes = new ArrayList<>();
+		List<int[]> base = pairs(facts.getFacts(predicate), leftLinear, ids, nodes, context);
+		List<int[]> graph = edges.equals(predicate) ? base : pairs(facts.getFacts(edges), leftLinear, ids, nodes, context);
+		int[][] starts = adjacency(base, nodes.size(), false);
+		int[][] successors = adjacency(graph, nodes.size(), false);
+
+		// Map the numbers of the search to those of the store's domain
+		DenseRelation.Domain domain = facts.getDomain();
+		int[] terms = new int[nodes.size()];
+		for(int node = 0; node < terms.length; node++) {
+			terms[node] = domain.id(nodes.get(node));
+		}
+		// The searches of the left-linear form run backwards, so their rows are collected and transposed
+		DenseRelation reversed = leftLinear ? new DenseRelation(predicate, domain) : null;
+		int derived = 0;
+		for(int node = 0; node < nodes.size(); node++) {
+			if(starts[node].length == 0) {
+				continue;
+			}
+			BitSet visited = visit(starts[node], successors, nodes.size(), context);
+			BitSet row = new BitSet();
+			for(int target = visited.nextSetBit(0); target >= 0; target = visited.nextSetBit(target + 1)) {
+				row.set(terms[target]);
+			}
+			if(leftLinear) {
+				reversed.addRow(terms[node], row);
+			} else {
+				int added = facts.addRow(predicate, terms[node], row);
+				context.derive(added);
+				derived += added;
+			}
+		}
+		if(leftLinear) {
+			derived = facts.addAll(reversed.transpose(predicate));
+			context.derive(derived);
+		}
+		return derived;
+	}
+
+	/* Derives the facts for the paths from a single source */
+	private void search(int source, int[] starts, int[][] successors, List<Term> nodes, FactView facts, Set<Expr> derived, QueryContext context) throws DatalogException {
+		BitSet visited = visit(starts, successors, nodes.size(), context);
+		for(int node = visited.nextSetBit(0); node >= 0; node = visited.nextSetBit(node + 1)) {
+			add(fact(nodes.get(source), nodes.get(node)), facts, derived, context);
+		}
+	}
+
+	/* The nodes that are reachable from the start nodes, including the start nodes themselves */
+	private static BitSet visit(int[] starts, int[][] successors, int size, QueryContext context) throws DatalogException {
+		context.checkInterrupts();
+		BitSet visited = new BitSet(size);
+		for(int start : starts) {
+			visited.set(start);
+		}
+		reach(starts, successors, visited, context);
+		return visited;
+	}
+
+	private static void add(Expr fact, FactView facts, Set<Expr> derived, QueryContext context) throws DatalogException {
+		if(!facts.contains(fact) && derived.add(fact)) {
+			context.derive(1);
+		}
+	}
+
+	/* Breadth-first search from the start nodes, which must already be marked as visited */
+	private static void reach(int[] starts, int[][] successors, BitSet visited, QueryContext context) throws DatalogException {
+		int[] queue = starts.clone();
+		int size = queue.length;
+		for(int head = 0; head < size; head++) {
+			for(int next : successors[queue[head]]) {
+				context.scan();
+				if(!visited.get(next)) {
+					visited.set(next);
+					if(size == queue.length) {
+						queue = Arrays.copyOf(queue, Math.max(16, size * 2));
+					}
+					queue[size++] = next;
+				}
+			}
+		}
+	}
+
+	private Expr fact(Term from, Term to) {
+		return leftLinear ? Expr.of(predicate, to, from) : Expr.of(predicate, from, to);
+	}
+
+	/* Numbers the terms of binary facts as pairs of nodes */
+	private static List<int[]> pairs(Collection<Expr> facts, boolean reversed, Map<Term, Integer> ids, List<Term> nodes, QueryContext context) throws DatalogException {
+		List<int[]> pairs = new ArrayList<>();
+		for(Expr fact : facts) {
+			context.scan();
+			if(fact.arity() == 2) {
+				int a = id(fact.getTerm(0), ids, nodes), b = id(fact.getTerm(1), ids, nodes);
+				pairs.add(reversed ? new int[]{b, a} : new int[]{a, b});
+			}
+		}
+		return pairs;
+	}
+
+	private static int id(Term term, Map<Term, Integer> ids, List<Term> nodes) {
+		Integer id = ids.get(term);
+		if(id == null) {
+			id = nodes.size();
+			ids.put(term, id);
+			nodes.add(term);
+		}
+		return id;
+	}
+
+	/* Builds adjacency lists from pairs of nodes, following the pairs backwards if reversed */
+	private static int[][] adjacency(List<int[]> pairs, int size, boolean reversed) {
+		int from = reversed ? 1 : 0, to = reversed ? 0 : 1;
+		int[] degree = new int[size];
+		for(int[] pair : pairs) {
+			degree[pair[from]]++;
+		}
+		int[][] adjacency = new int[size][];
+		for(int i = 0; i < size; i++) {
+			adjacency[i] = new int[degree[i]];
+		}
+		for(int[] pair : pairs) {
+			adjacency[pair[from]][--degree[pair[from]]] = pair[to];
+		}
+		return adjacency;
+	}
+
+	@Override
+	public String toString() {
+		return "transitive closure of " + edges;
+	}
+}
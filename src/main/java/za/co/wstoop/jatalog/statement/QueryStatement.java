@@ -7,10 +7,15 @@ import java.util.Map;
 import za.co.wstoop.jatalog.DatalogException;
 import za.co.wstoop.jatalog.Expr;
 import za.co.wstoop.jatalog.Jatalog;
+import za.co.wstoop.jatalog.engine.QueryPlan;
 
 class QueryStatement implements Statement {
 
 	private List<Expr> goals;
+
+	// The plan is compiled the first time the statement is executed, and again whenever
+	// the rules change, so that repeated executions only pay for the evaluation.
+	private volatile QueryPlan plan;
 	
 	QueryStatement(List<Expr> goals) {
 		this.goals = goals;
@@ -18,7 +23,12 @@ class QueryStatement implements Statement {
 
 	@Override
 	public Collection<Map<String, String>> execute(Jatalog datalog, Map<String, String> bindings) throws DatalogException {
-		return datalog.query(goals, bindings);
+		QueryPlan current = plan;
+		if(current == null || !current.isValid(datalog)) {
+			current = datalog.prepareQuery(goals);
+			plan = current;
+		}
+		return datalog.query(current, bindings);
 	}
 
 	@Override
@@ -2,6 +2,7 @@ package za.co.wstoop.jatalog.statement;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import za.co.wstoop.jatalog.DatalogException;
 import za.co.wstoop.jatalog.Jatalog;
@@ -54,6 +55,17 @@ public interface Statement {
 	default public Collection<Map<String, String>> execute(Jatalog datalog) throws DatalogException {
 		return execute(datalog, null);
 	}
+
+	/**
+	 * Executes a statement against a Jatalog database on the database's {@link Jatalog#getExecutor() executor}.
+	 * @param datalog The database against which to execute the statement.
+	 * @param bindings an optional (nullable) mapping of variables to values.
+	 * @return A future that completes with the result of the statement, as described in {@link #execute(Jatalog, Map)},
+	 * 	or exceptionally with the {@link DatalogException} that it threw.
+	 */
+	default public CompletableFuture<Collection<Map<String, String>>> executeAsync(Jatalog datalog, Map<String, String> bindings) {
+		return datalog.submit(() -> execute(datalog, bindings));
+	}
 	
 	
 }
@@ -0,0 +1,145 @@
+package za.co.wstoop.jatalog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AggregateTest {
+
+	@Test
+	public void testParse() {
+		Aggregate aggregate = Aggregate.parse("count(Y)");
+		assertTrue(aggregate.getFunction() == Aggregate.Function.COUNT);
+		assertTrue(aggregate.getVariable().equals("Y"));
+		assertTrue(aggregate.toString().equals("count(Y)"));
+		assertTrue(Aggregate.parse("avg(Price)").getFunction() == Aggregate.Function.AVG);
+		assertTrue(Aggregate.parse("count(y)") == null);
+		assertTrue(Aggregate.parse("median(Y)") == null);
+		assertTrue(Aggregate.parse("Y") == null);
+		assertTrue(Aggregate.hasAggregates(Expr.expr("p", "X", "sum(Y)")));
+		assertFalse(Aggregate.hasAggregates(Expr.expr("p", "X", "Y")));
+	}
+
+	@Test
+	public void testCount() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		jatalog.executeAll("descendants(X, count(Y)) :- ancestor(X, Y).");
+
+		Collection<Map<String, String>> answers = jatalog.executeAll("descendants(X, N)?");
+		assertTrue(answers.size() == 4);
+		assertTrue(TestUtils.answerContains(answers, "X", "a", "N", "5"));
+		assertTrue(TestUtils.answerContains(answers, "X", "aa", "N", "3"));
+		assertTrue(TestUtils.answerContains(answers, "X", "aaa", "N", "1"));
+		assertTrue(TestUtils.answerContains(answers, "X", "c", "N", "1"));
+
+		// The aggregated facts can be used by other rules
+		jatalog.executeAll("big(X) :- descendants(X, N), N > 2 .");
+		answers = jatalog.executeAll("big(X)?");
+		assertTrue(answers.size() == 2);
+		assertTrue(TestUtils.answerContains(answers, "X", "a"));
+		assertTrue(TestUtils.answerContains(answers, "X", "aa"));
+	}
+
+	@Test
+	public void testFunctions() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll("sale(fruit, apple, 10). sale(fruit, pear, 10). sale(fruit, fig, 25). sale(veg, leek, 3)."
+				+ "totals(C, count(I), sum(P), min(P), max(P), avg(P)) :- sale(C, I, P)."
+				+ "first(C, min(I)) :- sale(C, I, P)."
+				+ "grand(sum(P)) :- sale(C, I, P).");
+
+		Collection<Map<String, String>> answers = jatalog.executeAll("totals(C, N, S, Min, Max, Avg)?");
+		assertTrue(answers.size() == 2);
+		// Duplicate prices are counted
+		assertTrue(TestUtils.answerContains(answers, "C", "fruit", "N", "3", "S", "45", "Min", "10", "Max", "25", "Avg", "15"));
+		assertTrue(TestUtils.answerContains(answers, "C", "veg", "N", "1", "S", "3", "Min", "3", "Max", "3", "Avg", "3"));
+
+		// min() and max() compare non-numeric values as strings
+		answers = jatalog.executeAll("first(fruit, I)?");
+		assertTrue(TestUtils.answerContains(answers, "I", "apple"));
+
+		// An aggregate without grouping variables has a single group
+		answers = jatalog.executeAll("grand(S)?");
+		assertTrue(answers.size() == 1);
+		assertTrue(TestUtils.answerContains(answers, "S", "48"));
+
+		// sum() of non-numeric values is an error
+		jatalog.executeAll("names(C, sum(I)) :- sale(C, I, P).");
+		try {
+			jatalog.executeAll("names(C, S)?");
+			assertFalse(true);
+		} catch (DatalogException e) {
+			assertTrue(true);
+		}
+	}
+
+	@Test
+	public void testNumericTypes() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll("v(big, 9007199254740992). v(big, 1). v(half, 2.5). v(half, 1.5). v(odd, 1). v(odd, 2)."
+				+ "v(huge, 9223372036854775807). v(huge, 1)."
+				+ "s(K, sum(V), avg(V)) :- v(K, V).");
+
+		// The sum of longs is exact, even beyond the precision of a double
+		Collection<Map<String, String>> answers = jatalog.executeAll("s(big, S, A)?");
+		assertTrue(TestUtils.answerContains(answers, "S", "9007199254740993"));
+		assertTrue(Term.parse(answers.iterator().next().get("S")).getType() == Term.Type.LONG);
+
+		// The sum of doubles is a double, even if it is a whole number
+		answers = jatalog.executeAll("s(half, S, A)?");
+		assertTrue(TestUtils.answerContains(answers, "S", "4.0", "A", "2.0"));
+		assertTrue(Term.parse(answers.iterator().next().get("S")).getType() == Term.Type.DOUBLE);
+
+		// The average of longs is a double if it isn't whole
+		answers = jatalog.executeAll("s(odd, S, A)?");
+		assertTrue(TestUtils.answerContains(answers, "S", "3", "A", "1.5"));
+
+		// A sum that overflows a long becomes a double
+		answers = jatalog.executeAll("s(huge, S, A)?");
+		assertTrue(Term.parse(answers.iterator().next().get("S")).getType() == Term.Type.DOUBLE);
+	}
+
+	@Test
+	public void testToString() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll("n(X, count(Y)) :- e(X, Y).");
+		Jatalog copy = new Jatalog();
+		copy.executeAll(jatalog.toString());
+		assertTrue(copy.equals(jatalog));
+		assertTrue(jatalog.toString().contains("n(X, count(Y)) :- e(X, Y)"));
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		String[] invalid = {
+				"p(count(X)).",                  // Not in facts
+				"p(X, count(Y))?",               // Not in queries
+				"p(X) :- q(X, count(Y)).",       // Not in bodies
+				"p(X, median(Y)) :- q(X, Y).",   // Unknown function
+				"p(X, count(y)) :- q(X, y).",    // Not a variable
+				"p(X, count(Z)) :- q(X, Y).",    // Not in the body
+		};
+		for(String statement : invalid) {
+			try {
+				jatalog.executeAll(statement);
+				assertFalse(statement, true);
+			} catch (DatalogException e) {
+				assertTrue(true);
+			}
+		}
+
+		// Aggregates can't be recursive
+		jatalog.executeAll("q(a, b). q(b, c). p(X, Y) :- q(X, Y). p(X, count(Y)) :- p(X, Y).");
+		try {
+			jatalog.validate();
+			assertFalse(true);
+		} catch (DatalogException e) {
+			assertTrue(e.getMessage().contains("recursive aggregate"));
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package za.co.wstoop.jatalog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import za.co.wstoop.jatalog.distributed.Coordinator;
+import za.co.wstoop.jatalog.distributed.Worker;
+
+public class DistributedTest {
+
+	private static final List<List<Expr>> QUERIES = Arrays.asList(
+			Arrays.asList(Expr.expr("ancestor", "X", "Y")),
+			Arrays.asList(Expr.expr("ancestor", "X", "aaaa")),
+			Arrays.asList(Expr.expr("sibling", "X", "Y")),
+			Arrays.asList(Expr.expr("related", "X", "Y")),
+			Arrays.asList(Expr.expr("orphan", "X")),
+			Arrays.asList(Expr.expr("parent", "X", "Y"), Expr.not("ancestor", "Y", "X")));
+
+	private static Jatalog createDatabase() throws DatalogException {
+		Jatalog jatalog = TestUtils.createDatabase();
+		Random random = new Random(42);
+		for(int i = 1; i < 60; i++) {
+			jatalog.fact("parent", "p" + random.nextInt(i), "p" + i);
+		}
+		jatalog.executeAll("person(X) :- parent(X, Y). person(Y) :- parent(X, Y). child(Y) :- parent(X, Y). orphan(X) :- person(X), not child(X).");
+		return jatalog;
+	}
+
+	private static void assertSameAnswers(Jatalog jatalog, Coordinator coordinator) throws Exception {
+		for(List<Expr> goals : QUERIES) {
+			assertTrue(goals.toString(), new HashSet<>(coordinator.query(goals)).equals(new HashSet<>(jatalog.query(goals))));
+		}
+	}
+
+	@Test
+	public void testWorkers() throws Exception {
+		Jatalog jatalog = createDatabase();
+		List<Worker> workers = new ArrayList<>();
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		for(int i = 0; i < 3; i++) {
+			Worker worker = new Worker(0);
+			new Thread(worker).start();
+			workers.add(worker);
+			addresses.add(worker.getAddress());
+		}
+		try {
+			try(Coordinator coordinator = new Coordinator(addresses)) {
+				coordinator.rules(jatalog.getIdb()).load(jatalog.getEdbProvider().allFacts());
+				assertTrue(coordinator.evaluate() > 1);
+				assertSameAnswers(jatalog, coordinator);
+
+				// New facts are evaluated before the next query
+				Expr fact = Expr.expr("parent", "aaaa", "aaaaa");
+				jatalog.fact(fact);
+				coordinator.load(Arrays.asList(fact));
+				assertSameAnswers(jatalog, coordinator);
+
+				// New facts can retract derived facts through negation
+				assertTrue(coordinator.query(Expr.expr("orphan", "p0")).iterator().hasNext());
+				fact = Expr.expr("parent", "x", "p0");
+				jatalog.fact(fact);
+				coordinator.load(Arrays.asList(fact));
+				assertFalse(coordinator.query(Expr.expr("orphan", "p0")).iterator().hasNext());
+				assertSameAnswers(jatalog, coordinator);
+			}
+
+			// The workers serve the next coordinator with an empty database
+			try(Coordinator coordinator = new Coordinator(addresses)) {
+				assertFalse(coordinator.rules(jatalog.getIdb()).query(Expr.expr("ancestor", "X", "Y")).iterator().hasNext());
+				try {
+					coordinator.rules(Arrays.asList(new Rule(Expr.expr("total", "sum(N)"), Expr.expr("n", "N"))));
+					assertFalse(true);
+				} catch (DatalogException e) {
+					// Aggregates aren't supported
+				}
+
+				// Objects can't be sent, since their text would come back as another term
+				try {
+					coordinator.load(Arrays.asList(Expr.expr("parent", "a", new StringBuilder("Bob"))));
+					assertFalse(true);
+				} catch (DatalogException e) {
+					assertTrue(e.getMessage().contains("OBJECT"));
+				}
+			}
+
+			// Bad input fails the command instead of the worker: an empty term can't be classified
+			try(Socket socket = new Socket(addresses.get(0).getAddress(), addresses.get(0).getPort())) {
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				out.write("LOAD\nparent\t\nEND\n");
+				out.flush();
+				assertTrue(in.readLine().startsWith("ERROR"));
+				out.write("LOAD\nparent\ta\tb\nEND\n");
+				out.flush();
+				assertTrue(in.readLine().equals("OK\t1"));
+				out.write("QUIT\n");
+				out.flush();
+			}
+		} finally {
+			for(Worker worker : workers) {
+				worker.close();
+			}
+		}
+	}
+
+	@Test
+	public void testWorkerProcesses() throws Exception {
+		Jatalog jatalog = createDatabase();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> processes = new ArrayList<>();
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		try {
+			for(int i = 0; i < 2; i++) {
+				Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Worker.class.getName())
+						.redirectErrorStream(true).start();
+				processes.add(process);
+				// The worker reports the port that it listens on
+				String line = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+				int port = Integer.parseInt(line.substring(line.lastIndexOf(':') + 1).trim());
+				addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			}
+			try(Coordinator coordinator = new Coordinator(addresses)) {
+				coordinator.rules(jatalog.getIdb()).load(jatalog.getEdbProvider().allFacts());
+				assertSameAnswers(jatalog, coordinator);
+			}
+		} finally {
+			for(Process process : processes) {
+				process.destroy();
+			}
+		}
+	}
+}
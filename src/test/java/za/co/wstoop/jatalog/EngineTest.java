@@ -0,0 +1,681 @@
+package za.co.wstoop.jatalog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import za.co.wstoop.jatalog.QueryAbortedException.Reason;
+import za.co.wstoop.jatalog.engine.BasicEngine;
+import za.co.wstoop.jatalog.engine.DenseRelation;
+import za.co.wstoop.jatalog.engine.Engine;
+import za.co.wstoop.jatalog.engine.LeapfrogJoin;
+import za.co.wstoop.jatalog.engine.QueryContext;
+import za.co.wstoop.jatalog.engine.QueryLimits;
+import za.co.wstoop.jatalog.engine.QueryMetrics;
+import za.co.wstoop.jatalog.engine.QueryPlan;
+import za.co.wstoop.jatalog.engine.QueryProfile;
+import za.co.wstoop.jatalog.engine.RuleCatalog;
+import za.co.wstoop.jatalog.engine.Stratum;
+import za.co.wstoop.jatalog.engine.StratumCache;
+
+public class EngineTest {
+
+	/* Finds the position of the stratum that derives a specific predicate */
+	private static int stratumOf(List<Stratum> strata, String predicate) {
+		for(int i = 0; i < strata.size(); i++) {
+			if(strata.get(i).getPredicates().contains(predicate))
+				return i;
+		}
+		return -1;
+	}
+
+	@Test
+	public void testStratification() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		List<Stratum> strata = Engine.computeStratification(jatalog.getIdb());
+
+		// ancestor, sibling and related each have their own stratum
+		assertTrue(strata.size() == 3);
+		int ancestor = stratumOf(strata, "ancestor");
+		int related = stratumOf(strata, "related");
+		int sibling = stratumOf(strata, "sibling");
+		assertTrue(ancestor >= 0 && related >= 0 && sibling >= 0);
+		assertTrue(ancestor < related);
+
+		// Only ancestor is recursive
+		assertTrue(strata.get(ancestor).isRecursive());
+		assertTrue(strata.get(ancestor).getRules().size() == 2);
+		assertFalse(strata.get(related).isRecursive());
+		assertFalse(strata.get(sibling).isRecursive());
+	}
+
+	@Test
+	public void testRuleCatalog() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		RuleCatalog catalog = jatalog.getRuleCatalog();
+
+		assertTrue(catalog.size() == 4);
+		assertTrue(catalog.getRulesByHead("ancestor").size() == 2);
+		assertTrue(catalog.getRulesByHead("parent").isEmpty());
+		// sibling(X, Y) :- parent(Z, X), parent(Z, Y), X <> Y is indexed once under parent
+		assertTrue(catalog.getRulesByBody("parent").size() == 3);
+		assertTrue(catalog.getRulesByBody("ancestor").size() == 2);
+		assertTrue(catalog.getRulesByBody("<>").isEmpty());
+
+		// The stratification is cached until a rule is added
+		List<Stratum> strata = catalog.getStratification();
+		assertTrue(strata == catalog.getStratification());
+		long version = catalog.getVersion();
+		jatalog.rule(Expr.expr("cousin", "X", "Y"), Expr.expr("parent", "A", "X"), Expr.expr("parent", "B", "Y"), Expr.expr("sibling", "A", "B"));
+		assertTrue(catalog.getVersion() != version);
+		assertTrue(strata != catalog.getStratification());
+		assertTrue(catalog.getStratification().size() == 4);
+
+		// The semi-naive dependency graph of ancestor's stratum
+		Stratum ancestor = catalog.getStratification().get(stratumOf(catalog.getStratification(), "ancestor"));
+		assertTrue(ancestor.getDependentRules().get("ancestor").size() == 1);
+		assertFalse(ancestor.getDependentRules().containsKey("parent"));
+	}
+
+	@Test
+	public void testMutualRecursion() throws Exception {
+		Collection<Rule> rules = new ArrayList<>();
+		rules.add(new Rule(Expr.expr("even", "X"), Expr.expr("zero", "X")));
+		rules.add(new Rule(Expr.expr("even", "X"), Expr.expr("succ", "Y", "X"), Expr.expr("odd", "Y")));
+		rules.add(new Rule(Expr.expr("odd", "X"), Expr.expr("succ", "Y", "X"), Expr.expr("even", "Y")));
+		rules.add(new Rule(Expr.expr("big", "X"), Expr.expr("even", "X"), Expr.not("odd", "X"), Expr.gt("X", "2")));
+
+		List<Stratum> strata = Engine.computeStratification(rules);
+		assertTrue(strata.size() == 2);
+		assertTrue(strata.get(0).getPredicates().contains("even"));
+		assertTrue(strata.get(0).getPredicates().contains("odd"));
+		assertTrue(strata.get(0).isRecursive());
+		assertTrue(strata.get(1).getPredicates().contains("big"));
+		assertFalse(strata.get(1).isRecursive());
+	}
+
+	@Test
+	public void testNegativeRecursion() throws Exception {
+		Collection<Rule> rules = new ArrayList<>();
+		rules.add(new Rule(Expr.expr("p", "X"), Expr.expr("e", "X"), Expr.not("q", "X")));
+		rules.add(new Rule(Expr.expr("q", "X"), Expr.expr("e", "X"), Expr.expr("r", "X")));
+		rules.add(new Rule(Expr.expr("r", "X"), Expr.expr("p", "X")));
+		try {
+			Engine.computeStratification(rules);
+			assertFalse(true);
+		} catch (DatalogException e) {
+			assertTrue(e.getMessage().contains("not stratified"));
+		}
+	}
+
+	@Test
+	public void testUnrelatedNegativeRecursion() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll("e(a). r(X) :- e(X). p(X) :- e(X), not q(X). q(X) :- e(X), not p(X).");
+
+		// Queries that don't depend on the negative loop are still answered
+		Collection<Map<String, String>> answers = jatalog.executeAll("r(X)?");
+		assertTrue(answers.size() == 1 && answers.iterator().next().get("X").equals("a"));
+		assertTrue(jatalog.queryBatch(Arrays.asList(Arrays.asList(Expr.expr("r", "X")), Arrays.asList(Expr.expr("e", "X"))), true).get(0).size() == 1);
+
+		// while queries that do, and the validation of the whole program, are rejected
+		try {
+			jatalog.query(Expr.expr("p", "X"));
+			assertFalse(true);
+		} catch (DatalogException e) {
+			assertTrue(e.getMessage().contains("not stratified"));
+		}
+		try {
+			jatalog.validate();
+			assertFalse(true);
+		} catch (DatalogException e) {
+			assertTrue(e.getMessage().contains("not stratified"));
+		}
+	}
+
+	@Test
+	public void testStratifiedNegation() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		jatalog.executeAll("e(a). e(b). e(c). v(b). "
+				+ "r(X) :- p(X), not q(X). "
+				+ "q(X) :- not v(X), e(X). "
+				+ "p(X) :- not s(X), e(X). ");
+
+		Collection<Map<String, String>> answers = jatalog.executeAll("r(A)?");
+		assertTrue(answers.size() == 1);
+		assertTrue(TestUtils.answerContains(answers, "A", "b"));
+	}
+
+	@Test
+	public void testListener() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		QueryMetrics metrics = new QueryMetrics();
+		jatalog.getEngine().addListener(metrics);
+
+		Collection<Map<String, String>> answers = jatalog.query(Expr.expr("ancestor", "X", "Y"));
+		assertTrue(metrics.getQueries() == 1);
+		assertTrue(metrics.getAnswers() == answers.size());
+
+		// Only ancestor's stratum is relevant. It is a transitive closure, so it is evaluated in a single pass
+		assertTrue(metrics.getStratumMetrics().size() == 1);
+		QueryMetrics.StratumMetrics stratum = metrics.getStratumMetrics().iterator().next();
+		assertTrue(stratum.getStratum().getPredicates().contains("ancestor"));
+		assertTrue(stratum.getStratum().getTransitiveClosure() != null);
+		assertTrue(stratum.getIterations() == 1);
+		assertTrue(stratum.getDerived() == answers.size());
+
+		// Both of ancestor's rules were evaluated, and between them they derived all the facts
+		assertTrue(metrics.getRuleMetrics().size() == 2);
+		long derived = 0;
+		for(QueryMetrics.RuleMetrics rule : metrics.getRuleMetrics()) {
+			assertTrue(rule.getInvocations() >= 1);
+			assertTrue(rule.getScanned() >= rule.getBindings());
+			derived += rule.getDerived();
+		}
+		assertTrue(derived == answers.size());
+
+		jatalog.getEngine().removeListener(metrics);
+		jatalog.query(Expr.expr("ancestor", "X", "Y"));
+		assertTrue(metrics.getQueries() == 1);
+	}
+
+	@Test
+	public void testRangeIndex() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		for(int i = 0; i < 100; i++) {
+			jatalog.fact("person", "p" + i, i);
+		}
+		jatalog.fact("person", "nobody", "unknown");
+		jatalog.executeAll("old(X) :- person(X, A), A > 90 . young(X) :- person(X, A), 10 >= A, A >= 5 .");
+		Collection<Map<String, String>> old = jatalog.query(Expr.expr("old", "X"));
+		Collection<Map<String, String>> young = jatalog.query(Expr.expr("young", "X"));
+		assertTrue(old.size() == 9);
+		assertTrue(young.size() == 6);
+
+		// The strata are cached between queries, so the cache is cleared to measure them
+		StratumCache cache = ((BasicEngine)jatalog.getEngine()).getStratumCache();
+		QueryMetrics metrics = new QueryMetrics();
+		jatalog.getEngine().addListener(metrics);
+		cache.clear();
+		jatalog.query(Expr.expr("old", "X"));
+		long fullScan = metrics.getRuleMetrics().iterator().next().getScanned();
+
+		// With the index only the facts in the range are scanned, and the answers stay the same
+		jatalog.rangeIndex("person", 1);
+		metrics.reset();
+		cache.clear();
+		assertTrue(jatalog.query(Expr.expr("old", "X")).equals(old));
+		assertTrue(metrics.getRuleMetrics().iterator().next().getScanned() < fullScan);
+		assertTrue(jatalog.query(Expr.expr("young", "X")).equals(young));
+
+		// The index is maintained as facts are added and removed
+		jatalog.fact("person", "p100", 100);
+		jatalog.delete(Expr.expr("person", "p99", 99));
+		Collection<Map<String, String>> answers = jatalog.query(Expr.expr("old", "X"));
+		assertTrue(answers.size() == 9);
+		assertTrue(TestUtils.answerContains(answers, "X", "p100"));
+		assertFalse(TestUtils.answerContains(answers, "X", "p99"));
+
+		// Non-numeric terms are treated as 0.0 by the comparisons, and indexed as such
+		assertTrue(jatalog.executeAll("person(X, A), A < 1?").size() == 2);
+	}
+
+	@Test
+	public void testLeapfrogJoin() throws Exception {
+		List<Expr> triangle = Arrays.asList(Expr.expr("e", "X", "Y"), Expr.expr("e", "Y", "Z"), Expr.expr("e", "Z", "X"));
+		assertTrue(LeapfrogJoin.isCyclic(triangle));
+		assertFalse(LeapfrogJoin.isCyclic(Arrays.asList(Expr.expr("e", "X", "Y"), Expr.expr("e", "Y", "Z"), Expr.expr("e", "Z", "W"))));
+		assertFalse(LeapfrogJoin.isCyclic(Arrays.asList(Expr.expr("e", "X", "Y"), Expr.expr("e", "Y", "Z"), 
+				Expr.expr("f", "X", "Y", "Z"), Expr.not("e", "Z", "X"))));
+
+		// A graph with the triangles a-b-c and c-d-e, a self-loop and some edges that aren't in triangles
+		Jatalog jatalog = new Jatalog();
+		String[][] edges = {{"a", "b"}, {"b", "c"}, {"c", "a"}, {"c", "d"}, {"d", "e"}, {"e", "c"}, {"f", "f"}, {"a", "d"}, {"e", "g"}};
+		for(String[] edge : edges) {
+			jatalog.fact("e", edge[0], edge[1]);
+		}
+		jatalog.executeAll("tri(X, Y, Z) :- e(X, Y), e(Y, Z), e(Z, X), X <> Y.");
+		Collection<Map<String, String>> answers = jatalog.executeAll("tri(X, Y, Z)?");
+		// Each triangle is found from each of its three corners
+		assertTrue(answers.size() == 6);
+		assertTrue(TestUtils.answerContains(answers, "X", "a", "Y", "b", "Z", "c"));
+		assertTrue(TestUtils.answerContains(answers, "X", "e", "Y", "c", "Z", "d"));
+		assertFalse(TestUtils.answerContains(answers, "X", "f"));
+
+		// The same join with a bound variable and typed terms
+		jatalog.fact("e", 1, 2).fact("e", 2, 3).fact("e", 3, 1).fact("e", 3, 4);
+		answers = jatalog.query(triangle, Jatalog.makeBindings("X", "1"));
+		assertTrue(answers.size() == 1);
+		assertTrue(TestUtils.answerContains(answers, "Y", "2", "Z", "3"));
+		assertTrue(jatalog.explain("tri(X, Y, Z)?").contains("Leapfrog triejoin of the positive goals, binding X, Y, Z"));
+
+		// Compare with a brute force count on a random graph
+		Random random = new Random(42);
+		Set<List<Integer>> graph = new HashSet<>();
+		jatalog = new Jatalog();
+		for(int i = 0; i < 300; i++) {
+			List<Integer> edge = Arrays.asList(random.nextInt(30), random.nextInt(30));
+			graph.add(edge);
+			jatalog.fact("e", edge.get(0), edge.get(1));
+		}
+		int expected = 0;
+		for(List<Integer> xy : graph) {
+			for(List<Integer> yz : graph) {
+				if(xy.get(1).equals(yz.get(0)) && graph.contains(Arrays.asList(yz.get(1), xy.get(0)))) {
+					expected++;
+				}
+			}
+		}
+		assertTrue(jatalog.query(triangle).size() == expected);
+	}
+
+	@Test
+	public void testTransitiveClosure() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		Random random = new Random(7);
+		for(int i = 0; i < 60; i++) {
+			jatalog.fact("node", "n" + i);
+		}
+		for(int i = 0; i < 80; i++) {
+			jatalog.fact("e", "n" + random.nextInt(60), "n" + random.nextInt(60));
+		}
+		jatalog.executeAll("right(X, Y) :- e(X, Y). right(X, Y) :- right(X, Z), e(Z, Y)."
+				+ "left(X, Y) :- e(X, Y). left(X, Y) :- e(X, Z), left(Z, Y)."
+				+ "nonlinear(X, Y) :- e(X, Y). nonlinear(X, Y) :- nonlinear(X, Z), nonlinear(Z, Y)."
+				// The extra goal stops this rule from being recognized, so it is evaluated as a fixed point
+				+ "fixpoint(X, Y) :- e(X, Y). fixpoint(X, Y) :- fixpoint(X, Z), e(Z, Y), node(Y).");
+
+		QueryPlan plan = jatalog.prepareQuery(Arrays.asList(Expr.expr("right", "X", "Y")));
+		assertTrue(plan.getStrata().get(0).getTransitiveClosure().getEdges().equals("e"));
+		assertTrue(jatalog.prepareQuery(Arrays.asList(Expr.expr("nonlinear", "X", "Y"))).getStrata().get(0).getTransitiveClosure() != null);
+		assertTrue(jatalog.prepareQuery(Arrays.asList(Expr.expr("fixpoint", "X", "Y"))).getStrata().get(0).getTransitiveClosure() == null);
+		assertTrue(jatalog.explain("left(X, Y)?").contains("evaluated as the transitive closure of e"));
+
+		String[] queries = {"%s(X, Y)?", "%s(n3, Y)?", "%s(X, n5)?", "%s(n3, n5)?", "%s(X, X)?"};
+		for(String query : queries) {
+			Set<Map<String, String>> expected = new HashSet<>(jatalog.executeAll(String.format(query, "fixpoint")));
+			for(String predicate : new String[]{"right", "left", "nonlinear"}) {
+				assertTrue(query + " " + predicate, new HashSet<>(jatalog.executeAll(String.format(query, predicate))).equals(expected));
+			}
+		}
+	}
+
+	@Test
+	public void testStratumCache() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		StratumCache cache = ((BasicEngine)jatalog.getEngine()).getStratumCache();
+		Set<Map<String, String>> related = new HashSet<>(jatalog.executeAll("related(X, Y)?"));
+		assertTrue(cache.size() == 2 && cache.getHits() == 0);
+
+		// Nothing changed, so both ancestor's and related's strata are reused
+		assertTrue(new HashSet<>(jatalog.executeAll("related(X, Y)?")).equals(related));
+		assertTrue(cache.getHits() == 2);
+
+		// Facts of predicates that the strata don't depend on don't affect them, but sibling is new
+		jatalog.fact("likes", "a", "b");
+		jatalog.executeAll("related(X, Y)? sibling(X, Y)?");
+		assertTrue(cache.getHits() == 4 && cache.size() == 3);
+
+		// A new parent affects all three, and a new rule affects its own stratum and the ones that depend on it
+		long misses = cache.getMisses();
+		jatalog.fact("parent", "aaaa", "aaaaa");
+		jatalog.executeAll("related(X, Y)? sibling(X, Y)?");
+		assertTrue(cache.getMisses() == misses + 3);
+		jatalog.executeAll("ancestor(X, Y) :- likes(X, Y).");
+		jatalog.executeAll("related(X, Y)? sibling(X, Y)?");
+		assertTrue(cache.getMisses() == misses + 5);
+
+		// The reused facts give the same answers as evaluating the strata again
+		for(String query : new String[]{"related(X, Y)?", "ancestor(X, Y)?", "sibling(X, Y)?"}) {
+			Set<Map<String, String>> reused = new HashSet<>(jatalog.executeAll(query));
+			cache.clear();
+			assertTrue(query, new HashSet<>(jatalog.executeAll(query)).equals(reused));
+		}
+
+		// The facts of dense predicates are reused as bitsets
+		jatalog = new Jatalog();
+		for(int i = 1; i < 200; i++) {
+			jatalog.fact("e", "n" + (i - 1), "n" + i);
+		}
+		jatalog.executeAll("tc(X, Y) :- e(X, Y). tc(X, Y) :- tc(X, Z), e(Z, Y). hit(X) :- tc(X, n7).");
+		jatalog.dense("tc");
+		BasicEngine engine = (BasicEngine)jatalog.getEngine();
+		cache = engine.getStratumCache();
+		Set<Map<String, String>> hits = new HashSet<>(jatalog.executeAll("hit(X)?"));
+		assertTrue(hits.size() == 7 && cache.size() == 2);
+		assertTrue(new HashSet<>(jatalog.executeAll("hit(X)?")).equals(hits) && cache.getHits() == 2);
+		assertTrue(jatalog.executeAll("tc(n0, Y)?").size() == 199);
+
+		// A stratum with more facts than the cache holds isn't cached, and the cache can be turned off
+		engine.setStratumCache(new StratumCache(100));
+		assertTrue(new HashSet<>(jatalog.executeAll("hit(X)?")).equals(hits) && engine.getStratumCache().size() == 1);
+		engine.setStratumCache(null);
+		assertTrue(new HashSet<>(jatalog.executeAll("hit(X)?")).equals(hits));
+	}
+
+	@Test
+	public void testQueryBatch() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		StratumCache cache = ((BasicEngine)jatalog.getEngine()).getStratumCache();
+		List<List<Expr>> queries = Arrays.asList(
+				Arrays.asList(Expr.expr("related", "X", "Y")),
+				Arrays.asList(Expr.expr("ancestor", "X", "aaaa")),
+				Arrays.asList(Expr.expr("sibling", "X", "Y"), Expr.not("parent", "X", "Y")),
+				Arrays.asList(Expr.expr("parent", "X", "Y")));
+
+		// Each of the strata that the queries share is evaluated once
+		List<Collection<Map<String, String>>> batch = jatalog.queryBatch(queries);
+		assertTrue(batch.size() == queries.size());
+		assertTrue(cache.getMisses() == 3 && cache.getHits() == 0);
+
+		cache.clear();
+		List<Collection<Map<String, String>>> parallel = jatalog.queryBatch(queries, true);
+		for(int i = 0; i < queries.size(); i++) {
+			cache.clear();
+			Set<Map<String, String>> expected = new HashSet<>(jatalog.query(queries.get(i)));
+			assertTrue(new HashSet<>(batch.get(i)).equals(expected));
+			assertTrue(new HashSet<>(parallel.get(i)).equals(expected));
+		}
+	}
+
+	@Test
+	public void testParallelRule() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		Random random = new Random(7);
+		for(int i = 1; i < 1000; i++) {
+			jatalog.fact("parent", "p" + random.nextInt(i), "p" + i);
+		}
+		jatalog.executeAll("grandparent(X, Z) :- parent(X, Y), parent(Y, Z).");
+		// A negated goal that is only partly bound, which rule() rejects as unsafe, is evaluated through a key index
+		jatalog.getRuleCatalog().add(new Rule(Expr.expr("lastgen", "X", "Z"), Expr.expr("parent", "X", "Y"), Expr.expr("parent", "Y", "Z"), Expr.not("parent", "Z", "W")));
+		BasicEngine engine = (BasicEngine)jatalog.getEngine();
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for(String predicate : new String[]{"grandparent", "lastgen"}) {
+				QueryPlan plan = jatalog.prepareQuery(Arrays.asList(Expr.expr(predicate, "X", "Y")));
+				engine.setParallelThreshold(Integer.MAX_VALUE);
+				engine.getStratumCache().clear();
+				QueryContext context = engine.createContext();
+				Set<Map<String, String>> expected = new HashSet<>(jatalog.query(plan, null, context));
+				assertTrue(!expected.isEmpty());
+
+				// The chunks derive the same facts, and their counts add up to the same totals
+				engine.setParallelThreshold(100).setParallelPool(pool);
+				engine.getStratumCache().clear();
+				QueryContext parallel = engine.createContext();
+				assertTrue(new HashSet<>(jatalog.query(plan, null, parallel)).equals(expected));
+				assertTrue(predicate, parallel.getScanned() == context.getScanned() && parallel.getBindings() == context.getBindings());
+
+				// The limits still apply to the bindings of all the chunks together
+				engine.getStratumCache().clear();
+				parallel = engine.createContext();
+				parallel.setLimits(QueryLimits.NONE.withMaxBindings(context.getBindings() / 2));
+				assertTrue(abortReason(jatalog, plan, parallel) == Reason.BINDINGS);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentStrata() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		Random random = new Random(11);
+		for(int i = 1; i < 200; i++) {
+			jatalog.fact("parent", "p" + random.nextInt(i), "p" + i);
+			if(i % 3 == 0) {
+				jatalog.fact("spouse", "p" + i, "p" + random.nextInt(i));
+			}
+		}
+		// sibling and married are independent; inlaw joins them, and single depends on married through a negation
+		jatalog.executeAll("sibling(X, Y) :- parent(P, X), parent(P, Y), X <> Y."
+				+ "ancestor(X, Y) :- parent(X, Y). ancestor(X, Y) :- ancestor(X, Z), parent(Z, Y)."
+				+ "married(X, Y) :- spouse(X, Y). married(X, Y) :- spouse(Y, X)."
+				+ "wed(X) :- married(X, Y). person(X) :- parent(X, Y). person(Y) :- parent(X, Y)."
+				+ "inlaw(X, Y) :- married(X, Z), sibling(Z, Y)."
+				+ "single(X) :- person(X), not wed(X).");
+		BasicEngine engine = (BasicEngine)jatalog.getEngine();
+		QueryPlan plan = jatalog.prepareQuery(Arrays.asList(Expr.expr("inlaw", "X", "Y"), Expr.expr("single", "Y"), Expr.expr("ancestor", "A", "X")));
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			engine.setConcurrentStrata(false);
+			QueryContext context = engine.createContext();
+			Set<Map<String, String>> expected = new HashSet<>(jatalog.query(plan, null, context));
+			assertTrue(!expected.isEmpty());
+
+			// The strata derive the same facts, and their counts add up to the same totals
+			engine.setConcurrentStrata(true).setParallelPool(pool);
+			engine.getStratumCache().clear();
+			QueryContext concurrent = engine.createContext();
+			assertTrue(new HashSet<>(jatalog.query(plan, null, concurrent)).equals(expected));
+			assertTrue(concurrent.getScanned() == context.getScanned() && concurrent.getDerived() == context.getDerived());
+
+			// The limits apply to the facts derived by all the strata together
+			engine.getStratumCache().clear();
+			concurrent = engine.createContext();
+			concurrent.setLimits(QueryLimits.NONE.withMaxDerivedFacts(context.getDerived() - 1));
+			assertTrue(abortReason(jatalog, plan, concurrent) == Reason.DERIVED_FACTS);
+
+			// The strata share the limit while they run: four closures that each stay under it are stopped
+			// as soon as they exceed it together, instead of each deriving up to the limit
+			jatalog = new Jatalog();
+			for(int c = 0; c < 4; c++) {
+				for(int i = 1; i < 30; i++) {
+					jatalog.fact("e" + c, "n" + (i - 1), "n" + i);
+				}
+				jatalog.executeAll("t" + c + "(X, Y) :- e" + c + "(X, Y). t" + c + "(X, Z) :- t" + c + "(X, Y), e" + c + "(Y, Z).");
+			}
+			engine = (BasicEngine)jatalog.getEngine();
+			engine.setParallelPool(pool);
+			plan = jatalog.prepareQuery(Arrays.asList(Expr.expr("t0", "A", "B"), Expr.expr("t1", "C", "D"), Expr.expr("t2", "E", "F"), Expr.expr("t3", "G", "H")));
+			long closure = 30 * 29 / 2;
+			concurrent = engine.createContext();
+			concurrent.setLimits(QueryLimits.NONE.withMaxDerivedFacts(closure + 1));
+			assertTrue(abortReason(jatalog, plan, concurrent) == Reason.DERIVED_FACTS);
+			assertTrue(concurrent.getDerived() > closure + 1 && concurrent.getDerived() < 2 * closure);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testAntiJoin() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		for(int i = 0; i < 200; i++) {
+			jatalog.fact("stud", "s" + i);
+			if(i % 2 == 0) {
+				jatalog.fact("grad", "s" + i);
+			}
+			if(i % 3 == 0) {
+				jatalog.fact("enrolled", "s" + i, "c" + (i % 7));
+			}
+		}
+		jatalog.executeAll("und(X) :- stud(X), not grad(X).");
+
+		// Fully bound: one probe per student instead of a scan of grad
+		QueryProfile profile = jatalog.profile("und(X)?");
+		assertTrue(profile.getAnswers().size() == 100);
+		assertTrue(profile.getAnswers().contains(Collections.singletonMap("X", "s1")));
+		assertTrue(profile.getMetrics().getRuleMetrics().iterator().next().getScanned() < 200 * 3);
+
+		// Partly bound: through an index on enrolled's first column
+		profile = jatalog.profile("stud(X), not enrolled(X, C)?");
+		assertTrue(profile.getAnswers().size() == 200 - 67);
+		assertFalse(profile.getAnswers().contains(Collections.singletonMap("X", "s3")));
+		assertTrue(profile.getMetrics().getScanned() < 200 * 3);
+		assertTrue(jatalog.explain("stud(X), not enrolled(X, C)?").contains("not enrolled(X, C) [anti-join, key index on enrolled; bound X]"));
+	}
+
+	@Test
+	public void testDenseRelations() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		String[] queries = {"ancestor(X, Y)?", "sibling(X, Y)?", "related(X, Y)?", "related(aaa, Y)?", "related(X, X)?"};
+		List<Set<Map<String, String>>> expected = new ArrayList<>();
+		for(String query : queries) {
+			expected.add(new HashSet<>(jatalog.executeAll(query)));
+		}
+		assertFalse(expected.get(2).isEmpty());
+
+		// The answers are the same when the derived facts are stored as bitsets
+		jatalog.dense("sibling").dense("related");
+		assertTrue(jatalog.getDensePredicates().contains("related"));
+		for(int i = 0; i < queries.length; i++) {
+			assertTrue(queries[i], new HashSet<>(jatalog.executeAll(queries[i])).equals(expected.get(i)));
+		}
+
+		// The relation operations themselves
+		DenseRelation.Domain domain = new DenseRelation.Domain();
+		DenseRelation e = DenseRelation.of("e", Arrays.asList(Expr.expr("e", "a", "b"), Expr.expr("e", "b", "c"), Expr.expr("e", "b", "a")), domain);
+		assertTrue(e.size() == 3 && e.contains(Expr.expr("e", "b", "c")) && !e.contains(Expr.expr("e", "c", "b")));
+		DenseRelation path = DenseRelation.compose("p", e, e);
+		assertTrue(new HashSet<>(path).equals(new HashSet<>(Arrays.asList(Expr.expr("p", "a", "c"), Expr.expr("p", "a", "a"), Expr.expr("p", "b", "b")))));
+		path.removeReflexive();
+		assertTrue(path.size() == 1);
+		assertTrue(path.transpose("q").contains(Expr.expr("q", "c", "a")));
+		assertTrue(path.addAll(e.transpose("p")) == 3 && path.size() == 4);
+	}
+
+	@Test
+	public void testExplain() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		String explanation = jatalog.explain("ancestor(X, aaaa), not parent(X, aaaa)?");
+		assertTrue(explanation.contains("Relevant predicates: ancestor, parent"));
+		assertTrue(explanation.contains("1. ancestor(X, aaaa) [scan ancestor; binds X]"));
+		assertTrue(explanation.contains("2. not parent(X, aaaa) [anti-join, probe parent; bound X]"));
+		assertTrue(explanation.contains("recursive [ancestor]"));
+		assertFalse(explanation.contains("sibling"));
+
+		try {
+			jatalog.explain("ancestor(X, bob). parent(X, Y)?");
+			assertFalse(true);
+		} catch (DatalogException e) {
+			// Only a single query can be explained
+		}
+	}
+
+	@Test
+	public void testProfile() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		QueryProfile profile = jatalog.profile("ancestor(X, aaaa), not parent(X, aaaa)?");
+		assertTrue(profile.getAnswers().equals(jatalog.query(profile.getPlan().getGoals())));
+		assertTrue(profile.getAnswers().size() == 2);
+
+		// Each goal was matched, and the numbers are consistent with the answers
+		QueryMetrics metrics = profile.getMetrics();
+		QueryMetrics.GoalMetrics first = metrics.getGoalMetrics(profile.getPlan().getOrderedGoals().get(0));
+		QueryMetrics.GoalMetrics second = metrics.getGoalMetrics(profile.getPlan().getOrderedGoals().get(1));
+		assertTrue(first.getInvocations() == 1);
+		assertTrue(second.getInvocations() == first.getMatched());
+		assertTrue(second.getMatched() == profile.getAnswers().size());
+		assertTrue(metrics.getScanned() == first.getScanned() + second.getScanned());
+
+		// The goals in the rules' bodies were profiled as well, except for the recursive rule of
+		// ancestor's transitive closure, which is evaluated by a graph search
+		for(Stratum stratum : profile.getPlan().getStrata()) {
+			for(Rule rule : stratum.getRules()) {
+				if(stratum.getTransitiveClosure() == null || rule != stratum.getTransitiveClosure().getRecursiveRule()) {
+					assertTrue(metrics.getGoalMetrics(rule.getBody().get(0)) != null);
+				}
+			}
+		}
+		assertTrue(profile.toString().contains("matched"));
+	}
+
+	/* A database with a rule that computes an accidental cross product of 10^8 facts */
+	private static Jatalog createRunawayDatabase() throws DatalogException {
+		Jatalog jatalog = new Jatalog();
+		for(int i = 0; i < 100; i++) {
+			jatalog.fact("e", "n" + i);
+		}
+		jatalog.rule(Expr.expr("cross", "A", "B", "C", "D"), Expr.expr("e", "A"), Expr.expr("e", "B"), Expr.expr("e", "C"), Expr.expr("e", "D"));
+		return jatalog;
+	}
+
+	private static Reason abortReason(Jatalog jatalog, QueryPlan plan, QueryContext context) throws DatalogException {
+		try {
+			jatalog.query(plan, null, context);
+		} catch (QueryAbortedException e) {
+			return e.getReason();
+		}
+		return null;
+	}
+
+	@Test
+	public void testQueryLimits() throws Exception {
+		Jatalog jatalog = createRunawayDatabase();
+		QueryPlan plan = jatalog.prepareQuery(Arrays.asList(Expr.expr("cross", "A", "B", "C", "D")));
+
+		QueryContext context = jatalog.getEngine().createContext();
+		context.setLimits(QueryLimits.NONE.withMaxBindings(5000));
+		assertTrue(abortReason(jatalog, plan, context) == Reason.BINDINGS);
+		assertTrue(context.getBindings() == 5001);
+
+		context = jatalog.getEngine().createContext();
+		context.setLimits(QueryLimits.NONE.withTimeout(100, TimeUnit.MILLISECONDS));
+		assertTrue(abortReason(jatalog, plan, context) == Reason.TIMEOUT);
+
+		// The database's limits apply to statements, and aborted queries aren't wrapped in another exception
+		jatalog.setQueryLimits(QueryLimits.NONE.withTimeout(100, TimeUnit.MILLISECONDS));
+		try {
+			jatalog.executeAll("cross(A, B, C, D)?");
+			assertFalse(true);
+		} catch (QueryAbortedException e) {
+			assertTrue(e.getReason() == Reason.TIMEOUT);
+		}
+
+		// The transitive closure of a long chain derives many facts over many iterations
+		Jatalog chain = new Jatalog();
+		for(int i = 0; i < 200; i++) {
+			chain.fact("edge", "n" + i, "n" + (i + 1));
+		}
+		chain.rule(Expr.expr("path", "X", "Y"), Expr.expr("edge", "X", "Y"));
+		chain.rule(Expr.expr("path", "X", "Y"), Expr.expr("path", "X", "Z"), Expr.expr("edge", "Z", "Y"));
+		context = chain.getEngine().createContext();
+		context.setLimits(QueryLimits.NONE.withMaxDerivedFacts(5000));
+		assertTrue(abortReason(chain, chain.prepareQuery(Arrays.asList(Expr.expr("path", "X", "Y"))), context) == Reason.DERIVED_FACTS);
+		assertTrue(context.getDerived() > 5000 && context.getDerived() < 10000);
+
+		// Queries within the limits are not affected
+		Collection<Map<String, String>> answers = jatalog.executeAll("e(X)?");
+		assertTrue(answers.size() == 100);
+	}
+
+	@Test
+	public void testCancellation() throws Exception {
+		Jatalog jatalog = createRunawayDatabase();
+		QueryPlan plan = jatalog.prepareQuery(Arrays.asList(Expr.expr("cross", "A", "B", "C", "D")));
+
+		QueryContext context = jatalog.getEngine().createContext();
+		Thread canceller = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// Cancel immediately
+			}
+			context.cancel();
+		});
+		canceller.start();
+		assertTrue(abortReason(jatalog, plan, context) == Reason.CANCELLED);
+		canceller.join();
+
+		// A context that was cancelled before the query started aborts it immediately
+		QueryContext cancelled = jatalog.getEngine().createContext();
+		cancelled.cancel();
+		assertTrue(abortReason(jatalog, jatalog.prepareQuery(Arrays.asList(Expr.expr("e", "X"))), cancelled) == Reason.CANCELLED);
+	}
+}
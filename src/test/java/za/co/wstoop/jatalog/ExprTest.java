@@ -142,6 +142,24 @@ public class ExprTest {
 		assertTrue(e2.isNegated());
 	}
 
+	@Test
+	public void testSubstituteInto() {
+		Expr e1 = Expr.expr("foo", "X", "b");
+		Expr tuple = e1.copy();
+		Map<String, Term> bindings = new HashMap<>();
+		bindings.put("X", Term.of("a"));
+		assertTrue(e1.substituteTerms(bindings, tuple) == tuple);
+		assertTrue(tuple.equals(Expr.expr("foo", "a", "b")));
+		assertTrue(e1.getTerms().get(0).equals("X"));
+
+		// The copy keeps its terms when the tuple is reused
+		Expr fact = tuple.copy();
+		bindings.put("X", Term.of(1));
+		e1.substituteTerms(bindings, tuple);
+		assertTrue(tuple.equals(Expr.expr("foo", 1, "b")));
+		assertTrue(fact.equals(Expr.expr("foo", "a", "b")));
+	}
+
 	@Test
 	public void testQuotedStrings() {
 		Expr e1 = new Expr("foo", "\"This is a quoted string");
@@ -3,14 +3,23 @@ package za.co.wstoop.jatalog;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.junit.Test;
 
 import za.co.wstoop.jatalog.DatalogException;
 import za.co.wstoop.jatalog.Expr;
 import za.co.wstoop.jatalog.Jatalog;
+import za.co.wstoop.jatalog.engine.QueryPlan;
 import za.co.wstoop.jatalog.statement.Statement;
 
 // TODO: Code coverage could be better... 
@@ -99,6 +108,37 @@ public class FluentTest {
 		}
 	}
 	
+	@Test
+	public void testPreparedPlan() throws Exception {
+		// A prepared query statement is planned once and then reused with different bindings
+		Jatalog jatalog = TestUtils.createDatabase();
+
+		Statement statement = Jatalog.prepareStatement("ancestor(A, B)?");
+
+		Collection<Map<String, String>> answers;
+		answers = statement.execute(jatalog, Jatalog.makeBindings("A", "aa"));
+		assertTrue(TestUtils.answerContains(answers, "B", "aaaa"));
+		assertFalse(TestUtils.answerContains(answers, "B", "ca"));
+
+		answers = statement.execute(jatalog, Jatalog.makeBindings("A", "c"));
+		assertTrue(TestUtils.answerContains(answers, "B", "ca"));
+		assertFalse(TestUtils.answerContains(answers, "B", "aaaa"));
+
+		// Plans are invalidated when the rules change
+		QueryPlan plan = jatalog.prepareQuery(Arrays.asList(Expr.expr("ancestor", "A", "B")));
+		assertTrue(plan.isValid(jatalog));
+		jatalog.rule(Expr.expr("ancestor", "X", "Y"), Expr.expr("adopted", "X", "Y"));
+		jatalog.fact("adopted", "c", "cb");
+		assertFalse(plan.isValid(jatalog));
+
+		// ...and planned again transparently
+		answers = jatalog.query(plan, Jatalog.makeBindings("A", "c"));
+		assertTrue(TestUtils.answerContains(answers, "B", "cb"));
+		answers = statement.execute(jatalog, Jatalog.makeBindings("A", "c"));
+		assertTrue(TestUtils.answerContains(answers, "B", "ca"));
+		assertTrue(TestUtils.answerContains(answers, "B", "cb"));
+	}
+
 	@Test
 	public void testMultiGoals() throws Exception {
 		// You can have multiple goals in queries.
@@ -164,5 +204,65 @@ public class FluentTest {
 			e.printStackTrace();
 		}
 	}
+
+	@Test
+	public void testAsync() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+
+		// Queries run concurrently with each other and with loads of new facts
+		List<Expr> chain = new ArrayList<>();
+		for(int i = 0; i < 50; i++) {
+			chain.add(Expr.expr("parent", "c" + i, "c" + (i + 1)));
+		}
+		List<CompletableFuture<Collection<Map<String, String>>>> queries = new ArrayList<>();
+		for(int i = 0; i < 20; i++) {
+			queries.add(jatalog.queryAsync(Expr.expr("ancestor", "aa", "X")));
+		}
+		CompletableFuture<Jatalog> loaded = jatalog.loadAsync(chain);
+		for(CompletableFuture<Collection<Map<String, String>>> query : queries) {
+			assertTrue(TestUtils.answerContains(query.get(), "X", "aaaa"));
+		}
+		assertTrue(loaded.get() == jatalog);
+		assertTrue(jatalog.queryAsync(Expr.expr("ancestor", "c0", "X")).get().size() == 50);
+
+		Statement statement = Jatalog.prepareStatement("ancestor(c0, X)?");
+		assertTrue(statement.executeAsync(jatalog, null).get().size() == 50);
+		assertTrue(jatalog.loadAsync(new StringReader("parent(c50, c51). ancestor(c0, c51)?")).get().size() == 1);
+
+		// Errors complete the future exceptionally
+		try {
+			jatalog.loadAsync(Arrays.asList(Expr.expr("parent", "X", "c0"))).get();
+			assertFalse(true);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DatalogException);
+		}
+
+		// The default pool's queue is bounded, so an overload completes the futures exceptionally
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			CompletableFuture<Object> rejected = null;
+			for(int i = 0; i < 100000 && rejected == null; i++) {
+				CompletableFuture<Object> blocked = jatalog.submit(() -> {
+					release.await();
+					return null;
+				});
+				if(blocked.isCompletedExceptionally()) {
+					rejected = blocked;
+				}
+			}
+			try {
+				rejected.get();
+				assertFalse(true);
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+		} finally {
+			release.countDown();
+		}
+
+		// Another executor can be used, like one that runs the tasks on the calling thread
+		jatalog.setExecutor(Runnable::run);
+		assertTrue(jatalog.queryAsync(Expr.expr("ancestor", "c0", "X")).isDone());
+	}
 	
 }
@@ -0,0 +1,55 @@
+package za.co.wstoop.jatalog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static za.co.wstoop.jatalog.Expr.expr;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import za.co.wstoop.jatalog.engine.LayeredFactStore;
+
+public class LayeredFactStoreTest {
+
+	@Test
+	public void testBase() {
+		EdbProvider edb = new BasicEdbProvider();
+		edb.add(expr("foo", "a"));
+		edb.add(expr("foo", "b"));
+		edb.add(expr("bar", "a"));
+
+		LayeredFactStore store = new LayeredFactStore(edb);
+		assertTrue(store.getFacts("foo").size() == 2);
+		assertTrue(store.contains(expr("bar", "a")));
+		assertTrue(store.getDerived().isEmpty());
+
+		// Facts already in the EDB don't go into the overlay
+		assertFalse(store.add(expr("foo", "a")));
+		assertTrue(store.getDerived().isEmpty());
+
+		assertTrue(store.addAll(Arrays.asList(expr("foo", "c"), expr("baz", "a"))));
+		assertFalse(store.add(expr("foo", "c")));
+		assertTrue(store.getDerived().size() == 2);
+
+		Collection<Expr> foo = store.getFacts("foo");
+		assertTrue(foo.size() == 3);
+		assertTrue(foo.contains(expr("foo", "a")));
+		assertTrue(foo.contains(expr("foo", "c")));
+		int count = 0;
+		for(Expr fact : foo) {
+			assertTrue(fact.getPredicate().equals("foo"));
+			count++;
+		}
+		assertTrue(count == 3);
+
+		assertTrue(store.getFacts("baz").size() == 1);
+		assertTrue(store.getFacts("fred").isEmpty());
+		assertTrue(store.contains(expr("baz", "a")));
+		assertFalse(store.contains(expr("baz", "b")));
+
+		// The EDB itself is never modified
+		assertTrue(edb.allFacts().size() == 3);
+	}
+}
@@ -0,0 +1,67 @@
+package za.co.wstoop.jatalog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.junit.Test;
+
+import za.co.wstoop.jatalog.engine.QueryCache;
+import za.co.wstoop.jatalog.statement.Statement;
+
+public class QueryCacheTest {
+
+	@Test
+	public void testHits() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		QueryCache cache = new QueryCache(10);
+		jatalog.setQueryCache(cache);
+
+		Collection<Map<String, String>> answers = jatalog.executeAll("ancestor(X, aaaa)?");
+		assertTrue(cache.getMisses() == 1 && cache.getHits() == 0);
+		assertTrue(jatalog.executeAll("ancestor(X, aaaa)?") == answers);
+		assertTrue(cache.getHits() == 1);
+
+		// Statements and bindings share the cache; the bindings are part of the key
+		Statement statement = Jatalog.prepareStatement("ancestor(X, Y)?");
+		Collection<Map<String, String>> bound = statement.execute(jatalog, Jatalog.makeBindings("Y", "aaaa"));
+		assertTrue(statement.execute(jatalog, Jatalog.makeBindings("Y", "aaaa")) == bound);
+		assertTrue(bound.size() == answers.size());
+		assertFalse(statement.execute(jatalog, Jatalog.makeBindings("Y", "aaa")) == bound);
+
+		try {
+			answers.clear();
+			assertFalse(true);
+		} catch (UnsupportedOperationException e) {
+			// The cached answers are shared, so they can't be changed
+		}
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		Jatalog jatalog = TestUtils.createDatabase();
+		jatalog.setQueryCache(new QueryCache(10));
+		Collection<Map<String, String>> answers = jatalog.executeAll("ancestor(X, aaaa)?");
+
+		// Facts of unrelated predicates don't affect the answers
+		jatalog.fact("likes", "a", "b");
+		assertTrue(jatalog.executeAll("ancestor(X, aaaa)?") == answers);
+
+		// New facts, deleted facts and new rules do
+		jatalog.fact("parent", "aaaa", "aaaaa");
+		assertTrue(jatalog.executeAll("ancestor(X, aaaaa)?").size() == answers.size() + 1);
+		jatalog.delete(Expr.expr("parent", "aaa", "aaaa"));
+		Collection<Map<String, String>> deleted = jatalog.executeAll("ancestor(X, aaaa)?");
+		assertTrue(deleted.isEmpty());
+		jatalog.executeAll("ancestor(X, Y) :- likes(X, Y).");
+		assertTrue(jatalog.executeAll("ancestor(X, b)?").size() == 1);
+
+		// The least recently used entries are evicted
+		QueryCache cache = new QueryCache(2);
+		jatalog.setQueryCache(cache);
+		jatalog.executeAll("parent(X, Y)? ancestor(X, Y)? sibling(X, Y)?");
+		assertTrue(cache.size() == 2);
+	}
+}
@@ -64,5 +64,21 @@ public class StackMapTest {
 		assertTrue(child.size() == 0);
 		assertTrue(child.get("X") == null);	
 	}
+
+	@Test
+	public void testReset() throws DatalogException {
+		Map<String, String> parent = new StackMap<>();
+		parent.put("X", "1");
+		StackMap<String, String> child = new StackMap<>(parent);
+		child.put("Y", "2");
+
+		// Reusing the map for another binding keeps the parent's entries
+		child.reset(parent);
+		assertTrue(child.get("Y") == null);
+		assertTrue(child.get("X").equals("1"));
+		child.put("Y", "3");
+		assertTrue(child.get("Y").equals("3"));
+		assertTrue(child.size() == 2);
+	}
 	
 }
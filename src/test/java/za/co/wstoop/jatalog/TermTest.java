@@ -0,0 +1,105 @@
+package za.co.wstoop.jatalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TermTest {
+
+	@Test
+	public void testParse() {
+		assertEquals(Term.Type.VARIABLE, Term.parse("X").getType());
+		assertEquals(Term.Type.SYMBOL, Term.parse("alice").getType());
+		assertEquals(Term.Type.STRING, Term.parse("\"Alice").getType());
+		assertEquals(Term.Type.LONG, Term.parse("42").getType());
+		assertEquals(Term.Type.LONG, Term.parse("-7").getType());
+		assertEquals(Term.Type.DOUBLE, Term.parse("4.2").getType());
+		assertEquals(Term.Type.DOUBLE, Term.parse("1e3").getType());
+
+		assertEquals(42L, Term.parse("42").getValue());
+		assertEquals(4.2, Term.parse("4.2").toDouble(), 0.0);
+		assertEquals("Alice", Term.parse("\"Alice").getValue());
+		assertEquals("\"Alice", Term.parse("\"Alice").getText());
+		assertEquals(0.0, Term.parse("alice").toDouble(), 0.0);
+	}
+
+	@Test
+	public void testOf() {
+		assertEquals(Term.Type.LONG, Term.of(42).getType());
+		assertEquals(Term.Type.DOUBLE, Term.of(2.5f).getType());
+		assertEquals(Term.Type.VARIABLE, Term.of("X").getType());
+		assertEquals(Term.parse("42"), Term.of(42L));
+
+		LocalDate date = LocalDate.of(2016, 2, 29);
+		Term term = Term.of(date);
+		assertEquals(Term.Type.OBJECT, term.getType());
+		assertEquals(date, term.getValue());
+		assertEquals("2016-02-29", term.getText());
+		assertEquals(term, Term.of(LocalDate.of(2016, 2, 29)));
+		assertFalse(term.equals(Term.parse("2016-02-29")));
+	}
+
+	@Test
+	public void testEquality() {
+		assertEquals(Term.parse("42"), Term.parse("42"));
+		assertEquals(Term.parse("42").hashCode(), Term.parse("42").hashCode());
+		assertFalse(Term.parse("42").equals(Term.parse("42.0")));
+		assertFalse(Term.parse("a").equals(Term.parse("\"a")));
+		// Numbers are equal terms if their texts are, so 01 and 1 are different facts
+		assertFalse(Term.parse("01").equals(Term.parse("1")));
+		assertFalse(Term.parse("1.0").equals(Term.parse("1.00")));
+
+		// The built-in predicates compare numbers by value
+		assertTrue(Term.parse("42").equalsValue(Term.parse("42.0")));
+		assertTrue(Term.parse("01").equalsValue(Term.parse("1")));
+		assertFalse(Term.parse("a").equalsValue(Term.parse("\"a")));
+		assertTrue(Term.parse("9").compareNumerically(Term.parse("10")) < 0);
+		assertTrue(Term.parse("10.5").compareNumerically(Term.parse("10")) > 0);
+		assertEquals(0, Term.parse("a").compareNumerically(Term.parse("0")));
+	}
+
+	@Test
+	public void testConversions() {
+		Map<String, String> bindings = new HashMap<>();
+		bindings.put("X", "42");
+		bindings.put("Y", "alice");
+		Map<String, Term> terms = Term.toTerms(bindings);
+		assertEquals(Term.Type.LONG, terms.get("X").getType());
+		assertEquals(Term.Type.SYMBOL, terms.get("Y").getType());
+		assertEquals(bindings, Term.toStrings(terms));
+	}
+
+	@Test
+	public void testTypedFacts() throws Exception {
+		Jatalog jatalog = new Jatalog();
+		LocalDate date = LocalDate.of(2016, 2, 29);
+		jatalog.fact("age", "alice", 42)
+			.fact("age", "bob", 7.5)
+			.fact("born", "alice", date);
+		jatalog.rule(Expr.expr("adult", "X"), Expr.expr("age", "X", "A"), Expr.ge("A", "18"));
+
+		Collection<Map<String, String>> answers = jatalog.query(Expr.expr("adult", "X"));
+		assertEquals(1, answers.size());
+		assertEquals("alice", answers.iterator().next().get("X"));
+
+		answers = jatalog.query(Expr.expr("age", "X", 7.5));
+		assertEquals(1, answers.size());
+		assertEquals("bob", answers.iterator().next().get("X"));
+
+		// Objects are matched by their value, not their text
+		assertEquals(1, jatalog.query(Expr.expr("born", "X", LocalDate.of(2016, 2, 29))).size());
+		assertEquals(0, jatalog.query(Expr.expr("born", "X", "2016-02-29")).size());
+
+		// Numbers with different texts are different facts, but they are equal values for '='
+		jatalog.fact("n", "01").fact("n", "1");
+		assertEquals(2, jatalog.query(Expr.expr("n", "X")).size());
+		assertEquals(2, jatalog.query(Expr.expr("n", "X"), Expr.eq("X", "1")).size());
+	}
+}
@@ -0,0 +1,154 @@
+package za.co.wstoop.jatalog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRecover() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		Path file = dir.resolve("db.log"), snapshot = dir.resolve("db.snapshot");
+
+		Jatalog jatalog;
+		try(WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.Sync.GROUP)) {
+			jatalog = log.recover(snapshot);
+			jatalog.executeAll("parent(alice, bob). parent(bob, carol). parent(carol, dave)."
+					+ "ancestor(X, Y) :- parent(X, Y). ancestor(X, Y) :- ancestor(X, Z), parent(Z, Y).");
+			jatalog.fact("note", "alice", "\"two\nlines");
+			jatalog.delete(Expr.expr("parent", "carol", "X"));
+		}
+		try(WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.Sync.GROUP)) {
+			Jatalog recovered = log.recover(snapshot);
+			assertTrue(recovered.equals(jatalog));
+			assertTrue(recovered.query(Expr.expr("ancestor", "alice", "X")).size() == 2);
+			assertTrue(recovered.query(Expr.expr("note", "alice", "X")).iterator().next().get("X").equals("\"two\nlines"));
+
+			// A checkpoint empties the log; later changes are replayed on top of the snapshot
+			recovered.checkpoint(snapshot);
+			assertTrue(Files.size(file) == 0);
+			recovered.fact("parent", "dave", "erin");
+			jatalog = recovered;
+		}
+
+		// A change that was only partly written is discarded
+		Files.write(file, "parent(erin, fr".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		try(WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.Sync.NONE)) {
+			Jatalog recovered = log.recover(snapshot);
+			assertTrue(recovered.equals(jatalog));
+			assertTrue(recovered.getIdb().size() == 2);
+			assertFalse(recovered.query(Expr.expr("parent", "erin", "X")).iterator().hasNext());
+
+			// The log must not be replayed into the database that writes to it
+			try {
+				log.replay(recovered);
+				assertFalse(true);
+			} catch (DatalogException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		Path file = dir.resolve("db.log");
+
+		Jatalog jatalog;
+		try(WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.Sync.GROUP)) {
+			jatalog = log.recover(dir.resolve("db.snapshot"));
+			jatalog.executeAll("age(alice, 30). age(bob, 50). age(carol, 70). retired(carol).");
+			// Only the facts that match the positive goals are deleted and logged
+			jatalog.executeAll("age(X, A), A > 40, not retired(X)~");
+			assertTrue(jatalog.query(Expr.expr("age", "X", "A")).size() == 2);
+		}
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertTrue(lines.get(lines.size() - 1).equals("age(bob, 50)~"));
+
+		try(WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.Sync.GROUP)) {
+			Jatalog recovered = log.recover(dir.resolve("db.snapshot"));
+			assertTrue(recovered.equals(jatalog));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testGroupCommit() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		try(WriteAheadLog log = new WriteAheadLog(dir.resolve("db.log"), WriteAheadLog.Sync.GROUP)) {
+			Jatalog jatalog = log.recover(dir.resolve("db.snapshot"));
+
+			// Writers that wait for the log to be forced while another fsync is in progress share the next one:
+			// the fsync is held up until all of them have written their changes
+			List<Thread> threads = new ArrayList<>();
+			for(int t = 0; t < 8; t++) {
+				String thread = "t" + t;
+				threads.add(new Thread(() -> {
+					try {
+						jatalog.fact("n", thread);
+					} catch (DatalogException e) {
+						throw new RuntimeException(e);
+					}
+				}));
+			}
+			long syncs = log.getSyncs();
+			synchronized(log.syncLock) {
+				for(Thread thread : threads) {
+					thread.start();
+				}
+				while(log.written < threads.size()) {
+					Thread.sleep(1);
+				}
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			assertTrue(log.getSyncs() == syncs + 1);
+			assertTrue(jatalog.query(Expr.expr("n", "X")).size() == 8);
+
+			// The facts of a load are forced to disk together
+			List<Expr> facts = new ArrayList<>();
+			for(int i = 0; i < 100; i++) {
+				facts.add(Expr.expr("m", Integer.toString(i)));
+			}
+			syncs = log.getSyncs();
+			jatalog.loadAsync(facts).get();
+			assertTrue(log.getSyncs() == syncs + 1);
+
+			jatalog.executeAll("big(X) :- m(X), X > 50 .");
+			Jatalog replayed = new Jatalog();
+			assertTrue(log.replay(replayed) == 109);
+			assertTrue(replayed.equals(jatalog));
+
+			// Rules that the database already has aren't replayed, or counted
+			replayed = new Jatalog();
+			replayed.executeAll("big(X) :- m(X), X > 50 .");
+			assertTrue(log.replay(replayed) == 108);
+			assertTrue(replayed.equals(jatalog));
+
+			// A rule that ends with a number is written so that it can be read again, in the log and in snapshots
+			Jatalog copy = new Jatalog();
+			copy.executeAll(jatalog.toString());
+			assertTrue(copy.equals(jatalog));
+		}
+
+		try(WriteAheadLog log = new WriteAheadLog(dir.resolve("each.log"), WriteAheadLog.Sync.EACH)) {
+			Jatalog jatalog = log.recover(dir.resolve("each.snapshot"));
+			jatalog.fact("n", "a").fact("n", "b");
+			assertTrue(log.getSyncs() == 2);
+		}
+	}
+}